@@ -15,29 +15,34 @@
  */
 package edu.mit.ll.pace.encryption;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
-import java.io.DataOutput;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.io.WritableUtils;
 
 /**
  * Defines the contract for a {@link ValueEncryptorBase} that performs semantic or authenticated encryption using AES.
+ * <p>
+ * Ciphertexts are written in the compact format "marker || IV || ciphertext", where the marker is a single zero byte and the IV has a fixed length for the mode
+ * ({@value #GCM_IV_LENGTH} bytes for GCM, the block size otherwise). GCM always uses a {@value #GCM_TAG_LENGTH} bit tag.
+ * <p>
+ * Ciphertexts written in the original format, "params length || params || ciphertext" where params are the ASN.1 encoded {@link AlgorithmParameters}, can still
+ * be decrypted. The formats are distinguished by their first byte, as the original format always starts with the positive length of the parameters.
  */
 final class AESValueEncryptor extends ValueEncryptorBase {
 
@@ -47,9 +52,24 @@ final class AESValueEncryptor extends ValueEncryptorBase {
   private final static String AES = "AES";
 
   /**
-   * The cipher to use for encryption.
+   * First byte of a ciphertext in the compact format.
    */
-  private final Cipher cipher;
+  final static byte COMPACT_FORMAT_MARKER = 0;
+
+  /**
+   * Length of the IV used for GCM, in bytes.
+   */
+  final static int GCM_IV_LENGTH = 12;
+
+  /**
+   * Length of the GCM authentication tag, in bits.
+   */
+  final static int GCM_TAG_LENGTH = 128;
+
+  /**
+   * The ciphers to use for encryption, one per thread as {@link Cipher} instances are stateful.
+   */
+  private final ThreadLocal<Cipher> ciphers;
 
   /**
    * Tracks whether this encryptor is a SunJCE provided instance of GCM. This is necessary as SunJCE uses "GCM" instead of "AES" for the algorithm name of this
@@ -57,6 +77,16 @@ final class AESValueEncryptor extends ValueEncryptorBase {
    */
   private final boolean isInstanceOfSunProvidedGCM;
 
+  /**
+   * Whether this encryptor uses GCM.
+   */
+  private final boolean isGCM;
+
+  /**
+   * Length of the IV written in the compact format.
+   */
+  private final int ivLength;
+
   /**
    * Create the value encryptor.
    *
@@ -70,69 +100,104 @@ final class AESValueEncryptor extends ValueEncryptorBase {
    *           Thrown when the encryptor can't be instantiated.
    */
   AESValueEncryptor(String transformation, String provider) {
-    try {
-      if (provider == null) {
-        cipher = Cipher.getInstance(transformation);
-      } else {
-        cipher = Cipher.getInstance(transformation, provider);
-      }
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | NoSuchProviderException e) {
-      throw new EncryptionException(e);
-    }
+    ciphers = createThreadLocalCiphers(transformation, provider);
+    Cipher cipher = ciphers.get();
 
-    isInstanceOfSunProvidedGCM = transformation.toUpperCase().startsWith("AES/GCM") && cipher.getProvider().getName().equals("SunJCE");
+    isGCM = transformation.toUpperCase().startsWith("AES/GCM");
+    isInstanceOfSunProvidedGCM = isGCM && cipher.getProvider().getName().equals("SunJCE");
+    ivLength = isGCM ? GCM_IV_LENGTH : cipher.getBlockSize();
   }
 
   @Override
   byte[] encrypt(byte[] key, byte[] data) {
+    return encrypt(key, data, 0, data.length, 0);
+  }
+
+  @Override
+  byte[] encrypt(byte[] key, byte[] data, int offset, int length, int headerLength) {
     try {
+      Cipher cipher = ciphers.get();
       SecretKeySpec keySpec = new SecretKeySpec(key, AES);
-      cipher.init(Cipher.ENCRYPT_MODE, keySpec);
-      byte[] ciphertext = cipher.doFinal(data);
 
-      // Write out the metadata.
-      ByteArrayOutputStream stream = new ByteArrayOutputStream();
-      DataOutput out = new DataOutputStream(stream);
+      // The output is "header || marker || IV || ciphertext", and is sized exactly before encryption so the ciphertext is written in place.
+      int ivOffset = headerLength + 1;
+      int ciphertextOffset = ivOffset + ivLength;
+      byte[] iv = new byte[ivLength];
+      RandomSource.nextBytes(iv);
+      cipher.init(Cipher.ENCRYPT_MODE, keySpec, getParameterSpec(iv, 0));
 
-      byte[] params = cipher.getParameters().getEncoded();
-      WritableUtils.writeVInt(out, params.length);
-      out.write(params);
+      byte[] output = new byte[ciphertextOffset + cipher.getOutputSize(length)];
+      output[headerLength] = COMPACT_FORMAT_MARKER;
+      System.arraycopy(iv, 0, output, ivOffset, ivLength);
 
-      // Write the original ciphertext and return the new ciphertext.
-      out.write(ciphertext);
-      return stream.toByteArray();
-    } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | IOException e) {
+      int written = cipher.doFinal(data, offset, length, output, ciphertextOffset);
+      return ciphertextOffset + written == output.length ? output : Arrays.copyOf(output, ciphertextOffset + written);
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
       throw new EncryptionException(e);
     }
   }
 
   @Override
   byte[] decrypt(byte[] key, byte[] data) {
-    try {
-      // Sun's impelemntation of GCM uses a custom algorithm name. We handle this odd (potentially incorrect) behavior here.
-      AlgorithmParameters params = AlgorithmParameters.getInstance(isInstanceOfSunProvidedGCM ? "GCM" : "AES");
-
-      // Read the metadata.
-      ByteArrayInputStream stream = new ByteArrayInputStream(data);
-      DataInput in = new DataInputStream(stream);
+    return decrypt(key, data, 0, data.length);
+  }
 
-      int metadataLength = WritableUtils.readVInt(in);
-      byte[] metadata = new byte[metadataLength];
-      in.readFully(metadata);
-      params.init(metadata);
+  @Override
+  byte[] decrypt(byte[] key, byte[] data, int offset, int length) {
+    try {
+      if (length == 0) {
+        throw new EOFException();
+      }
 
-      // Decrypt the remaining data.
+      Cipher cipher = ciphers.get();
       SecretKeySpec keySpec = new SecretKeySpec(key, AES);
-      cipher.init(Cipher.DECRYPT_MODE, keySpec, params);
-      byte[] ciphertext = new byte[stream.available()];
-      in.readFully(ciphertext);
+      int ciphertextOffset;
+
+      if (data[offset] == COMPACT_FORMAT_MARKER) {
+        // Compact format, with the raw IV following the marker.
+        int ivOffset = offset + 1;
+        ciphertextOffset = ivOffset + ivLength;
+        if (ciphertextOffset > offset + length) {
+          throw new EOFException();
+        }
+        cipher.init(Cipher.DECRYPT_MODE, keySpec, getParameterSpec(data, ivOffset));
+      } else {
+        // Original format. Sun's impelemntation of GCM uses a custom algorithm name. We handle this odd (potentially incorrect) behavior here.
+        AlgorithmParameters params = AlgorithmParameters.getInstance(isInstanceOfSunProvidedGCM ? "GCM" : "AES");
+
+        // Read the metadata directly from the buffer.
+        if (WritableUtils.decodeVIntSize(data[offset]) > length) {
+          throw new EOFException();
+        }
+        int metadataLength = WritableComparator.readVInt(data, offset);
+        int metadataOffset = offset + WritableUtils.decodeVIntSize(data[offset]);
+        ciphertextOffset = metadataOffset + metadataLength;
+        if (metadataLength < 0 || ciphertextOffset > offset + length) {
+          throw new EOFException();
+        }
+        params.init(Arrays.copyOfRange(data, metadataOffset, ciphertextOffset));
+        cipher.init(Cipher.DECRYPT_MODE, keySpec, params);
+      }
 
-      cipher.init(Cipher.DECRYPT_MODE, keySpec, params);
-      return cipher.doFinal(ciphertext);
+      // Decrypt the remaining data.
+      return cipher.doFinal(data, ciphertextOffset, offset + length - ciphertextOffset);
     } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException
         | IOException e) {
       throw new EncryptionException(e);
     }
   }
 
+  /**
+   * Get the parameters for the IV stored in the given buffer.
+   *
+   * @param buffer
+   *          Buffer containing the IV.
+   * @param offset
+   *          Offset of the IV in the buffer.
+   * @return Parameters for the cipher.
+   */
+  private AlgorithmParameterSpec getParameterSpec(byte[] buffer, int offset) {
+    return isGCM ? new GCMParameterSpec(GCM_TAG_LENGTH, buffer, offset, ivLength) : new IvParameterSpec(buffer, offset, ivLength);
+  }
+
 }
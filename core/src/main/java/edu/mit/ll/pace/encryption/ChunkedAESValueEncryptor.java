@@ -0,0 +1,461 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A {@link ValueEncryptorBase} that performs authenticated encryption using AES-GCM over fixed-size chunks of the plaintext.
+ * <p>
+ * Each chunk is encrypted and authenticated separately, so that large values can be encrypted and decrypted incrementally without holding a second copy of the
+ * whole plaintext. Chunks use the nonce "base nonce XOR (chunk index || last chunk flag)", which prevents chunks from being reordered, dropped, or truncated
+ * without detection (the STREAM construction of Hoang et al.).
+ * <p>
+ * Ciphertexts are written as "chunk size bits || base nonce || chunk 0 || ... || chunk n", where every chunk but the last holds exactly 2^bits bytes of
+ * plaintext, followed by its {@value #TAG_LENGTH} byte tag. An empty plaintext is encrypted as a single empty chunk.
+ */
+final class ChunkedAESValueEncryptor extends ValueEncryptorBase {
+
+  /**
+   * The algorithm string to use when creating a key spec.
+   */
+  private static final String AES = "AES";
+
+  /**
+   * Log2 of the default number of plaintext bytes in each chunk.
+   */
+  static final int DEFAULT_CHUNK_SIZE_BITS = 16;
+
+  /**
+   * Smallest accepted log2 of the chunk size.
+   */
+  static final int MIN_CHUNK_SIZE_BITS = 4;
+
+  /**
+   * Largest accepted log2 of the chunk size.
+   */
+  static final int MAX_CHUNK_SIZE_BITS = 24;
+
+  /**
+   * Length of the nonce, in bytes.
+   */
+  static final int NONCE_LENGTH = 12;
+
+  /**
+   * Length of the authentication tag of each chunk, in bytes.
+   */
+  static final int TAG_LENGTH = 16;
+
+  /**
+   * Length of the metadata at the front of the ciphertext, in bytes.
+   */
+  static final int METADATA_LENGTH = 1 + NONCE_LENGTH;
+
+  /**
+   * The ciphers to use for encryption, one per thread as {@link Cipher} instances are stateful.
+   */
+  private final ThreadLocal<Cipher> ciphers;
+
+  /**
+   * Log2 of the number of plaintext bytes in each chunk written by this encryptor.
+   */
+  private final int chunkSizeBits;
+
+  /**
+   * Create the value encryptor.
+   *
+   * @param transformation
+   *          ValueEncryptor transformation used for each chunk. Passed to {@link Cipher#getInstance(String, String)}. Must be an AES-GCM transformation.
+   * @param provider
+   *          ValueEncryptor provider. Passed to {@link Cipher#getInstance(String, String)}.
+   * @throws EncryptionException
+   *           Thrown when the encryptor can't be instantiated.
+   */
+  ChunkedAESValueEncryptor(String transformation, String provider) {
+    this(transformation, provider, DEFAULT_CHUNK_SIZE_BITS);
+  }
+
+  /**
+   * Create the value encryptor.
+   *
+   * @param transformation
+   *          ValueEncryptor transformation used for each chunk. Passed to {@link Cipher#getInstance(String, String)}. Must be an AES-GCM transformation.
+   * @param provider
+   *          ValueEncryptor provider. Passed to {@link Cipher#getInstance(String, String)}.
+   * @param chunkSizeBits
+   *          Log2 of the number of plaintext bytes in each chunk written by this encryptor. Ciphertexts with any valid chunk size can be decrypted.
+   * @throws EncryptionException
+   *           Thrown when the encryptor can't be instantiated.
+   */
+  ChunkedAESValueEncryptor(String transformation, String provider, int chunkSizeBits) {
+    checkArgument(chunkSizeBits >= MIN_CHUNK_SIZE_BITS && chunkSizeBits <= MAX_CHUNK_SIZE_BITS, "invalid chunk size");
+    this.chunkSizeBits = chunkSizeBits;
+
+    ciphers = createThreadLocalCiphers(transformation, provider);
+  }
+
+  @Override
+  byte[] encrypt(byte[] key, byte[] data) {
+    return encrypt(key, data, 0, data.length, 0);
+  }
+
+  @Override
+  byte[] encrypt(byte[] key, byte[] data, int offset, int length, int headerLength) {
+    EncryptionStream stream = encryptionStream(key, length, headerLength);
+    stream.write(data, offset, length);
+    return stream.finish();
+  }
+
+  @Override
+  byte[] decrypt(byte[] key, byte[] data) throws IOException {
+    return decrypt(key, data, 0, data.length);
+  }
+
+  @Override
+  byte[] decrypt(byte[] key, byte[] data, int offset, int length) throws IOException {
+    DecryptionStream stream = decryptionStream(key, data, offset, length);
+    byte[] plaintext = new byte[stream.available()];
+    int position = 0;
+    while (position < plaintext.length) {
+      position += stream.read(plaintext, position, plaintext.length - position);
+    }
+
+    // Authenticate the empty chunk that makes up an empty plaintext.
+    if (stream.read() != -1) {
+      throw new EncryptionException("unexpected plaintext");
+    }
+    return plaintext;
+  }
+
+  /**
+   * Start encrypting a plaintext of known length, which is then written to the returned stream in pieces.
+   *
+   * @param key
+   *          Key to encrypt with.
+   * @param length
+   *          Total length of the plaintext.
+   * @param headerLength
+   *          Number of bytes to leave unused at the front of the ciphertext.
+   * @return Stream to write the plaintext to.
+   */
+  EncryptionStream encryptionStream(byte[] key, int length, int headerLength) {
+    return new EncryptionStream(key, length, headerLength);
+  }
+
+  /**
+   * Start decrypting a ciphertext, whose plaintext is then read from the returned stream in pieces.
+   * <p>
+   * Each chunk is authenticated before any of its plaintext is returned.
+   *
+   * @param key
+   *          Key to decrypt with.
+   * @param data
+   *          Buffer containing the ciphertext.
+   * @param offset
+   *          Offset of the ciphertext in the buffer.
+   * @param length
+   *          Length of the ciphertext in the buffer.
+   * @return Stream to read the plaintext from.
+   * @throws IOException
+   *           Thrown if the ciphertext is truncated or its metadata is invalid.
+   */
+  DecryptionStream decryptionStream(byte[] key, byte[] data, int offset, int length) throws IOException {
+    return new DecryptionStream(key, data, offset, length);
+  }
+
+  /**
+   * Get the nonce for a chunk.
+   *
+   * @param baseNonce
+   *          Buffer containing the base nonce.
+   * @param offset
+   *          Offset of the base nonce in the buffer.
+   * @param index
+   *          Index of the chunk.
+   * @param last
+   *          Whether this is the last chunk.
+   * @return Parameters for the chunk.
+   */
+  private static GCMParameterSpec getChunkParameters(byte[] baseNonce, int offset, int index, boolean last) {
+    byte[] nonce = new byte[NONCE_LENGTH];
+    System.arraycopy(baseNonce, offset, nonce, 0, NONCE_LENGTH);
+    nonce[NONCE_LENGTH - 5] ^= (byte) (index >>> 24);
+    nonce[NONCE_LENGTH - 4] ^= (byte) (index >>> 16);
+    nonce[NONCE_LENGTH - 3] ^= (byte) (index >>> 8);
+    nonce[NONCE_LENGTH - 2] ^= (byte) index;
+    nonce[NONCE_LENGTH - 1] ^= (byte) (last ? 1 : 0);
+    return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+  }
+
+  /**
+   * Encrypts a plaintext of known length as it is written, directly into an exactly sized ciphertext.
+   */
+  final class EncryptionStream extends OutputStream {
+
+    private final Cipher cipher = ciphers.get();
+    private final SecretKeySpec keySpec;
+    private final byte[] output;
+    private final int nonceOffset;
+    private final int chunkSize = 1 << chunkSizeBits;
+
+    /**
+     * Next position in the output to write to.
+     */
+    private int position;
+
+    /**
+     * Number of plaintext bytes not yet written.
+     */
+    private int remaining;
+
+    /**
+     * Index of the current chunk.
+     */
+    private int chunk = -1;
+
+    /**
+     * Number of plaintext bytes not yet written to the current chunk, or 0 if no chunk has been started.
+     */
+    private int chunkRemaining = 0;
+
+    private EncryptionStream(byte[] key, int length, int headerLength) {
+      checkArgument(length >= 0, "length is negative");
+
+      int chunks = length == 0 ? 1 : (int) ((length + (long) chunkSize - 1) >>> chunkSizeBits);
+      keySpec = new SecretKeySpec(key, AES);
+      output = new byte[headerLength + METADATA_LENGTH + length + chunks * TAG_LENGTH];
+      remaining = length;
+
+      output[headerLength] = (byte) chunkSizeBits;
+      nonceOffset = headerLength + 1;
+      byte[] nonce = new byte[NONCE_LENGTH];
+      RandomSource.nextBytes(nonce);
+      System.arraycopy(nonce, 0, output, nonceOffset, NONCE_LENGTH);
+      position = nonceOffset + NONCE_LENGTH;
+    }
+
+    @Override
+    public void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) {
+      checkArgument(length <= remaining, "more data written than expected");
+
+      try {
+        while (length > 0) {
+          if (chunkRemaining == 0) {
+            startChunk();
+          }
+
+          int count = Math.min(length, chunkRemaining);
+          position += cipher.update(data, offset, count, output, position);
+          offset += count;
+          length -= count;
+          remaining -= count;
+          chunkRemaining -= count;
+
+          if (chunkRemaining == 0) {
+            position += cipher.doFinal(output, position);
+          }
+        }
+      } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+        throw new EncryptionException(e);
+      }
+    }
+
+    /**
+     * Start the next chunk.
+     */
+    private void startChunk() {
+      chunk++;
+      chunkRemaining = Math.min(remaining, chunkSize);
+      try {
+        cipher.init(Cipher.ENCRYPT_MODE, keySpec, getChunkParameters(output, nonceOffset, chunk, remaining <= chunkSize));
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+        throw new EncryptionException(e);
+      }
+    }
+
+    /**
+     * Finish the encryption. All of the plaintext must have been written.
+     *
+     * @return The ciphertext, preceded by the unused header bytes.
+     */
+    byte[] finish() {
+      if (remaining != 0) {
+        throw new IllegalStateException("less data written than expected");
+      }
+
+      if (chunk == -1) {
+        // An empty plaintext is still authenticated as a single empty chunk.
+        startChunk();
+        try {
+          position += cipher.doFinal(output, position);
+        } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+          throw new EncryptionException(e);
+        }
+      }
+      return output;
+    }
+  }
+
+  /**
+   * Decrypts a ciphertext one chunk at a time as its plaintext is read.
+   */
+  final class DecryptionStream extends InputStream {
+
+    private final Cipher cipher = ciphers.get();
+    private final SecretKeySpec keySpec;
+    private final byte[] data;
+    private final int nonceOffset;
+    private final int end;
+    private final int chunkSize;
+
+    /**
+     * Position of the next chunk in the ciphertext.
+     */
+    private int position;
+
+    /**
+     * Index of the next chunk.
+     */
+    private int chunk = 0;
+
+    /**
+     * Number of plaintext bytes not yet decrypted.
+     */
+    private int remaining;
+
+    /**
+     * Plaintext of the current chunk. Allocated when first needed.
+     */
+    private byte[] buffer = null;
+    private int bufferPosition = 0;
+    private int bufferLength = 0;
+
+    private DecryptionStream(byte[] key, byte[] data, int offset, int length) throws IOException {
+      if (length < METADATA_LENGTH + TAG_LENGTH) {
+        throw new EOFException();
+      }
+
+      int chunkSizeBits = data[offset];
+      if (chunkSizeBits < MIN_CHUNK_SIZE_BITS || chunkSizeBits > MAX_CHUNK_SIZE_BITS) {
+        throw new EncryptionException("invalid chunk size");
+      }
+
+      this.keySpec = new SecretKeySpec(key, AES);
+      this.data = data;
+      this.nonceOffset = offset + 1;
+      this.position = nonceOffset + NONCE_LENGTH;
+      this.end = offset + length;
+      this.chunkSize = 1 << chunkSizeBits;
+
+      long chunks = (end - position + (long) chunkSize + TAG_LENGTH - 1) / (chunkSize + TAG_LENGTH);
+      this.remaining = (int) (end - position - chunks * TAG_LENGTH);
+      if (remaining < 0) {
+        throw new EOFException();
+      }
+    }
+
+    /**
+     * Gets the exact number of plaintext bytes that remain to be read.
+     *
+     * @return Number of remaining bytes.
+     */
+    @Override
+    public int available() {
+      return remaining + bufferLength - bufferPosition;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+
+      while (bufferPosition == bufferLength) {
+        if (position == end) {
+          return -1;
+        }
+
+        // Decrypt directly into the caller's buffer when it wants at least the whole chunk.
+        int chunkLength = Math.min(end - position, chunkSize + TAG_LENGTH) - TAG_LENGTH;
+        if (chunkLength > 0 && length >= chunkLength) {
+          return decryptChunk(b, offset);
+        }
+
+        if (buffer == null) {
+          buffer = new byte[Math.min(chunkSize, remaining)];
+        }
+        bufferLength = decryptChunk(buffer, 0);
+        bufferPosition = 0;
+      }
+
+      int count = Math.min(length, bufferLength - bufferPosition);
+      System.arraycopy(buffer, bufferPosition, b, offset, count);
+      bufferPosition += count;
+      return count;
+    }
+
+    /**
+     * Decrypt and authenticate the next chunk.
+     *
+     * @param output
+     *          Buffer to write the plaintext to.
+     * @param offset
+     *          Offset at which to write the plaintext.
+     * @return Number of plaintext bytes in the chunk.
+     */
+    private int decryptChunk(byte[] output, int offset) {
+      int length = Math.min(end - position, chunkSize + TAG_LENGTH);
+      boolean last = position + length == end;
+
+      try {
+        cipher.init(Cipher.DECRYPT_MODE, keySpec, getChunkParameters(data, nonceOffset, chunk, last));
+        int written = cipher.doFinal(data, position, length, output, offset);
+        position += length;
+        remaining -= written;
+        chunk++;
+        return written;
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+        throw new EncryptionException(e);
+      }
+    }
+  }
+
+}
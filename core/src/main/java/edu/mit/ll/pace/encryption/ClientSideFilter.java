@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Column;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+
+/**
+ * Index over the ranges and columns that decrypted entries are checked against client side.
+ * <p>
+ * Ranges are merged and sorted by their start key, so the only ranges that can contain a key are found by binary search. Columns are hashed by family, each
+ * mapping to the set of qualifiers searched for within it. Checking an entry is therefore logarithmic in the number of ranges, and constant in the number of
+ * columns. A filter is immutable once built, and can be shared between threads.
+ */
+final class ClientSideFilter {
+
+  /**
+   * The merged ranges, sorted by start key, or null if entries are not filtered by range.
+   */
+  private final Range[] ranges;
+
+  /**
+   * Start key of each range, or null for a range with an infinite start key.
+   */
+  private final Key[] startKeys;
+
+  /**
+   * Map from column family to the column qualifiers searched for within it, or null if entries are not filtered by column. An empty set of qualifiers means the
+   * whole family is searched for.
+   */
+  private final Map<ByteSequence,Set<ByteSequence>> columns;
+
+  /**
+   * Build a filter.
+   *
+   * @param ranges
+   *          The ranges an entry must match one of. If empty, entries are not filtered by range.
+   * @param columns
+   *          The columns an entry must match one of. The column qualifier of a column may be null, in which case the whole column family matches. If empty,
+   *          entries are not filtered by column.
+   */
+  ClientSideFilter(Collection<Range> ranges, Collection<Column> columns) {
+    if (ranges.isEmpty()) {
+      this.ranges = null;
+      this.startKeys = null;
+    } else {
+      List<Range> merged = Range.mergeOverlapping(ranges);
+      this.ranges = merged.toArray(new Range[merged.size()]);
+      this.startKeys = new Key[this.ranges.length];
+      for (int i = 0; i < this.ranges.length; i++) {
+        startKeys[i] = this.ranges[i].isInfiniteStartKey() ? null : this.ranges[i].getStartKey();
+      }
+    }
+
+    if (columns.isEmpty()) {
+      this.columns = null;
+    } else {
+      this.columns = new HashMap<>();
+      for (Column column : columns) {
+        ByteSequence family = new ArrayByteSequence(column.getColumnFamily());
+        Set<ByteSequence> qualifiers = this.columns.get(family);
+
+        if (column.getColumnQualifier() == null) {
+          this.columns.put(family, new HashSet<>()); // The whole family matches, subsuming any qualifiers.
+        } else if (qualifiers == null) {
+          qualifiers = new HashSet<>();
+          qualifiers.add(new ArrayByteSequence(column.getColumnQualifier()));
+          this.columns.put(family, qualifiers);
+        } else if (!qualifiers.isEmpty()) {
+          qualifiers.add(new ArrayByteSequence(column.getColumnQualifier()));
+        }
+      }
+    }
+  }
+
+  /**
+   * Check whether the given key matches the filter.
+   *
+   * @param key
+   *          Decrypted key to check.
+   * @return Whether the key is within one of the ranges, and matches one of the columns.
+   */
+  boolean accept(Key key) {
+    return matchesRange(key) && matchesColumn(key);
+  }
+
+  /**
+   * Check whether the given key is in one of the ranges.
+   *
+   * @param key
+   *          Key to check.
+   * @return Whether the key is in one of the ranges, or true if entries are not filtered by range.
+   */
+  private boolean matchesRange(Key key) {
+    if (ranges == null) {
+      return true;
+    }
+
+    // Find the last range starting at or before the key. Merged ranges are disjoint, but a range excluding its start key may abut the end of the one before.
+    int low = 0, high = ranges.length - 1, candidate = -1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (startKeys[middle] == null || startKeys[middle].compareTo(key) <= 0) {
+        candidate = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+
+    return candidate >= 0 && (ranges[candidate].contains(key) || (candidate > 0 && ranges[candidate - 1].contains(key)));
+  }
+
+  /**
+   * Check whether the given key is in one of the columns.
+   *
+   * @param key
+   *          Key to check.
+   * @return Whether the key is in one of the columns, or true if entries are not filtered by column.
+   */
+  private boolean matchesColumn(Key key) {
+    if (columns == null) {
+      return true;
+    }
+
+    Set<ByteSequence> qualifiers = columns.get(key.getColumnFamilyData());
+    return qualifiers != null && (qualifiers.isEmpty() || qualifiers.contains(key.getColumnQualifierData()));
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import java.io.EOFException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Defines the set of codecs that can be used to compress a field before it is encrypted.
+ * <p>
+ * Ciphertext is indistinguishable from random data, so compression applied after encryption (e.g., RFile block compression) has no effect. Compressing before
+ * encryption recovers those savings, at the cost of revealing through the ciphertext length how compressible the plaintext was.
+ */
+public enum Compression {
+  NONE("NONE", 0), DEFLATE("DEFLATE", Deflater.DEFAULT_COMPRESSION), DEFLATE_FAST("DEFLATE_FAST", Deflater.BEST_SPEED);
+
+  /**
+   * Maximum ratio between the decompressed and compressed lengths that deflate can achieve. Used to reject recorded lengths that no valid compressed data could
+   * produce before allocating a buffer for them.
+   */
+  static final int MAX_COMPRESSION_RATIO = 1032;
+
+  /**
+   * Set of compression names mapped to the Compression enum object. Used to speed up name lookups.
+   */
+  private static final Map<String,Compression> codecs;
+  static {
+    codecs = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    for (Compression codec : values()) {
+      codecs.put(codec.name, codec);
+    }
+  }
+
+  /**
+   * Name of the codec.
+   */
+  private final String name;
+
+  /**
+   * Deflate compression level used by the codec.
+   */
+  private final int level;
+
+  /**
+   * Deflaters for the codec, one per thread as {@link Deflater} instances are stateful.
+   */
+  private final ThreadLocal<Deflater> deflaters;
+
+  /**
+   * Inflaters for the codec, one per thread as {@link Inflater} instances are stateful.
+   */
+  private final ThreadLocal<Inflater> inflaters;
+
+  /**
+   * Create the compression codec.
+   *
+   * @param name
+   *          Name of the codec.
+   * @param level
+   *          Deflate compression level used by the codec.
+   */
+  Compression(String name, int level) {
+    this.name = name;
+    this.level = level;
+
+    // The raw deflate format is used without the zlib header and checksum. As not every cipher authenticates its ciphertext, the decompressed length is
+    // recorded separately and the compressed data must produce exactly that many bytes.
+    this.deflaters = ThreadLocal.withInitial(() -> new Deflater(this.level, true));
+    this.inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+  }
+
+  /**
+   * Get the {@link String} representation of this codec.
+   *
+   * @return String representation of this codec.
+   */
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  /**
+   * Get the compression codec from its {@link String} representation.
+   * <p>
+   * This method is paired with {@link #toString()}, and will parse strings generated by that method.
+   *
+   * @param value
+   *          Value to parse.
+   * @return Compression for the value.
+   */
+  static Compression fromString(String value) {
+    Compression codec = codecs.get(value);
+    if (codec == null) {
+      throw new IllegalArgumentException("invalid name");
+    }
+    return codec;
+  }
+
+  /**
+   * Compress the given data, if it can be compressed into the space available.
+   *
+   * @param data
+   *          Buffer containing the data to compress.
+   * @param offset
+   *          Offset of the data in the buffer.
+   * @param length
+   *          Length of the data in the buffer.
+   * @param output
+   *          Buffer to write the compressed data to.
+   * @param outputOffset
+   *          Offset at which to write the compressed data.
+   * @param maxLength
+   *          Maximum number of bytes of compressed data to write.
+   * @return Length of the compressed data, or -1 if it did not fit in {@code maxLength} bytes.
+   */
+  int compress(byte[] data, int offset, int length, byte[] output, int outputOffset, int maxLength) {
+    if (this == NONE) {
+      throw new UnsupportedOperationException();
+    }
+
+    Deflater deflater = deflaters.get();
+    try {
+      deflater.setInput(data, offset, length);
+      deflater.finish();
+      int written = deflater.deflate(output, outputOffset, maxLength);
+      return deflater.finished() ? written : -1;
+    } finally {
+      deflater.reset();
+    }
+  }
+
+  /**
+   * Decompress the given data.
+   *
+   * @param data
+   *          Buffer containing the compressed data.
+   * @param offset
+   *          Offset of the compressed data in the buffer.
+   * @param length
+   *          Length of the compressed data in the buffer.
+   * @param output
+   *          Buffer to decompress into, which must be exactly the length of the decompressed data.
+   * @throws EOFException
+   *           Thrown if the compressed data does not hold enough data to fill the output.
+   * @throws EncryptionException
+   *           Thrown if the compressed data is malformed, or holds more data than fits in the output.
+   */
+  void decompress(byte[] data, int offset, int length, byte[] output) throws EOFException {
+    if (this == NONE) {
+      throw new UnsupportedOperationException();
+    }
+
+    Inflater inflater = inflaters.get();
+    try {
+      inflater.setInput(data, offset, length);
+      int position = 0;
+      while (position < output.length) {
+        int read = inflater.inflate(output, position, output.length - position);
+        if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+          throw new EOFException();
+        }
+        position += read;
+      }
+
+      // The compressed data must end exactly where the output is filled.
+      if ((!inflater.finished() && inflater.inflate(new byte[1]) != 0) || inflater.getRemaining() != 0) {
+        throw new EncryptionException("compressed data is longer than its recorded length");
+      }
+      if (!inflater.finished()) {
+        throw new EOFException();
+      }
+    } catch (DataFormatException e) {
+      throw new EncryptionException(e);
+    } finally {
+      inflater.reset();
+    }
+  }
+
+}
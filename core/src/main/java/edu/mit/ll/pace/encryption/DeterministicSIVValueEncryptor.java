@@ -15,50 +15,349 @@
  */
 package edu.mit.ll.pace.encryption;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
-import org.cryptomator.siv.SivMode;
 import org.cryptomator.siv.UnauthenticCiphertextException;
 
 /**
- * Defines the contract for classes that supports symmetric encryption and decryption of data.
+ * Deterministic authenticated encryption using AES-SIV, as defined in RFC 5297, with no associated data.
+ * <p>
+ * The key passed to this encryptor contains both the CTR key (first half) and the S2V key (second half). The output is "V || AES-CTR(Q, plaintext)", which is
+ * byte-for-byte identical to the output of {@link org.cryptomator.siv.SivMode} for the same keys and plaintext.
+ * <p>
+ * Expanding the AES key schedules and deriving the CMAC subkeys is a significant part of the cost of encrypting the short values typically found in keys. This
+ * material is therefore computed once per key and cached per thread, so that repeated encryptions with the same key version only do the block cipher work.
  */
 final class DeterministicSIVValueEncryptor extends ValueEncryptorBase {
 
   /**
-   * SIV cipher to use.
+   * AES block size in bytes.
    */
-  private final SivMode siv;
+  private static final int BLOCK_SIZE = 16;
 
   /**
-   * Creates an SIV encryptor to use for deterministic encryption.
+   * Maximum number of keys whose expanded material is cached by each thread.
    */
-  DeterministicSIVValueEncryptor() {
-    siv = new SivMode();
+  static final int KEY_CACHE_SIZE = 64;
+
+  /**
+   * Expanded material for a single SIV key.
+   */
+  private static final class SivKey {
+
+    /**
+     * AES-CBC with a zero IV, keyed with the S2V key. The last block of its output is the CBC-MAC used to compute the CMAC.
+     */
+    final Cipher mac;
+
+    /**
+     * AES-ECB keyed with the CTR key, used to generate the key stream.
+     */
+    final Cipher ctr;
+
+    /**
+     * CMAC subkey used when the last block is complete.
+     */
+    final byte[] k1;
+
+    /**
+     * CMAC subkey used when the last block is padded.
+     */
+    final byte[] k2;
+
+    /**
+     * CMAC of the zero block, which is the starting value of S2V.
+     */
+    final byte[] d;
+
+    /**
+     * Doubling of {@link #d}, used by S2V when the plaintext is shorter than a block.
+     */
+    final byte[] dblD;
+
+    SivKey(byte[] key) throws GeneralSecurityException {
+      int half = key.length / 2;
+
+      ctr = Cipher.getInstance("AES/ECB/NoPadding");
+      ctr.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, 0, half, "AES"));
+
+      mac = Cipher.getInstance("AES/CBC/NoPadding");
+      mac.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, half, key.length - half, "AES"), new IvParameterSpec(new byte[BLOCK_SIZE]));
+
+      // The CBC-MAC of a single zero block is L = AES(K, 0), from which the subkeys are derived.
+      k1 = dbl(mac.doFinal(new byte[BLOCK_SIZE]));
+      k2 = dbl(k1);
+      d = mac.doFinal(k1);
+      dblD = dbl(d);
+    }
   }
 
+  /**
+   * Per-thread state: the cached key material, in least-recently-used order, and a scratch buffer reused between calls.
+   */
+  private static final class ThreadState {
+
+    /**
+     * Cached key material, indexed by a copy of the raw key bytes.
+     */
+    final Map<ByteBuffer,SivKey> keys = new LinkedHashMap<ByteBuffer,SivKey>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer,SivKey> eldest) {
+        return size() > KEY_CACHE_SIZE;
+      }
+    };
+
+    /**
+     * Scratch space, grown as needed.
+     */
+    byte[] scratch = new byte[4 * BLOCK_SIZE];
+
+    /**
+     * Get the scratch buffer, making sure that it is at least the given length.
+     *
+     * @param length
+     *          Minimum length of the buffer.
+     * @return Scratch buffer.
+     */
+    byte[] scratch(int length) {
+      if (scratch.length < length) {
+        scratch = new byte[Math.max(length, 2 * scratch.length)];
+      }
+      return scratch;
+    }
+
+    /**
+     * Get the material for the given key, expanding and caching it if needed.
+     *
+     * @param key
+     *          Raw key, containing the CTR key followed by the S2V key.
+     * @return Expanded key material.
+     */
+    SivKey getKey(byte[] key) {
+      SivKey sivKey = keys.get(ByteBuffer.wrap(key));
+      if (sivKey == null) {
+        try {
+          sivKey = new SivKey(key);
+        } catch (GeneralSecurityException e) {
+          throw new EncryptionException(e);
+        }
+        // Copy the key, as the caller owns the array that was passed in.
+        keys.put(ByteBuffer.wrap(key.clone()), sivKey);
+      }
+      return sivKey;
+    }
+  }
+
+  /**
+   * State for each thread using this encryptor.
+   */
+  private final ThreadLocal<ThreadState> state = ThreadLocal.withInitial(ThreadState::new);
+
   @Override
   byte[] encrypt(byte[] key, byte[] data) {
-    // The key passed here contains both the AES and IV generation keys.
-    byte[] encKey = Arrays.copyOfRange(key, 0, key.length / 2);
-    byte[] macKey = Arrays.copyOfRange(key, key.length / 2, key.length);
+    return encrypt(key, data, 0, data.length, 0);
+  }
+
+  @Override
+  byte[] encrypt(byte[] key, byte[] data, int offset, int length, int headerLength) {
+    ThreadState state = this.state.get();
+    SivKey sivKey = state.getKey(key);
 
-    return siv.encrypt(encKey, macKey, data);
+    try {
+      byte[] output = new byte[headerLength + BLOCK_SIZE + length];
+      s2v(state, sivKey, data, offset, length, output, headerLength);
+      ctr(state, sivKey, output, headerLength, data, offset, length, output, headerLength + BLOCK_SIZE);
+      return output;
+    } catch (GeneralSecurityException e) {
+      throw new EncryptionException(e);
+    }
   }
 
   @Override
   byte[] decrypt(byte[] key, byte[] data) {
-    // The key passed here contains both the AES and IV generation keys.
-    byte[] encKey = Arrays.copyOfRange(key, 0, key.length / 2);
-    byte[] macKey = Arrays.copyOfRange(key, key.length / 2, key.length);
+    return decrypt(key, data, 0, data.length);
+  }
+
+  @Override
+  byte[] decrypt(byte[] key, byte[] data, int offset, int length) {
+    if (length < BLOCK_SIZE) {
+      throw new EncryptionException(new IllegalBlockSizeException("Input length must be greater than or equal " + BLOCK_SIZE + "."));
+    }
+
+    ThreadState state = this.state.get();
+    SivKey sivKey = state.getKey(key);
 
     try {
-      return siv.decrypt(encKey, macKey, data);
-    } catch (IllegalBlockSizeException | UnauthenticCiphertextException e) {
+      byte[] plaintext = new byte[length - BLOCK_SIZE];
+      ctr(state, sivKey, data, offset, data, offset + BLOCK_SIZE, plaintext.length, plaintext, 0);
+
+      byte[] iv = new byte[BLOCK_SIZE];
+      s2v(state, sivKey, plaintext, 0, plaintext.length, iv, 0);
+      if (!MessageDigest.isEqual(iv, Arrays.copyOfRange(data, offset, offset + BLOCK_SIZE))) {
+        throw new EncryptionException(new UnauthenticCiphertextException("authentication in SIV decryption failed"));
+      }
+      return plaintext;
+    } catch (GeneralSecurityException e) {
       throw new EncryptionException(e);
     }
   }
 
+  /**
+   * Compute S2V over the plaintext, with no associated data.
+   *
+   * @param state
+   *          State of the current thread.
+   * @param sivKey
+   *          Key material.
+   * @param data
+   *          Buffer holding the plaintext.
+   * @param offset
+   *          Offset of the plaintext.
+   * @param length
+   *          Length of the plaintext.
+   * @param output
+   *          Buffer that the synthetic IV is written to.
+   * @param outputOffset
+   *          Offset at which the synthetic IV is written.
+   */
+  private static void s2v(ThreadState state, SivKey sivKey, byte[] data, int offset, int length, byte[] output, int outputOffset)
+      throws GeneralSecurityException {
+    // The CMAC input is placed at the start of the scratch buffer, and its CBC-MAC output after it.
+    int blocks = Math.max(1, (length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    int paddedLength = blocks * BLOCK_SIZE;
+    byte[] scratch = state.scratch(2 * paddedLength);
+
+    byte[] subkey;
+    if (length >= BLOCK_SIZE) {
+      // T = plaintext xorend D.
+      System.arraycopy(data, offset, scratch, 0, length);
+      xor(scratch, length - BLOCK_SIZE, sivKey.d, BLOCK_SIZE);
+      subkey = length == paddedLength ? sivKey.k1 : sivKey.k2;
+      if (length != paddedLength) {
+        pad(scratch, length, paddedLength);
+      }
+    } else {
+      // T = dbl(D) xor pad(plaintext), which is always a complete block.
+      System.arraycopy(data, offset, scratch, 0, length);
+      pad(scratch, length, BLOCK_SIZE);
+      xor(scratch, 0, sivKey.dblD, BLOCK_SIZE);
+      subkey = sivKey.k1;
+    }
+
+    // CMAC(T): the last block is masked with the subkey, and the tag is the last block of the CBC-MAC.
+    xor(scratch, paddedLength - BLOCK_SIZE, subkey, BLOCK_SIZE);
+    sivKey.mac.doFinal(scratch, 0, paddedLength, scratch, paddedLength);
+    System.arraycopy(scratch, 2 * paddedLength - BLOCK_SIZE, output, outputOffset, BLOCK_SIZE);
+  }
+
+  /**
+   * Apply AES-CTR to the data, using the counter derived from the synthetic IV.
+   *
+   * @param state
+   *          State of the current thread.
+   * @param sivKey
+   *          Key material.
+   * @param iv
+   *          Buffer holding the synthetic IV.
+   * @param ivOffset
+   *          Offset of the synthetic IV.
+   * @param data
+   *          Buffer holding the input.
+   * @param offset
+   *          Offset of the input.
+   * @param length
+   *          Length of the input.
+   * @param output
+   *          Buffer that the output is written to.
+   * @param outputOffset
+   *          Offset at which the output is written.
+   */
+  private static void ctr(ThreadState state, SivKey sivKey, byte[] iv, int ivOffset, byte[] data, int offset, int length, byte[] output, int outputOffset)
+      throws GeneralSecurityException {
+    if (length == 0) {
+      return;
+    }
+
+    // Lay out the counter blocks, starting from Q = V with the 31st and 63rd bits (from the right) cleared, and encrypt them all at once.
+    int paddedLength = (length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    byte[] scratch = state.scratch(paddedLength);
+    System.arraycopy(iv, ivOffset, scratch, 0, BLOCK_SIZE);
+    scratch[8] &= (byte) 0x7f;
+    scratch[12] &= (byte) 0x7f;
+    for (int block = BLOCK_SIZE; block < paddedLength; block += BLOCK_SIZE) {
+      System.arraycopy(scratch, block - BLOCK_SIZE, scratch, block, BLOCK_SIZE);
+      for (int i = block + BLOCK_SIZE - 1; i >= block; i--) {
+        if (++scratch[i] != 0) {
+          break;
+        }
+      }
+    }
+    sivKey.ctr.doFinal(scratch, 0, paddedLength, scratch, 0);
+
+    for (int i = 0; i < length; i++) {
+      output[outputOffset + i] = (byte) (data[offset + i] ^ scratch[i]);
+    }
+  }
+
+  /**
+   * Multiply a block by x in GF(2^128), as defined in RFC 5297.
+   *
+   * @param block
+   *          Block to double.
+   * @return A new array holding the doubled block.
+   */
+  private static byte[] dbl(byte[] block) {
+    byte[] result = new byte[BLOCK_SIZE];
+    for (int i = 0; i < BLOCK_SIZE - 1; i++) {
+      result[i] = (byte) ((block[i] << 1) | ((block[i + 1] & 0xff) >>> 7));
+    }
+    result[BLOCK_SIZE - 1] = (byte) ((block[BLOCK_SIZE - 1] << 1) ^ ((block[0] & 0x80) == 0 ? 0 : 0x87));
+    return result;
+  }
+
+  /**
+   * XOR a value into a buffer.
+   *
+   * @param buffer
+   *          Buffer to modify.
+   * @param offset
+   *          Offset in the buffer at which to XOR the value.
+   * @param value
+   *          Value to XOR.
+   * @param length
+   *          Number of bytes of the value to XOR.
+   */
+  private static void xor(byte[] buffer, int offset, byte[] value, int length) {
+    for (int i = 0; i < length; i++) {
+      buffer[offset + i] ^= value[i];
+    }
+  }
+
+  /**
+   * Pad a partial block with a single one bit followed by zeros.
+   *
+   * @param buffer
+   *          Buffer to pad.
+   * @param length
+   *          Length of the data in the buffer.
+   * @param paddedLength
+   *          Length of the padded data.
+   */
+  private static void pad(byte[] buffer, int length, int paddedLength) {
+    buffer[length] = (byte) 0x80;
+    Arrays.fill(buffer, length + 1, paddedLength, (byte) 0);
+  }
+
 }
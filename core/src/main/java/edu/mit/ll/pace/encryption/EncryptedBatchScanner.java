@@ -23,6 +23,8 @@ import java.util.List;
 import java.util.Map.Entry;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.accumulo.core.client.BatchScanner;
@@ -34,10 +36,13 @@ import org.apache.accumulo.core.data.Column;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.user.WholeRowIterator;
 import org.apache.accumulo.core.security.Authorizations;
 import org.apache.accumulo.core.util.TextUtil;
 import org.apache.hadoop.io.Text;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import edu.mit.ll.pace.ItemProcessingIterator;
 import edu.mit.ll.pace.encryption.EntryEncryptor.ColumnFilterResult;
 
@@ -47,9 +52,24 @@ import edu.mit.ll.pace.encryption.EntryEncryptor.ColumnFilterResult;
  * It should be noted that while server side scan iterators can be set from this scanner ({@link #addScanIterator(IteratorSetting)},
  * {@link #clearScanIterators()}, {@link #removeScanIterator(String)}, and {@link #updateScanIteratorOption(String, String, String)}), the data will not be
  * decrypted on the server side. As such these server side will only be able to operate on unencrypted data and ciphertext, not decrypted plaintext.
+ * <p>
+ * If the encryption configuration packs rows, a {@link WholeRowIterator} is set on the server so that all the packed entries of a row are read together. They
+ * are unpacked into the entries that were written to them, and only the newest version of each entry is returned, unless it was deleted. Ranges are searched
+ * for on the server by row only, and column filters are applied on the client. Server side iterators set with a priority above
+ * {@link #PACKED_ROW_ITERATOR_PRIORITY} see encoded rows rather than packed entries.
  */
 public final class EncryptedBatchScanner implements BatchScanner {
 
+  /**
+   * Priority of the server side iterator that groups the packed entries of a row, which runs after any other scan iterator.
+   */
+  public static final int PACKED_ROW_ITERATOR_PRIORITY = 1000;
+
+  /**
+   * Name of the server side iterator that groups the packed entries of a row.
+   */
+  static final String PACKED_ROW_ITERATOR_NAME = "packedRows";
+
   /**
    * The underlying {@link BatchScanner} used to retrieve data from Accumulo.
    */
@@ -74,6 +94,16 @@ public final class EncryptedBatchScanner implements BatchScanner {
    */
   private SortedSet<Column> clientSideColumnFilters = new TreeSet<>();
 
+  /**
+   * Worker threads that decrypt entries read ahead by iterators, or null if entries are decrypted on the consuming thread.
+   */
+  private final ExecutorService decryptionPool;
+
+  /**
+   * Maximum number of batches each iterator reads ahead.
+   */
+  private final int maxBatchesInFlight;
+
   /**
    * Create an encrypted batch scanner.
    *
@@ -94,20 +124,120 @@ public final class EncryptedBatchScanner implements BatchScanner {
    */
   public EncryptedBatchScanner(Connector connector, String tableName, Authorizations authorizations, int numQueryThreads, EncryptionConfig cryptoConfig,
       EncryptionKeyContainer keys) throws TableNotFoundException {
+    this(connector, tableName, authorizations, numQueryThreads, cryptoConfig, keys, 0);
+  }
+
+  /**
+   * Create an encrypted batch scanner that decrypts entries using a pool of worker threads.
+   *
+   * @param connector
+   *          The connector for the Accumulo instance.
+   * @param tableName
+   *          Name of the table to write to.
+   * @param authorizations
+   *          The authorizations this user has for querying Accumulo.
+   * @param numQueryThreads
+   *          Maximimum number of query threads to use for this scanner.
+   * @param cryptoConfig
+   *          Configuration for the decryption.
+   * @param keys
+   *          Container with the keys to use for decryption.
+   * @param numDecryptionThreads
+   *          Number of threads used to decrypt entries. If 0, entries are decrypted on the thread consuming the iterator.
+   * @throws TableNotFoundException
+   *           Thrown if the table name is not found in the Accumulo instance.
+   */
+  public EncryptedBatchScanner(Connector connector, String tableName, Authorizations authorizations, int numQueryThreads, EncryptionConfig cryptoConfig,
+      EncryptionKeyContainer keys, int numDecryptionThreads) throws TableNotFoundException {
+    this(connector, tableName, authorizations, numQueryThreads, createEncryptor(cryptoConfig, keys), numDecryptionThreads);
+  }
+
+  /**
+   * Create an encrypted batch scanner that uses an existing, possibly shared, entry encryptor.
+   *
+   * @param connector
+   *          The connector for the Accumulo instance.
+   * @param tableName
+   *          Name of the table to write to.
+   * @param authorizations
+   *          The authorizations this user has for querying Accumulo.
+   * @param numQueryThreads
+   *          Maximimum number of query threads to use for this scanner.
+   * @param encryptor
+   *          The {@link EntryEncryptor} that will handle decryption.
+   * @throws TableNotFoundException
+   *           Thrown if the table name is not found in the Accumulo instance.
+   */
+  public EncryptedBatchScanner(Connector connector, String tableName, Authorizations authorizations, int numQueryThreads, EntryEncryptor encryptor)
+      throws TableNotFoundException {
+    this(connector, tableName, authorizations, numQueryThreads, encryptor, 0);
+  }
+
+  /**
+   * Create an encrypted batch scanner that uses an existing, possibly shared, entry encryptor and decrypts entries using a pool of worker threads.
+   *
+   * @param connector
+   *          The connector for the Accumulo instance.
+   * @param tableName
+   *          Name of the table to write to.
+   * @param authorizations
+   *          The authorizations this user has for querying Accumulo.
+   * @param numQueryThreads
+   *          Maximimum number of query threads to use for this scanner.
+   * @param encryptor
+   *          The {@link EntryEncryptor} that will handle decryption.
+   * @param numDecryptionThreads
+   *          Number of threads used to decrypt entries. If 0, entries are decrypted on the thread consuming the iterator.
+   * @throws TableNotFoundException
+   *           Thrown if the table name is not found in the Accumulo instance.
+   */
+  public EncryptedBatchScanner(Connector connector, String tableName, Authorizations authorizations, int numQueryThreads, EntryEncryptor encryptor,
+      int numDecryptionThreads) throws TableNotFoundException {
     checkArgument(connector != null, "connection is null");
     checkArgument(tableName != null, "tableName is null");
     checkArgument(authorizations != null, "authorizations is null");
-    checkArgument(cryptoConfig != null, "config is null");
-    checkArgument(keys != null, "keys is null");
+    checkArgument(encryptor != null, "encryptor is null");
+    checkArgument(numDecryptionThreads >= 0, "numDecryptionThreads is negative");
 
     this.scanner = connector.createBatchScanner(tableName, authorizations, numQueryThreads);
-    this.encryptor = new EntryEncryptor(cryptoConfig, keys);
+    this.encryptor = encryptor;
+    addPackedRowIterator();
+
+    // Read ahead enough batches to keep every worker busy while the consumer drains a finished batch.
+    this.maxBatchesInFlight = 2 * numDecryptionThreads;
+    this.decryptionPool = numDecryptionThreads == 0 ? null : Executors.newFixedThreadPool(numDecryptionThreads, new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("encrypted-batch-scanner-%d").build());
+  }
+
+  /**
+   * If rows are packed, set the server side iterator that returns all the packed entries of a row as a single entry, so that they can be merged.
+   */
+  private void addPackedRowIterator() {
+    if (encryptor.packsRows()) {
+      scanner.addScanIterator(new IteratorSetting(PACKED_ROW_ITERATOR_PRIORITY, PACKED_ROW_ITERATOR_NAME, WholeRowIterator.class));
+    }
+  }
+
+  /**
+   * Create the entry encryptor for the given configuration.
+   *
+   * @param cryptoConfig
+   *          Configuration for the decryption.
+   * @param keys
+   *          Container with the keys to use for decryption.
+   * @return The entry encryptor.
+   */
+  private static EntryEncryptor createEncryptor(EncryptionConfig cryptoConfig, EncryptionKeyContainer keys) {
+    checkArgument(cryptoConfig != null, "config is null");
+    checkArgument(keys != null, "keys is null");
+    return new EntryEncryptor(cryptoConfig, keys);
   }
 
   /**
    * {@inheritDoc}
    * <p>
-   * Automatically creates a set of server and client side ranges that most efficiently filter for the given ranges.
+   * Automatically creates a set of server and client side ranges that most efficiently filter for the given ranges. The server side ranges are sorted and
+   * merged, so that each entry is read from the tablet servers, and decrypted, at most once.
    *
    * @throws EncryptionException
    *           The reason for the failure can be retrieved by calling {@link EncryptionException#getCause()}.
@@ -117,16 +247,39 @@ public final class EncryptedBatchScanner implements BatchScanner {
     checkArgument(collection != null && collection.size() > 0, "ranges must be non null and contain at least 1 range");
 
     List<Range> serverSideRanges = new ArrayList<>();
-    clientSideRanges = new ArrayList<>();
+    boolean needsClientSideFiltering = false;
 
-    // Transform the ranges as needed to deal with different encryption configurations.
+    // Transform the ranges as needed to deal with different encryption configurations. The key versions are checked once for all the ranges.
+    encryptor.refreshKeyVersions();
     for (Range range : collection) {
-      if (encryptor.transformRange(range, serverSideRanges)) {
-        clientSideRanges.add(range);
+      if (encryptor.packsRows()) {
+        // Packed entries hold whole rows, so the server can only search for the rows, and the columns are filtered once unpacked.
+        encryptor.cachedTransformRange(getRowRange(range), serverSideRanges);
+        needsClientSideFiltering = true;
+      } else {
+        needsClientSideFiltering |= encryptor.cachedTransformRange(range, serverSideRanges);
       }
     }
 
-    scanner.setRanges(serverSideRanges);
+    // An entry passes the client side filter only if it is in one of its ranges, so once any range is filtered client side all of them must be, including those
+    // that were otherwise handled exactly on the server.
+    clientSideRanges = needsClientSideFiltering ? Range.mergeOverlapping(collection) : new ArrayList<>();
+
+    // Overlapping server side ranges, such as the unbounded ranges used when a field cannot be searched for, would return the same entries more than once.
+    scanner.setRanges(Range.mergeOverlapping(serverSideRanges));
+  }
+
+  /**
+   * Get the range of whole rows that covers the given range.
+   *
+   * @param range
+   *          Range to cover.
+   * @return Range of rows.
+   */
+  private static Range getRowRange(Range range) {
+    Text startRow = range.isInfiniteStartKey() ? null : range.getStartKey().getRow();
+    Text endRow = range.isInfiniteStopKey() ? null : range.getEndKey().getRow();
+    return new Range(startRow, true, endRow, true);
   }
 
   /**
@@ -141,6 +294,11 @@ public final class EncryptedBatchScanner implements BatchScanner {
   public void fetchColumnFamily(Text col) {
     checkArgument(col != null, "col is null");
 
+    if (encryptor.packsRows()) {
+      clientSideColumnFilters.add(new Column(TextUtil.getBytes(col), null, null));
+      return;
+    }
+
     ColumnFilterResult search = encryptor.getColumnFamilyFilter(col);
     for (Column filter : search.serverSideFilters) {
       scanner.fetchColumnFamily(new Text(filter.getColumnFamily()));
@@ -163,6 +321,11 @@ public final class EncryptedBatchScanner implements BatchScanner {
     checkArgument(colFam != null, "colFam is null");
     checkArgument(colQual != null, "colQual is null");
 
+    if (encryptor.packsRows()) {
+      clientSideColumnFilters.add(new Column(TextUtil.getBytes(colFam), TextUtil.getBytes(colQual), null));
+      return;
+    }
+
     ColumnFilterResult search = encryptor.getColumnFilter(colFam, colQual);
     for (Column column : search.serverSideFilters) {
       if (column.getColumnQualifier() == null) {
@@ -202,18 +365,28 @@ public final class EncryptedBatchScanner implements BatchScanner {
    */
   @Override
   public ItemProcessingIterator<Entry<Key,Value>> iterator() {
-    return new EncryptedScannerIterator(scanner.iterator(), encryptor, clientSideRanges, clientSideColumnFilters);
+    // A batch scanner makes no ordering guarantees, so decrypted batches are returned as soon as they are ready.
+    return new EncryptedScannerIterator(scanner.iterator(), encryptor, clientSideRanges, clientSideColumnFilters, decryptionPool, maxBatchesInFlight, false);
   }
 
   /* What remains are simply wrappers around BatchScanner. */
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * If rows are packed, the iterator that groups the packed entries of a row is kept.
+   */
   @Override
   public void clearScanIterators() {
     scanner.clearScanIterators();
+    addPackedRowIterator();
   }
 
   @Override
   public void close() {
+    if (decryptionPool != null) {
+      decryptionPool.shutdownNow();
+    }
     scanner.close();
   }
 
@@ -17,20 +17,49 @@ package edu.mit.ll.pace.encryption;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.apache.accumulo.core.client.BatchWriter;
 import org.apache.accumulo.core.client.BatchWriterConfig;
 import org.apache.accumulo.core.client.Connector;
 import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.security.SecurityErrorCode;
 import org.apache.accumulo.core.data.ColumnUpdate;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Mutation;
-import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.accumulo.core.data.TabletId;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import edu.mit.ll.pace.internal.MutableEntry;
 
 /**
  * Writes encrypted entries to Accumulo.
+ *
+ * <p>
+ * By default, mutations are encrypted on the thread that adds them. When created with a positive number of encryption threads, mutations are instead encrypted
+ * in parallel by a pool of worker threads, and handed to the underlying {@link BatchWriter} in the order they were added. The plaintext of mutations waiting to
+ * be encrypted is bounded by the maximum memory of the {@link BatchWriterConfig}; once that bound is reached, adding a mutation blocks until earlier mutations
+ * have been encrypted and written. In this mode encryption failures are reported as a {@link MutationsRejectedException}, and once a failure has been reported
+ * the writer will reject all further mutations.
+ * <p>
+ * If the encryption configuration packs rows, the updates of each mutation that share a visibility are written as a single encrypted entry, which is unpacked
+ * by {@link EncryptedBatchScanner}. Deletes are packed alongside the other updates, and hide older versions of their columns when the row is read.
  */
 public final class EncryptedBatchWriter implements BatchWriter {
 
@@ -49,6 +78,31 @@ public final class EncryptedBatchWriter implements BatchWriter {
    */
   private final boolean supportsDelete;
 
+  /**
+   * Worker threads that encrypt mutations, or null if mutations are encrypted on the calling thread.
+   */
+  private final ExecutorService encryptionPool;
+
+  /**
+   * Mutations submitted for encryption that have not yet been written, in the order they were added. Also guards the other pipeline state.
+   */
+  private final Deque<PendingMutation> pending = new ArrayDeque<>();
+
+  /**
+   * Maximum estimated size of the plaintext mutations held in {@link #pending}.
+   */
+  private final long maxPendingMemory;
+
+  /**
+   * Estimated size of the plaintext mutations held in {@link #pending}.
+   */
+  private long pendingMemory = 0;
+
+  /**
+   * The first encryption failure seen by the pipeline, if any.
+   */
+  private Throwable failure = null;
+
   /**
    * Create an encrypted batch writer.
    *
@@ -67,14 +121,94 @@ public final class EncryptedBatchWriter implements BatchWriter {
    */
   public EncryptedBatchWriter(Connector connector, String tableName, BatchWriterConfig batchConfig, EncryptionConfig cryptoConfig, EncryptionKeyContainer keys)
       throws TableNotFoundException {
+    this(connector, tableName, batchConfig, cryptoConfig, keys, 0);
+  }
+
+  /**
+   * Create an encrypted batch writer that encrypts mutations using a pool of worker threads.
+   *
+   * @param connector
+   *          The connector for the Accumulo instance.
+   * @param tableName
+   *          Name of the table to write to.
+   * @param batchConfig
+   *          Configuration for a {@link BatchWriter}.
+   * @param cryptoConfig
+   *          Configuration for the encryption.
+   * @param keys
+   *          Container with the keys to use for encryption.
+   * @param numEncryptionThreads
+   *          Number of threads used to encrypt mutations. If 0, mutations are encrypted on the thread that adds them.
+   * @throws TableNotFoundException
+   *           Thrown if the table name is not found in the Accumulo instance.
+   */
+  public EncryptedBatchWriter(Connector connector, String tableName, BatchWriterConfig batchConfig, EncryptionConfig cryptoConfig, EncryptionKeyContainer keys,
+      int numEncryptionThreads) throws TableNotFoundException {
+    this(connector, tableName, batchConfig, createEncryptor(cryptoConfig, keys), numEncryptionThreads);
+  }
+
+  /**
+   * Create an encrypted batch writer that uses an existing, possibly shared, entry encryptor.
+   *
+   * @param connector
+   *          The connector for the Accumulo instance.
+   * @param tableName
+   *          Name of the table to write to.
+   * @param batchConfig
+   *          Configuration for a {@link BatchWriter}.
+   * @param encryptor
+   *          The {@link EntryEncryptor} that will handle encryption.
+   * @throws TableNotFoundException
+   *           Thrown if the table name is not found in the Accumulo instance.
+   */
+  public EncryptedBatchWriter(Connector connector, String tableName, BatchWriterConfig batchConfig, EntryEncryptor encryptor) throws TableNotFoundException {
+    this(connector, tableName, batchConfig, encryptor, 0);
+  }
+
+  /**
+   * Create an encrypted batch writer that uses an existing, possibly shared, entry encryptor and encrypts mutations using a pool of worker threads.
+   *
+   * @param connector
+   *          The connector for the Accumulo instance.
+   * @param tableName
+   *          Name of the table to write to.
+   * @param batchConfig
+   *          Configuration for a {@link BatchWriter}.
+   * @param encryptor
+   *          The {@link EntryEncryptor} that will handle encryption.
+   * @param numEncryptionThreads
+   *          Number of threads used to encrypt mutations. If 0, mutations are encrypted on the thread that adds them.
+   * @throws TableNotFoundException
+   *           Thrown if the table name is not found in the Accumulo instance.
+   */
+  public EncryptedBatchWriter(Connector connector, String tableName, BatchWriterConfig batchConfig, EntryEncryptor encryptor, int numEncryptionThreads)
+      throws TableNotFoundException {
     checkArgument(connector != null, "connector is null");
     checkArgument(tableName != null, "tableName is null");
-    checkArgument(cryptoConfig != null, "config is null");
-    checkArgument(keys != null, "keys is null");
+    checkArgument(encryptor != null, "encryptor is null");
+    checkArgument(numEncryptionThreads >= 0, "numEncryptionThreads is negative");
 
     this.writer = connector.createBatchWriter(tableName, batchConfig);
-    this.encryptor = new EntryEncryptor(cryptoConfig, keys);
+    this.encryptor = encryptor;
     this.supportsDelete = this.encryptor.canBeDeleteServerSide();
+    this.maxPendingMemory = (batchConfig == null ? new BatchWriterConfig() : batchConfig).getMaxMemory();
+    this.encryptionPool = numEncryptionThreads == 0 ? null : Executors.newFixedThreadPool(numEncryptionThreads, new ThreadFactoryBuilder().setDaemon(true)
+        .setNameFormat("encrypted-batch-writer-%d").build());
+  }
+
+  /**
+   * Create the entry encryptor for the given configuration.
+   *
+   * @param cryptoConfig
+   *          Configuration for the encryption.
+   * @param keys
+   *          Container with the keys to use for encryption.
+   * @return The entry encryptor.
+   */
+  private static EntryEncryptor createEncryptor(EncryptionConfig cryptoConfig, EncryptionKeyContainer keys) {
+    checkArgument(cryptoConfig != null, "config is null");
+    checkArgument(keys != null, "keys is null");
+    return new EntryEncryptor(cryptoConfig, keys);
   }
 
   /**
@@ -83,41 +217,220 @@ public final class EncryptedBatchWriter implements BatchWriter {
    * @param mutation
    *          The mutation to encrypt.
    * @throws EncryptionException
-   *           The reason for the failure can be retrieved by calling {@link EncryptionException#getCause()}.
+   *           Thrown if encryption happens on the calling thread and fails. The reason for the failure can be retrieved by calling
+   *           {@link EncryptionException#getCause()}.
+   * @throws MutationsRejectedException
+   *           Thrown if the underlying writer rejects mutations, or if encryption happens on worker threads and fails for this or an earlier mutation.
    */
   @Override
   public void addMutation(Mutation mutation) throws MutationsRejectedException {
-    for (ColumnUpdate update : mutation.getUpdates()) {
-      MutableEntry entry = new MutableEntry(mutation.getRow(), update);
+    // Reading the updates here freezes the mutation, so the caller is free to discard it once we return.
+    byte[] row = mutation.getRow();
+    List<ColumnUpdate> updates = mutation.getUpdates();
 
-      if (update.isDeleted()) {
-        if (!supportsDelete) {
+    // Packed deletes are written as tombstones inside the packed entry, so they do not need to find the encrypted keys they delete.
+    if (!supportsDelete && !encryptor.packsRows()) {
+      for (ColumnUpdate update : updates) {
+        if (update.isDeleted()) {
           throw new IllegalArgumentException("cannot delete entries when there are fields encrypted using non-deterministic encryption");
         }
+      }
+    }
 
+    if (encryptionPool == null) {
+      write(encryptMutation(row, updates));
+      return;
+    }
+
+    synchronized (pending) {
+      checkFailure();
+
+      long size = mutation.estimatedMemoryUsed();
+      pending.add(new PendingMutation(encryptionPool.submit(() -> encryptMutation(row, updates)), size));
+      pendingMemory += size;
+
+      // Write whatever is already encrypted, and block on the oldest mutation while too much plaintext is waiting.
+      while (!pending.isEmpty() && (pending.peek().encrypted.isDone() || pendingMemory > maxPendingMemory)) {
+        writeNextPending();
+      }
+    }
+  }
+
+  /**
+   * Encrypt the updates of a mutation.
+   * <p>
+   * Updates are encrypted directly into mutations, and updates whose encrypted rows are the same are written to the same mutation. When the row is not
+   * encrypted, or is encrypted deterministically from itself, a mutation is therefore encrypted into a single mutation.
+   *
+   * @param row
+   *          Row of the mutation.
+   * @param updates
+   *          Updates in the mutation.
+   * @return Encrypted mutations, one for each encrypted row.
+   */
+  private List<Mutation> encryptMutation(byte[] row, List<ColumnUpdate> updates) {
+    if (encryptor.packsRows()) {
+      return encryptPackedMutation(row, updates);
+    }
+
+    MutationGroups encryptedMutations = new MutationGroups();
+    for (ColumnUpdate update : updates) {
+      MutableEntry entry = new MutableEntry(row, update);
+
+      if (update.isDeleted()) {
         // Many keys might need to be deleted, one for each combination of key versions.
         for (Key deleteKey : encryptor.getDeleteKeys(entry.toKey())) {
           MutableEntry encryptedKey = new MutableEntry(deleteKey);
 
-          Mutation encryptedMutation = new Mutation(encryptedKey.row);
+          Mutation encryptedMutation = encryptedMutations.get(encryptedKey.row);
           if (update.hasTimestamp()) {
-            encryptedMutation.putDelete(encryptedKey.colF, encryptedKey.colQ, new ColumnVisibility(encryptedKey.colVis), encryptedKey.timestamp);
+            encryptedMutation.putDelete(encryptedKey.colF, encryptedKey.colQ, VisibilityPlan.of(encryptedKey.colVis).visibility, encryptedKey.timestamp);
           } else {
-            encryptedMutation.putDelete(encryptedKey.colF, encryptedKey.colQ, new ColumnVisibility(encryptedKey.colVis));
+            encryptedMutation.putDelete(encryptedKey.colF, encryptedKey.colQ, VisibilityPlan.of(encryptedKey.colVis).visibility);
           }
-          writer.addMutation(encryptedMutation);
         }
       } else {
-        MutableEntry encryptedEntry = new MutableEntry(encryptor.encrypt(new MutableEntry(mutation.getRow(), update).toEntry()));
-
-        Mutation encryptedMutation = new Mutation(encryptedEntry.row);
-        if (update.hasTimestamp()) {
-          encryptedMutation.put(encryptedEntry.colF, encryptedEntry.colQ, new ColumnVisibility(encryptedEntry.colVis), encryptedEntry.timestamp,
-              encryptedEntry.value);
-        } else {
-          encryptedMutation.put(encryptedEntry.colF, encryptedEntry.colQ, new ColumnVisibility(encryptedEntry.colVis), encryptedEntry.value);
-        }
-        writer.addMutation(encryptedMutation);
+        encryptEntry(entry, update.hasTimestamp(), encryptedMutations);
+      }
+    }
+
+    return encryptedMutations.toList();
+  }
+
+  /**
+   * Encrypt the updates of a mutation, packing the updates that share a visibility into a single entry.
+   *
+   * @param row
+   *          Row of the mutation.
+   * @param updates
+   *          Updates in the mutation, including deletes.
+   * @return Encrypted mutations, one for each encrypted row.
+   */
+  private List<Mutation> encryptPackedMutation(byte[] row, List<ColumnUpdate> updates) {
+    // Group the updates by visibility, keeping the order in which each visibility first appears.
+    Map<ByteBuffer,List<ColumnUpdate>> updatesByVisibility = new LinkedHashMap<>();
+    for (ColumnUpdate update : updates) {
+      updatesByVisibility.computeIfAbsent(ByteBuffer.wrap(update.getColumnVisibility()), visibility -> new ArrayList<>()).add(update);
+    }
+
+    MutationGroups encryptedMutations = new MutationGroups();
+    for (List<ColumnUpdate> group : updatesByVisibility.values()) {
+      MutableEntry packed = PackedRow.pack(row, group.get(0).getColumnVisibility(), group);
+      encryptEntry(packed, PackedRow.hasTimestamp(group), encryptedMutations);
+    }
+    return encryptedMutations.toList();
+  }
+
+  /**
+   * Encrypt an entry, and add it to the mutation for its encrypted row.
+   *
+   * @param entry
+   *          Entry to encrypt.
+   * @param hasTimestamp
+   *          Whether the entry's timestamp was set by the client. If not, the tablet server assigns it.
+   * @param encryptedMutations
+   *          The encrypted mutations, by row.
+   */
+  private void encryptEntry(MutableEntry entry, boolean hasTimestamp, MutationGroups encryptedMutations) {
+    MutableEntry encryptedEntry = encryptor.encryptMutable(entry);
+
+    Mutation encryptedMutation = encryptedMutations.get(encryptedEntry.row);
+    if (hasTimestamp) {
+      encryptedMutation.put(encryptedEntry.colF, encryptedEntry.colQ, VisibilityPlan.of(encryptedEntry.colVis).visibility, encryptedEntry.timestamp,
+          encryptedEntry.value);
+    } else {
+      encryptedMutation.put(encryptedEntry.colF, encryptedEntry.colQ, VisibilityPlan.of(encryptedEntry.colVis).visibility, encryptedEntry.value);
+    }
+  }
+
+  /**
+   * Wait for the oldest pending mutation to be encrypted, then write it. Must be called while holding the lock on {@link #pending}.
+   *
+   * @throws MutationsRejectedException
+   *           Thrown if the mutation could not be encrypted, or was rejected by the underlying writer.
+   */
+  private void writeNextPending() throws MutationsRejectedException {
+    PendingMutation next = pending.poll();
+    pendingMemory -= next.size;
+
+    List<Mutation> encryptedMutations;
+    try {
+      encryptedMutations = next.encrypted.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw fail(e);
+    } catch (ExecutionException e) {
+      throw fail(e.getCause());
+    }
+
+    write(encryptedMutations);
+  }
+
+  /**
+   * Write encrypted mutations to the underlying writer.
+   *
+   * @param encryptedMutations
+   *          Mutations to write.
+   * @throws MutationsRejectedException
+   *           Thrown if the underlying writer rejects the mutations.
+   */
+  private void write(List<Mutation> encryptedMutations) throws MutationsRejectedException {
+    for (Mutation encryptedMutation : encryptedMutations) {
+      writer.addMutation(encryptedMutation);
+    }
+  }
+
+  /**
+   * Record a pipeline failure, abandoning all pending mutations. Must be called while holding the lock on {@link #pending}.
+   *
+   * @param cause
+   *          Reason for the failure.
+   * @return Exception to throw to the caller.
+   */
+  private MutationsRejectedException fail(Throwable cause) {
+    failure = cause;
+    for (PendingMutation abandoned : pending) {
+      abandoned.encrypted.cancel(false);
+    }
+    pending.clear();
+    pendingMemory = 0;
+    return rejected(cause);
+  }
+
+  /**
+   * Throw if the pipeline has previously failed. Must be called while holding the lock on {@link #pending}.
+   *
+   * @throws MutationsRejectedException
+   *           Thrown if the pipeline has previously failed.
+   */
+  private void checkFailure() throws MutationsRejectedException {
+    if (failure != null) {
+      throw rejected(failure);
+    }
+  }
+
+  /**
+   * Create the exception used to report an encryption failure.
+   *
+   * @param cause
+   *          Reason for the failure.
+   * @return The exception.
+   */
+  private static MutationsRejectedException rejected(Throwable cause) {
+    return new MutationsRejectedException(null, Collections.emptyList(), new HashMap<TabletId,Set<SecurityErrorCode>>(), Collections.emptyList(), 1, cause);
+  }
+
+  /**
+   * Write all pending mutations to the underlying writer.
+   *
+   * @throws MutationsRejectedException
+   *           Thrown if a mutation could not be encrypted, or was rejected by the underlying writer.
+   */
+  private void drainPending() throws MutationsRejectedException {
+    synchronized (pending) {
+      checkFailure();
+      while (!pending.isEmpty()) {
+        writeNextPending();
       }
     }
   }
@@ -131,11 +444,106 @@ public final class EncryptedBatchWriter implements BatchWriter {
 
   @Override
   public void flush() throws MutationsRejectedException {
+    if (encryptionPool != null) {
+      drainPending();
+    }
     writer.flush();
   }
 
   @Override
   public void close() throws MutationsRejectedException {
-    writer.close();
+    if (encryptionPool == null) {
+      writer.close();
+      return;
+    }
+
+    // Always release the worker threads and close the underlying writer, but report the first failure.
+    MutationsRejectedException rejected = null;
+    try {
+      drainPending();
+    } catch (MutationsRejectedException e) {
+      rejected = e;
+    } finally {
+      encryptionPool.shutdownNow();
+    }
+
+    try {
+      writer.close();
+    } catch (MutationsRejectedException e) {
+      if (rejected == null) {
+        throw e;
+      }
+      rejected.addSuppressed(e);
+    }
+
+    if (rejected != null) {
+      throw rejected;
+    }
+  }
+
+  /**
+   * A mutation that has been submitted for encryption.
+   */
+  private static final class PendingMutation {
+
+    /**
+     * The encrypted mutations, once available.
+     */
+    final Future<List<Mutation>> encrypted;
+
+    /**
+     * Estimated size of the plaintext mutation.
+     */
+    final long size;
+
+    PendingMutation(Future<List<Mutation>> encrypted, long size) {
+      this.encrypted = encrypted;
+      this.size = size;
+    }
+  }
+
+  /**
+   * The encrypted mutations for a single plaintext mutation, with one mutation for each encrypted row.
+   */
+  private static final class MutationGroups {
+
+    /**
+     * Encrypted mutations by row, in the order their rows were first seen.
+     */
+    private final Map<ByteBuffer,Mutation> mutations = new LinkedHashMap<>();
+
+    /**
+     * Row of the most recently used mutation. Consecutive updates usually encrypt to the same row, so this avoids hashing the row for them.
+     */
+    private byte[] lastRow = null;
+
+    /**
+     * The most recently used mutation.
+     */
+    private Mutation lastMutation = null;
+
+    /**
+     * Get the mutation for the given encrypted row, creating it if needed.
+     *
+     * @param row
+     *          Encrypted row.
+     * @return Mutation for the row.
+     */
+    Mutation get(byte[] row) {
+      if (lastMutation == null || !Arrays.equals(lastRow, row)) {
+        lastMutation = mutations.computeIfAbsent(ByteBuffer.wrap(row), key -> new Mutation(row));
+        lastRow = row;
+      }
+      return lastMutation;
+    }
+
+    /**
+     * Get the encrypted mutations.
+     *
+     * @return Encrypted mutations.
+     */
+    List<Mutation> toList() {
+      return new ArrayList<>(mutations.values());
+    }
   }
 }
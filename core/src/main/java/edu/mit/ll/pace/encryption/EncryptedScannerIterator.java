@@ -15,25 +15,49 @@
  */
 package edu.mit.ll.pace.encryption;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.SortedMap;
 import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.apache.accumulo.core.data.Column;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.user.WholeRowIterator;
 
 import edu.mit.ll.pace.ItemProcessingIterator;
+import edu.mit.ll.pace.internal.MutableEntry;
 
 /**
  * Reads encrypted entries from Accumulo.
+ *
+ * <p>
+ * By default, entries are decrypted and filtered on the thread consuming this iterator. If created with an executor, entries are instead read ahead from the
+ * underlying iterator in batches, which are decrypted and filtered by the executor while the consumer drains earlier results. The number of batches read ahead
+ * is bounded. Batches are returned in the order they were read unless the iterator is unordered, in which case each batch is returned as soon as it is ready;
+ * this matches the semantics of a {@link org.apache.accumulo.core.client.BatchScanner}, which makes no ordering guarantees.
  */
 final class EncryptedScannerIterator implements ItemProcessingIterator<Entry<Key,Value>> {
 
+  /**
+   * Number of encrypted entries in a read-ahead batch.
+   */
+  static final int READ_AHEAD_BATCH_SIZE = 128;
+
   /**
    * The underlying iterator that contains the data that will be decrypted.
    */
@@ -45,18 +69,46 @@ final class EncryptedScannerIterator implements ItemProcessingIterator<Entry<Key
   private final EntryEncryptor encryptor;
 
   /**
-   * The set of ranges that an entry must match to be returned.
+   * The ranges and columns that an entry must match to be returned.
    * <p>
    * These are handled client side, as it was not possible to push this filtering to the server.
    */
-  private final List<Range> clientSideRanges;
+  private final ClientSideFilter filter;
 
   /**
-   * The set of columns that an entry must match to be returned.
-   * <p>
-   * These are handled client side, as it was not possible to push this filtering to the server.
+   * Decrypts read-ahead batches, or null if entries are decrypted on the consuming thread.
    */
-  private final SortedSet<Column> clientSideColumnFilters;
+  private final Executor executor;
+
+  /**
+   * Tracks completion of read-ahead batches when unordered, otherwise null.
+   */
+  private final CompletionService<List<DecryptedEntry>> completionService;
+
+  /**
+   * Maximum number of batches that are read ahead.
+   */
+  private final int maxBatchesInFlight;
+
+  /**
+   * Whether batches are returned in the order they were read.
+   */
+  private final boolean ordered;
+
+  /**
+   * Batches that have been read ahead, in the order they were read.
+   */
+  private final Deque<Future<List<DecryptedEntry>>> batchesInFlight = new ArrayDeque<>();
+
+  /**
+   * Decrypted entries that have not yet been returned.
+   */
+  private Iterator<DecryptedEntry> batch = null;
+
+  /**
+   * Entries decrypted on the consuming thread from a single encrypted row, which holds more than one entry if rows are packed.
+   */
+  private final List<DecryptedEntry> unpacked = new ArrayList<>();
 
   /**
    * Used to track the next element to return. Needed as the underlying iterator's {@link Iterator#hasNext()} doesn't match this iterator's {@link #hasNext()}.
@@ -64,7 +116,7 @@ final class EncryptedScannerIterator implements ItemProcessingIterator<Entry<Key
   private Entry<Key,Value> next = null;
 
   /**
-   * Keep track of the encrypted entry that resulted in
+   * Keep track of the encrypted entry that resulted in the last returned entry.
    */
   private Entry<Key,Value> unprocessedEntry = null;
 
@@ -82,10 +134,36 @@ final class EncryptedScannerIterator implements ItemProcessingIterator<Entry<Key
    */
   EncryptedScannerIterator(Iterator<Entry<Key,Value>> iterator, EntryEncryptor encryptor, List<Range> clientSideRanges,
       SortedSet<Column> clientSideColumnFilters) {
+    this(iterator, encryptor, clientSideRanges, clientSideColumnFilters, null, 0, true);
+  }
+
+  /**
+   * Wrap the given iterator, decrypting and filtering entries in batches using the given executor.
+   *
+   * @param iterator
+   *          The underlying iterator that contains the data that will be decrypted.
+   * @param encryptor
+   *          The {@link EntryEncryptor} to use to decrypt values.
+   * @param clientSideRanges
+   *          The set of ranges that an entry must match to be returned.
+   * @param clientSideColumnFilters
+   *          The set of columns that an entry must match to be returned.
+   * @param executor
+   *          Executor used to decrypt batches. If null, entries are decrypted on the consuming thread.
+   * @param maxBatchesInFlight
+   *          Maximum number of batches that are read ahead.
+   * @param ordered
+   *          Whether entries are returned in the order they were read from the underlying iterator.
+   */
+  EncryptedScannerIterator(Iterator<Entry<Key,Value>> iterator, EntryEncryptor encryptor, List<Range> clientSideRanges,
+      SortedSet<Column> clientSideColumnFilters, Executor executor, int maxBatchesInFlight, boolean ordered) {
     this.iterator = iterator;
     this.encryptor = encryptor;
-    this.clientSideRanges = clientSideRanges;
-    this.clientSideColumnFilters = clientSideColumnFilters;
+    this.filter = new ClientSideFilter(clientSideRanges, clientSideColumnFilters);
+    this.executor = executor;
+    this.maxBatchesInFlight = Math.max(maxBatchesInFlight, 1);
+    this.ordered = ordered;
+    this.completionService = executor == null || ordered ? null : new ExecutorCompletionService<>(executor);
   }
 
   @Override
@@ -119,44 +197,162 @@ final class EncryptedScannerIterator implements ItemProcessingIterator<Entry<Key
     next = null;
     unprocessedEntry = null;
 
-    while (iterator.hasNext()) {
-      Entry<Key,Value> original = iterator.next();
-      Entry<Key,Value> entry = encryptor.decrypt(original);
+    if (executor == null) {
+      if (!encryptor.packsRows()) {
+        while (iterator.hasNext()) {
+          Entry<Key,Value> original = iterator.next();
+          Entry<Key,Value> entry = decryptAndFilter(original);
 
-      // Check to see if the decrypted entry matches one of the set clientSideRanges.
-      if (clientSideRanges.size() > 0) {
-        boolean matches = false;
-        for (Range range : clientSideRanges) {
-          if (range.contains(entry.getKey())) {
-            matches = true;
+          // We've found the next entry and can end the loop.
+          if (entry != null) {
+            next = entry;
+            unprocessedEntry = original;
             break;
           }
         }
-        if (!matches) {
-          continue;
-        }
+        return;
       }
 
-      // Check to see if the decrypted entry matches one of the filtered columns.
-      if (clientSideColumnFilters.size() > 0) {
-        boolean matches = false;
-        for (Column column : clientSideColumnFilters) {
-          // Column family always set and must be checked. Column qualifier may not be set.
-          if (Arrays.equals(column.getColumnFamily(), entry.getKey().getColumnFamilyData().getBackingArray())
-              && (column.getColumnQualifier() == null || Arrays.equals(column.getColumnQualifier(), entry.getKey().getColumnQualifierData().getBackingArray()))) {
-            matches = true;
-            break;
-          }
+      while (batch == null || !batch.hasNext()) {
+        if (!iterator.hasNext()) {
+          return;
         }
-        if (!matches) {
-          continue;
+        unpacked.clear();
+        decryptAndFilter(iterator.next(), unpacked);
+        batch = unpacked.iterator();
+      }
+
+      DecryptedEntry decrypted = batch.next();
+      next = decrypted.entry;
+      unprocessedEntry = decrypted.original;
+      return;
+    }
+
+    while (batch == null || !batch.hasNext()) {
+      readAhead();
+      if (batchesInFlight.isEmpty()) {
+        return;
+      }
+      batch = takeBatch().iterator();
+    }
+
+    DecryptedEntry decrypted = batch.next();
+    next = decrypted.entry;
+    unprocessedEntry = decrypted.original;
+  }
+
+  /**
+   * Read batches from the underlying iterator and submit them for decryption, until the maximum number of batches are in flight.
+   */
+  private void readAhead() {
+    while (batchesInFlight.size() < maxBatchesInFlight && iterator.hasNext()) {
+      // The underlying iterator is not thread-safe, so it is only ever read from the consuming thread.
+      List<Entry<Key,Value>> originals = new ArrayList<>(READ_AHEAD_BATCH_SIZE);
+      while (originals.size() < READ_AHEAD_BATCH_SIZE && iterator.hasNext()) {
+        originals.add(iterator.next());
+      }
+
+      Callable<List<DecryptedEntry>> decryptBatch = () -> {
+        List<DecryptedEntry> decrypted = new ArrayList<>(originals.size());
+        for (Entry<Key,Value> original : originals) {
+          decryptAndFilter(original, decrypted);
         }
+        return decrypted;
+      };
+
+      if (ordered) {
+        FutureTask<List<DecryptedEntry>> task = new FutureTask<>(decryptBatch);
+        executor.execute(task);
+        batchesInFlight.add(task);
+      } else {
+        batchesInFlight.add(completionService.submit(decryptBatch));
+      }
+    }
+  }
+
+  /**
+   * Wait for the next decrypted batch. In ordered mode this is the oldest batch; otherwise it is whichever batch finishes first.
+   *
+   * @return The decrypted entries in the batch.
+   */
+  private List<DecryptedEntry> takeBatch() {
+    try {
+      Future<List<DecryptedEntry>> future;
+      if (ordered) {
+        future = batchesInFlight.peek();
+      } else {
+        future = completionService.take();
+      }
+      batchesInFlight.remove(future);
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new EncryptionException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new EncryptionException(e.getCause());
+    }
+  }
+
+  /**
+   * Decrypt an entry, and check it against the client side filters.
+   *
+   * @param original
+   *          The encrypted entry.
+   * @return The decrypted entry, or null if it does not match the client side filters.
+   */
+  private Entry<Key,Value> decryptAndFilter(Entry<Key,Value> original) {
+    Entry<Key,Value> entry = encryptor.decrypt(original);
+
+    // Check to see if the decrypted entry matches the client side ranges and columns.
+    if (!filter.accept(entry.getKey())) {
+      return null;
+    }
+
+    return entry;
+  }
+
+  /**
+   * Decrypt an entry, unpacking it if rows are packed, and add the results that match the client side filters to the given list.
+   * <p>
+   * If rows are packed, the entry is a row encoded by {@link WholeRowIterator}. Each of its packed entries is decrypted and unpacked, and the unpacked entries
+   * are merged so that only the newest version of each entry is returned, unless that version was deleted.
+   *
+   * @param original
+   *          The encrypted entry.
+   * @param results
+   *          List to add the decrypted entries to.
+   */
+  private void decryptAndFilter(Entry<Key,Value> original, List<DecryptedEntry> results) {
+    if (!encryptor.packsRows()) {
+      Entry<Key,Value> entry = decryptAndFilter(original);
+      if (entry != null) {
+        results.add(new DecryptedEntry(entry, original));
       }
+      return;
+    }
+
+    SortedMap<Key,Value> packedEntries;
+    try {
+      packedEntries = WholeRowIterator.decodeRow(original.getKey(), original.getValue());
+    } catch (IOException e) {
+      throw new EncryptionException(e);
+    }
+
+    List<DecryptedEntry> columns = new ArrayList<>();
+    for (Entry<Key,Value> packed : packedEntries.entrySet()) {
+      // The packed entry is unpacked straight from its decrypted fields, so only the unpacked entries are materialized.
+      for (Entry<Key,Value> entry : PackedRow.unpack(encryptor.decryptMutable(new MutableEntry(packed)))) {
+        columns.add(new DecryptedEntry(entry, packed));
+      }
+    }
 
-      // We've found the next entry and can end the loop.
-      next = entry;
-      unprocessedEntry = original;
-      break;
+    for (DecryptedEntry column : PackedRow.latest(columns, column -> column.entry.getKey())) {
+      if (filter.accept(column.entry.getKey())) {
+        results.add(column);
+      }
     }
   }
 
@@ -165,6 +361,12 @@ final class EncryptedScannerIterator implements ItemProcessingIterator<Entry<Key
     throw new UnsupportedOperationException();
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * If rows are packed, this is the packed entry holding the last returned entry, which also holds the other columns packed with it, rather than the encoded
+   * row read from the underlying iterator.
+   */
   @Override
   public Entry<Key,Value> unprocessed() {
     if (next != null || unprocessedEntry == null) {
@@ -172,4 +374,25 @@ final class EncryptedScannerIterator implements ItemProcessingIterator<Entry<Key
     }
     return unprocessedEntry;
   }
+
+  /**
+   * A decrypted entry, along with the encrypted entry it was read from.
+   */
+  private static final class DecryptedEntry {
+
+    /**
+     * The decrypted entry.
+     */
+    final Entry<Key,Value> entry;
+
+    /**
+     * The encrypted entry, as read from the underlying iterator.
+     */
+    final Entry<Key,Value> original;
+
+    DecryptedEntry(Entry<Key,Value> entry, Entry<Key,Value> original) {
+      this.entry = entry;
+      this.original = original;
+    }
+  }
 }
@@ -35,14 +35,32 @@ import edu.mit.ll.pace.EntryField;
  * The actual configuration is a list of {@link FieldEncryptorConfig} objects, that specify how data will be encrypted and written to a given field. As having
  * two {@link FieldEncryptorConfig} with the same destination field would lead to conflicts, only a single {@link FieldEncryptorConfig} is allowed for a
  * destination field.
+ * <p>
+ * Optionally, the columns written to a row with the same visibility can be packed into a single entry before being encrypted (see {@link #packRows}).
  */
 public final class EncryptionConfig {
 
+  /**
+   * Name of the INI section holding options that apply to the whole entry, rather than to a single field.
+   */
+  static final String ENTRY_SECTION = "entry";
+
   /**
    * Read-only of {@link FieldEncryptorConfig} that define how encryption of an entry will happen.
    */
   final List<FieldEncryptorConfig> fieldEncryptorConfigs;
 
+  /**
+   * Whether the columns of a mutation that share a visibility are packed into a single encrypted entry.
+   * <p>
+   * Packing removes the per-entry cost of encryption, such as the key lookup, IV, visibility shares, and header, from all but one of the columns, and reduces
+   * the number of keys stored for wide rows. Each packed entry has its own random column qualifier, so later writes to a row add packed entries rather than
+   * replacing earlier ones, and whole rows are read and merged on the client, keeping the newest version of each column. Deletes are packed as tombstones.
+   * Column filters are always applied on the client. The row must be kept, unencrypted or encrypted deterministically from itself, as must the column
+   * qualifier.
+   */
+  final boolean packRows;
+
   /**
    * Creates an EncryptionConfig from a set of field encryptor configurations.
    *
@@ -50,16 +68,42 @@ public final class EncryptionConfig {
    *          The encryptor configs that define how encryption of an entry will happen.
    */
   EncryptionConfig(List<FieldEncryptorConfig> fieldEncryptorConfigs) {
+    this(fieldEncryptorConfigs, false);
+  }
+
+  /**
+   * Creates an EncryptionConfig from a set of field encryptor configurations.
+   *
+   * @param fieldEncryptorConfigs
+   *          The encryptor configs that define how encryption of an entry will happen.
+   * @param packRows
+   *          Whether the columns of a mutation that share a visibility are packed into a single encrypted entry.
+   */
+  EncryptionConfig(List<FieldEncryptorConfig> fieldEncryptorConfigs, boolean packRows) {
     checkArgument(fieldEncryptorConfigs != null, "fieldEncryptorConfigs is null");
     checkArgument(fieldEncryptorConfigs.size() != 0, "fieldEncryptorConfigs is empty");
 
     // Scan for duplicate destinations.
     Set<EntryField> destinations = new HashSet<>();
     Set<EntryField> sources = new HashSet<>();
+    Set<EntryField> recoverableSources = new HashSet<>();
     for (FieldEncryptorConfig config : fieldEncryptorConfigs) {
       checkArgument(!destinations.contains(config.destination), "duplicate destination in fieldEncryptorConfigs");
       destinations.add(config.destination);
       sources.addAll(config.sources);
+      if (config.valueEncryptor.isRecoverable()) {
+        recoverableSources.addAll(config.sources);
+      }
+    }
+
+    // Fields that are only stored as tokens would be lost, so they must also be encrypted by a recoverable encryptor.
+    for (FieldEncryptorConfig config : fieldEncryptorConfigs) {
+      if (!config.valueEncryptor.isRecoverable()) {
+        for (EntryField source : config.sources) {
+          checkArgument(source == EntryField.COLUMN_VISIBILITY || recoverableSources.contains(source), source.toString() + " is only encrypted by "
+              + config.valueEncryptor.toString() + ", which cannot be decrypted");
+        }
+      }
     }
 
     // Scan for duplicate
@@ -67,6 +111,21 @@ public final class EncryptionConfig {
       checkArgument(sources.contains(destination), destination.toString() + " was a destination, but it was not a source.");
     }
 
+    if (packRows) {
+      // The packed entries of a row are read together by row on the server, so the row must be stored as is or encrypted deterministically from itself.
+      for (FieldEncryptorConfig config : fieldEncryptorConfigs) {
+        if (config.destination == EntryField.ROW) {
+          checkArgument(config.valueEncryptor.isDeterministic() && config.sources.size() == 1 && config.sources.contains(EntryField.ROW),
+              "rows can only be packed if the row is encrypted deterministically from itself");
+        }
+      }
+      checkArgument(!sources.contains(EntryField.ROW) || destinations.contains(EntryField.ROW), "rows can only be packed if the row is kept");
+
+      // Each packed entry is kept distinct from the others in its row by a random column qualifier, which would be lost if it was cleared.
+      checkArgument(!sources.contains(EntryField.COLUMN_QUALIFIER) || destinations.contains(EntryField.COLUMN_QUALIFIER),
+          "rows can only be packed if the column qualifier is kept");
+    }
+
     /*
      * TODO: Behavior with duplicate sources is undefined. This could lead to problems on decrypt. Consider the following situations: Encrypt with config:
      * colFamily = E(row) Update table: row = "new" Encrypt with config: colQualifier = E(row) Decrypt with config: row = D(colFamily), row = D(colQualifier) In
@@ -74,6 +133,7 @@ public final class EncryptionConfig {
      * is nothing that stops that.
      */
     this.fieldEncryptorConfigs = Collections.unmodifiableList(fieldEncryptorConfigs);
+    this.packRows = packRows;
   }
 
   /**
@@ -89,6 +149,10 @@ public final class EncryptionConfig {
       config.write(configIni);
     }
 
+    if (packRows) {
+      configIni.add(ENTRY_SECTION).put("packRows", true);
+    }
+
     configIni.store(out);
   }
 }
@@ -32,6 +32,9 @@ public class EncryptionConfigBuilder {
   // For definitions of these values see FieldEncryptorConfig.
   private List<FieldEncryptorConfig> fieldEncryptorConfigs = new ArrayList<>();
 
+  // For the definition of this value see EncryptionConfig.
+  private boolean packRows = false;
+
   /**
    * Add a field encryptor config.
    *
@@ -60,6 +63,18 @@ public class EncryptionConfigBuilder {
     return this;
   }
 
+  /**
+   * Set whether the columns of a mutation that share a visibility are packed into a single encrypted entry.
+   *
+   * @param packRows
+   *          Whether to pack rows.
+   * @return Builder.
+   */
+  public EncryptionConfigBuilder setPackRows(boolean packRows) {
+    this.packRows = packRows;
+    return this;
+  }
+
   /**
    * Read the configuration from a Reader.
    *
@@ -71,7 +86,11 @@ public class EncryptionConfigBuilder {
     Ini configIni = new Ini(in);
 
     for (Section section : configIni.values()) {
-      addFieldEncryptorConfig(new FieldEncryptorConfigBuilder().readFromIni(section).build());
+      if (section.getName().equals(EncryptionConfig.ENTRY_SECTION)) {
+        setPackRows(section.containsKey("packRows") ? Boolean.parseBoolean(section.get("packRows")) : false);
+      } else {
+        addFieldEncryptorConfig(new FieldEncryptorConfigBuilder().readFromIni(section).build());
+      }
     }
 
     return this;
@@ -83,6 +102,6 @@ public class EncryptionConfigBuilder {
    * @return Built config.
    */
   public EncryptionConfig build() {
-    return new EncryptionConfig(fieldEncryptorConfigs);
+    return new EncryptionConfig(fieldEncryptorConfigs, packRows);
   }
 }
@@ -148,4 +148,28 @@ public interface EncryptionKeyContainer {
    */
   byte[] getAttributeKey(String attribute, String id, int version, int length) throws IllegalKeyRequestException;
 
+  /**
+   * Get the encryption key for the given attribute if the user holds it, without throwing an exception if they do not.
+   * <p>
+   * This is used to find which branches of a visibility expression the user can decrypt, where missing keys are expected and common. The default implementation
+   * calls {@link #getAttributeKey(String, String, int, int)} and catches the exception; implementations should override it to avoid constructing exceptions.
+   *
+   * @param attribute
+   *          Name of the attribute whose key is being retrieved.
+   * @param id
+   *          Id of the key to retrieve.
+   * @param version
+   *          Version of the key to retrieve.
+   * @param length
+   *          Length of the key to return in bits.
+   * @return byte[] with the requested encryption key, or null if the user lacks the permissions to obtain it.
+   */
+  default byte[] findAttributeKey(String attribute, String id, int version, int length) {
+    try {
+      return getAttributeKey(attribute, id, version, length);
+    } catch (IllegalKeyRequestException e) {
+      return null;
+    }
+  }
+
 }
@@ -37,10 +37,12 @@ import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.PartialKey;
 import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
-import org.apache.accumulo.core.security.ColumnVisibility;
 import org.apache.accumulo.core.util.TextUtil;
 import org.apache.hadoop.io.Text;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableSet;
 
 import edu.mit.ll.pace.EntryField;
@@ -48,6 +50,14 @@ import edu.mit.ll.pace.internal.MutableEntry;
 
 /**
  * Encrypts an Accumulo {@literal Entry<Key,Value>} based on the supplied configuration.
+ * <p>
+ * Entry encryptors are safe for concurrent use by multiple threads, provided the {@link EncryptionKeyContainer} they are created with is. A single instance can
+ * be shared by any number of {@link EncryptedBatchWriter} and {@link EncryptedBatchScanner} instances.
+ * <p>
+ * The server side ranges and columns generated for a query are cached in a bounded LRU cache, keyed by the query. Sharing an entry encryptor between scanners
+ * therefore also shares the cost of encrypting their search terms. The versions of the keys used to encrypt the searchable fields are checked before each call
+ * that plans a query, and once for each call to {@link EncryptedBatchScanner#setRanges(Collection)} however many ranges it is given. If the key container
+ * reports a new set of versions, the cached plans are dropped and the queries are planned again.
  */
 public final class EntryEncryptor {
 
@@ -80,6 +90,32 @@ public final class EntryEncryptor {
     }
   }
 
+  /**
+   * Cached result of transforming a range.
+   */
+  private static final class RangePlan {
+
+    /**
+     * Server side ranges.
+     */
+    final List<Range> serverSideRanges;
+
+    /**
+     * Whether the range also needs to be searched for client side.
+     */
+    final boolean needsClientSideFiltering;
+
+    RangePlan(List<Range> serverSideRanges, boolean needsClientSideFiltering) {
+      this.serverSideRanges = serverSideRanges;
+      this.needsClientSideFiltering = needsClientSideFiltering;
+    }
+  }
+
+  /**
+   * Maximum number of query plans cached by each entry encryptor.
+   */
+  static final int QUERY_PLAN_CACHE_SIZE = 4096;
+
   /**
    * A list of the {@link FieldEncryptor} objects that make up this entry encryptor.
    */
@@ -95,6 +131,27 @@ public final class EntryEncryptor {
    */
   private final Set<EntryField> sources;
 
+  /**
+   * The field encryptors whose output can be searched for server side, and whose search terms therefore depend on the versions of their keys.
+   */
+  private final List<FieldEncryptor> searchableEncryptors;
+
+  /**
+   * Versions of the keys of the searchable fields that the cached query plans were made with. For each searchable field, the number of key versions followed by
+   * the versions themselves.
+   */
+  private int[] searchableKeyVersions;
+
+  /**
+   * Whether the columns of a mutation that share a visibility are packed into a single entry before encryption.
+   */
+  private final boolean packRows;
+
+  /**
+   * Cache of planned queries, keyed by either a {@link Range} or a {@link Column}, and holding either a {@link RangePlan} or a {@link ColumnFilterResult}.
+   */
+  private final Cache<Object,Object> queryPlans = CacheBuilder.newBuilder().maximumSize(QUERY_PLAN_CACHE_SIZE).recordStats().build();
+
   /**
    * Create an entry encryptor.
    *
@@ -111,13 +168,20 @@ public final class EntryEncryptor {
     encryptors = new ArrayList<>(config.fieldEncryptorConfigs.size());
     destinationMap = new HashMap<>(config.fieldEncryptorConfigs.size());
     sources = new HashSet<>();
+    searchableEncryptors = new ArrayList<>();
+    packRows = config.packRows;
 
     for (FieldEncryptorConfig fieldEncryptorConfig : config.fieldEncryptorConfigs) {
       FieldEncryptor fieldEncryptor = new FieldEncryptor(fieldEncryptorConfig, keys);
       encryptors.add(fieldEncryptor);
       destinationMap.put(fieldEncryptorConfig.destination, fieldEncryptor);
       sources.addAll(fieldEncryptorConfig.sources);
+
+      if (fieldEncryptorConfig.valueEncryptor.isDeterministic() && fieldEncryptorConfig.destination != EntryField.VALUE) {
+        searchableEncryptors.add(fieldEncryptor);
+      }
     }
+    searchableKeyVersions = getSearchableKeyVersions();
   }
 
   /**
@@ -129,10 +193,19 @@ public final class EntryEncryptor {
    */
   public Entry<Key,Value> encrypt(Entry<Key,Value> entry) {
     checkArgument(entry != null, "entry is null");
+    return encryptMutable(new MutableEntry(entry)).toEntry();
+  }
 
-    MutableEntry wrapped = new MutableEntry(entry);
-    MutableEntry result = new MutableEntry(entry);
-    ColumnVisibility visibility = entry.getKey().getColumnVisibilityParsed();
+  /**
+   * Encrypt the given entry, without converting it to or from an {@link Entry}.
+   *
+   * @param entry
+   *          Entry to encrypt. It is not modified.
+   * @return Encrypted entry. Fields that are not encrypted share their bytes with the given entry.
+   */
+  MutableEntry encryptMutable(MutableEntry entry) {
+    MutableEntry result = entry.cloneEntry();
+    VisibilityPlan visibility = VisibilityPlan.of(entry.colVis);
 
     // Remove source fields that are encrypted but not replaced with encrypted data.
     // Ignore column visibility, timestamp, and delete as these are needed for correct parsing by Accumulo.
@@ -150,13 +223,13 @@ public final class EntryEncryptor {
     // Encrypt the various fields.
     try {
       for (FieldEncryptor fieldEncryptor : encryptors) {
-        fieldEncryptor.encrypt(wrapped, result, visibility);
+        fieldEncryptor.encrypt(entry, result, visibility);
       }
     } catch (IOException e) { // IO exceptions won't be thrown in practice as we are operating on in-memory streams.
       throw new EncryptionException(e);
     }
 
-    return result.toEntry();
+    return result;
   }
 
   /**
@@ -168,21 +241,137 @@ public final class EntryEncryptor {
    */
   public Entry<Key,Value> decrypt(Entry<Key,Value> entry) {
     checkArgument(entry != null, "entry is null");
+    return decryptMutable(new MutableEntry(entry)).toEntry();
+  }
 
-    MutableEntry wrapped = new MutableEntry(entry);
-    MutableEntry result = new MutableEntry(entry);
-    ColumnVisibility visibility = entry.getKey().getColumnVisibilityParsed();
+  /**
+   * Decrypt the given entry, without converting it to or from an {@link Entry}.
+   *
+   * @param entry
+   *          Entry to decrypt. It is not modified.
+   * @return Decrypted entry. Fields that are not encrypted share their bytes with the given entry, and if no field of the key was encrypted, the decrypted
+   *         entry's key is the original key.
+   */
+  MutableEntry decryptMutable(MutableEntry entry) {
+    MutableEntry result = entry.cloneEntry();
+    VisibilityPlan visibility = VisibilityPlan.of(entry.colVis);
 
     // Decrypt the various fields.
     try {
       for (FieldEncryptor fieldEncryptor : encryptors) {
-        fieldEncryptor.decrypt(wrapped, result, visibility);
+        fieldEncryptor.decrypt(entry, result, visibility);
       }
     } catch (IOException e) { // IO exceptions won't be thrown in practice as we are operating on in-memory streams.
       throw new EncryptionException(e);
     }
 
-    return result.toEntry();
+    return result;
+  }
+
+  /**
+   * Get the number of times a visibility field encryption key was found in the decryption key cache, summed over all fields.
+   * <p>
+   * Keys are only cached for fields configured with a visibility key cache (see {@link FieldEncryptorConfig}). A hit means the key for an entry was found
+   * without decrypting any of its shares.
+   *
+   * @return Number of cache hits.
+   */
+  public long getDecryptedKeyCacheHitCount() {
+    return getDecryptedKeyCacheStats().hitCount();
+  }
+
+  /**
+   * Get the number of times a visibility field encryption key was not found in the decryption key cache, and had to be reconstructed from its shares, summed
+   * over all fields.
+   *
+   * @return Number of cache misses.
+   */
+  public long getDecryptedKeyCacheMissCount() {
+    return getDecryptedKeyCacheStats().missCount();
+  }
+
+  /**
+   * Get the number of times a range or column was found in the query plan cache, and its server side filters did not need to be encrypted again.
+   *
+   * @return Number of cache hits.
+   */
+  public long getQueryPlanCacheHitCount() {
+    return queryPlans.stats().hitCount();
+  }
+
+  /**
+   * Get the number of times a range or column was not found in the query plan cache, either because it had not been planned before or because the plans were
+   * dropped because the key container reported new key versions.
+   *
+   * @return Number of cache misses.
+   */
+  public long getQueryPlanCacheMissCount() {
+    return queryPlans.stats().missCount();
+  }
+
+  /**
+   * Check whether the versions of the keys used to search for encrypted fields have changed since they were last checked, and if so drop the cached query
+   * plans, so that queries also search for values encrypted with the new keys.
+   * <p>
+   * The public planning methods call this themselves. Callers planning several queries at once call it a single time and then use the methods that only consult
+   * the cache, such as {@link #cachedTransformRange(Range, Collection)}, so that the key container is read once rather than once per query.
+   */
+  synchronized void refreshKeyVersions() {
+    int[] versions = getSearchableKeyVersions();
+    if (!Arrays.equals(versions, searchableKeyVersions)) {
+      searchableKeyVersions = versions;
+      queryPlans.invalidateAll();
+    }
+  }
+
+  /**
+   * Get the current versions of the keys used to encrypt the searchable fields.
+   *
+   * @return For each searchable field, the number of key versions followed by the versions themselves.
+   */
+  private int[] getSearchableKeyVersions() {
+    List<int[]> fieldVersions = new ArrayList<>(searchableEncryptors.size());
+    int length = 0;
+    for (FieldEncryptor encryptor : searchableEncryptors) {
+      int[] versions = encryptor.getKeyVersions();
+      fieldVersions.add(versions);
+      length += versions.length + 1;
+    }
+
+    int[] result = new int[length];
+    int offset = 0;
+    for (int[] versions : fieldVersions) {
+      result[offset++] = versions.length;
+      System.arraycopy(versions, 0, result, offset, versions.length);
+      offset += versions.length;
+    }
+    return result;
+  }
+
+  /**
+   * Get the combined statistics for the decryption key caches of all fields.
+   *
+   * @return Combined cache statistics. If no field caches keys, all counts are zero.
+   */
+  private CacheStats getDecryptedKeyCacheStats() {
+    CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+    for (FieldEncryptor fieldEncryptor : encryptors) {
+      CacheStats fieldStats = fieldEncryptor.getDecryptedKeyCacheStats();
+      if (fieldStats != null) {
+        stats = stats.plus(fieldStats);
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * Checks whether the columns of a mutation that share a visibility are packed into a single entry before encryption. If so, decrypted entries hold the packed
+   * columns, which are read with {@link PackedRow#unpack(MutableEntry)}.
+   *
+   * @return Whether rows are packed.
+   */
+  boolean packsRows() {
+    return packRows;
   }
 
   /**
@@ -254,11 +443,42 @@ public final class EntryEncryptor {
    */
   public ColumnFilterResult getColumnFamilyFilter(Text col) {
     checkArgument(col != null, "col is null");
+    refreshKeyVersions();
+    return cachedColumnFamilyFilter(col);
+  }
+
+  /**
+   * Get the filter for the given value from the query plan cache, planning it if needed, without checking whether the key versions have changed.
+   *
+   * @param col
+   *          Column family to filter.
+   * @return Results with columns to filter server side and whether client side filtering is needed.
+   * @see #refreshKeyVersions()
+   */
+  ColumnFilterResult cachedColumnFamilyFilter(Text col) {
+    checkArgument(col != null, "col is null");
 
     MutableEntry key = new MutableEntry();
     key.colF = TextUtil.getBytes(col);
 
-    return getColumnFamilyFilter(key, ImmutableSet.of(EntryField.COLUMN_FAMILY));
+    Column id = new Column(key.colF, null, null);
+    ColumnFilterResult result = (ColumnFilterResult) queryPlans.getIfPresent(id);
+    if (result == null) {
+      result = cacheable(getColumnFamilyFilter(key, ImmutableSet.of(EntryField.COLUMN_FAMILY)));
+      queryPlans.put(id, result);
+    }
+    return result;
+  }
+
+  /**
+   * Make a column filter result safe to cache and share between callers.
+   *
+   * @param result
+   *          Result to wrap.
+   * @return Result whose server side filters cannot be modified.
+   */
+  private static ColumnFilterResult cacheable(ColumnFilterResult result) {
+    return new ColumnFilterResult(Collections.unmodifiableCollection(result.serverSideFilters), result.needsClientSideFiltering);
   }
 
   /**
@@ -300,7 +520,43 @@ public final class EntryEncryptor {
   public ColumnFilterResult getColumnFilter(Text colFam, Text colQual) {
     checkArgument(colFam != null, "colFam is null");
     checkArgument(colQual != null, "colQual is null");
+    refreshKeyVersions();
+    return cachedColumnFilter(colFam, colQual);
+  }
 
+  /**
+   * Get the filter for the given value from the query plan cache, planning it if needed, without checking whether the key versions have changed.
+   *
+   * @param colFam
+   *          Column family to filter.
+   * @param colQual
+   *          Column qualifier to filter.
+   * @return Results with columns to filter server side and whether client side filtering is needed.
+   * @see #refreshKeyVersions()
+   */
+  ColumnFilterResult cachedColumnFilter(Text colFam, Text colQual) {
+    checkArgument(colFam != null, "colFam is null");
+    checkArgument(colQual != null, "colQual is null");
+
+    Column id = new Column(TextUtil.getBytes(colFam), TextUtil.getBytes(colQual), null);
+    ColumnFilterResult result = (ColumnFilterResult) queryPlans.getIfPresent(id);
+    if (result == null) {
+      result = cacheable(planColumnFilter(colFam, colQual));
+      queryPlans.put(id, result);
+    }
+    return result;
+  }
+
+  /**
+   * Get the filter for the given value, without consulting the query plan cache.
+   *
+   * @param colFam
+   *          Column family to filter.
+   * @param colQual
+   *          Column qualifier to filter.
+   * @return Results with columns to filter server side and whether client side filtering is needed.
+   */
+  private ColumnFilterResult planColumnFilter(Text colFam, Text colQual) {
     Set<EntryField> fields = ImmutableSet.of(EntryField.COLUMN_FAMILY, EntryField.COLUMN_QUALIFIER);
     MutableEntry key = new MutableEntry();
     key.colF = TextUtil.getBytes(colFam);
@@ -350,7 +606,47 @@ public final class EntryEncryptor {
   public boolean transformRange(Range range, Collection<Range> serverSideRanges) {
     checkArgument(range != null, "range is null");
     checkArgument(serverSideRanges != null, "serverSideRanges is null");
+    refreshKeyVersions();
+    return cachedTransformRange(range, serverSideRanges);
+  }
+
+  /**
+   * Converts the range to a set of encrypted server side range queries using the query plan cache, planning it if needed, without checking whether the key
+   * versions have changed.
+   *
+   * @param range
+   *          Range to convert.
+   * @param serverSideRanges
+   *          List of server side filters.
+   * @return Whether this range still needs to be searched for client side.
+   * @see #refreshKeyVersions()
+   */
+  boolean cachedTransformRange(Range range, Collection<Range> serverSideRanges) {
+    checkArgument(range != null, "range is null");
+    checkArgument(serverSideRanges != null, "serverSideRanges is null");
+
+    RangePlan plan = (RangePlan) queryPlans.getIfPresent(range);
+    if (plan == null) {
+      List<Range> ranges = new ArrayList<>();
+      boolean needsClientSideFiltering = planRange(range, ranges);
+      plan = new RangePlan(Collections.unmodifiableList(ranges), needsClientSideFiltering);
+      queryPlans.put(range, plan);
+    }
 
+    serverSideRanges.addAll(plan.serverSideRanges);
+    return plan.needsClientSideFiltering;
+  }
+
+  /**
+   * Converts the range to a set of encrypted server side range queries, without consulting the query plan cache.
+   *
+   * @param range
+   *          Range to convert.
+   * @param serverSideRanges
+   *          List of server side filters.
+   * @return Whether this range still needs to be searched for client side.
+   */
+  private boolean planRange(Range range, Collection<Range> serverSideRanges) {
     // If only the value is encrypted, then the key can be searched server side.
     if (destinationMap.size() == 1 && destinationMap.containsKey(EntryField.VALUE)) {
       serverSideRanges.add(range);
@@ -441,7 +737,9 @@ public final class EntryEncryptor {
         }
       } else { // Encrypted field.
         if (prefixHasVariance || !destinationMap.get(field).canBeFilteredServerSide(equalFields)) {
-          appendServerSideRanges(serverSideRanges, range, startKeys, endKeys, prefix);
+          if (field != EntryField.ROW || !appendSegmentPrefixRanges(serverSideRanges, range)) {
+            appendServerSideRanges(serverSideRanges, range, startKeys, endKeys, prefix);
+          }
           return true;
         } else {
           startKeys = getServerSideFilterKeys(startKeys, field, startKey, false);
@@ -461,6 +759,44 @@ public final class EntryEncryptor {
     return false;
   }
 
+  /**
+   * If the row is encrypted in segments, and every row in the range starts with the same whole segments, append server side ranges covering the rows whose
+   * encrypted form starts with those segments.
+   * <p>
+   * Every row in the range starts with a prefix of the start row when the end of the range is no later than the first row following that prefix. The longest
+   * such prefix ending in a complete segment is searched for, under each key version. The resulting ranges may contain rows outside the original range, so it
+   * must also be checked client side.
+   *
+   * @param serverSideRanges
+   *          List of server side filters.
+   * @param range
+   *          Range to convert.
+   * @return Whether server side ranges were appended.
+   */
+  private boolean appendSegmentPrefixRanges(Collection<Range> serverSideRanges, Range range) {
+    FieldEncryptor encryptor = destinationMap.get(EntryField.ROW);
+    if (!encryptor.isRowSegmented() || range.isInfiniteStartKey() || range.isInfiniteStopKey()) {
+      return false;
+    }
+
+    byte[] startRow = range.getStartKey().getRowData().toArray();
+    int[] prefixLengths = encryptor.getSearchablePrefixLengths(startRow);
+
+    for (int i = prefixLengths.length - 1; i >= 0; i--) {
+      Text following = Range.followingPrefix(new Text(Arrays.copyOf(startRow, prefixLengths[i])));
+      int comparison = following == null ? -1 : range.getEndKey().compareTo(new Key(following));
+
+      if (comparison < 0 || (comparison == 0 && !range.isEndKeyInclusive())) {
+        for (byte[] prefix : encryptor.getServerSidePrefixValues(startRow, prefixLengths[i])) {
+          serverSideRanges.add(Range.prefix(new Text(prefix)));
+        }
+        return true;
+      }
+    }
+
+    return false;
+  }
+
   /**
    * Append the server side filter keys for the given field to the existing filters.
    *
@@ -16,42 +16,130 @@
 package edu.mit.ll.pace.encryption;
 
 import static com.google.common.base.Preconditions.checkArgument;
-import static edu.mit.ll.pace.internal.Utils.VISIBILITY_CHARSET;
+import static edu.mit.ll.pace.internal.Utils.EMPTY;
 import static edu.mit.ll.pace.internal.Utils.xor;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.security.SecureRandom;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.accumulo.core.data.Key;
-import org.apache.accumulo.core.security.ColumnVisibility;
-import org.apache.accumulo.core.security.ColumnVisibility.Node;
 import org.apache.accumulo.core.security.ColumnVisibility.NodeType;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.io.WritableUtils;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
 import edu.mit.ll.pace.EntryField;
 import edu.mit.ll.pace.IllegalKeyRequestException;
 import edu.mit.ll.pace.encryption.EncryptionKeyContainer.KeyWithVersion;
+import edu.mit.ll.pace.encryption.VisibilityPlan.PlanNode;
 import edu.mit.ll.pace.internal.MutableEntry;
+import edu.mit.ll.pace.internal.Utils;
 
 /**
  * Encrypts an Accumulo field based on the supplied configuration.
+ * <p>
+ * Field encryptors are safe for concurrent use by multiple threads. Scratch buffers are kept per thread, and reused between calls.
  */
 final class FieldEncryptor {
 
   /**
-   * Secure random number generator.
+   * Scratch buffers used while encrypting or decrypting a field.
+   */
+  private static final class Buffers {
+
+    /**
+     * Holds the concatenated plaintext of the source fields while they are encrypted.
+     */
+    private byte[] plaintext = EMPTY;
+
+    /**
+     * Holds the compressed plaintext, when compression is enabled. Swapped with {@link #plaintext} when the compressed form is used.
+     */
+    private byte[] compressed = EMPTY;
+
+    /**
+     * Holds the key metadata written to the front of the ciphertext.
+     */
+    private DataOutputBuffer header = new DataOutputBuffer();
+
+    /**
+     * Used to read the key metadata from the front of the ciphertext.
+     */
+    private final DataInputBuffer headerInput = new DataInputBuffer();
+
+    /**
+     * Drop any buffers that have grown too large to be worth retaining between calls.
+     */
+    private void release() {
+      if (plaintext.length > MAX_RETAINED_BUFFER_SIZE) {
+        plaintext = EMPTY;
+      }
+      if (compressed.length > MAX_RETAINED_BUFFER_SIZE) {
+        compressed = EMPTY;
+      }
+      if (header.getData().length > MAX_RETAINED_BUFFER_SIZE) {
+        header = new DataOutputBuffer();
+      }
+    }
+  }
+
+  /**
+   * Buffers larger than this are released after use instead of being held for the next call.
+   */
+  private static final int MAX_RETAINED_BUFFER_SIZE = 1 << 20;
+
+  /**
+   * Maximum number of bytes in the encoding of a vint.
+   */
+  private static final int MAX_VINT_SIZE = 5;
+
+  /**
+   * Number of leading bytes of each encrypted row segment that are prepended to the plaintext of the next segment, chaining each segment to those before it.
+   */
+  static final int SEGMENT_CHAIN_LENGTH = 16;
+
+  /**
+   * Compression flag for a plaintext that is stored raw.
    */
-  private static final SecureRandom random = new SecureRandom();
+  static final byte COMPRESSION_FLAG_RAW = 0;
+
+  /**
+   * Compression flag for a plaintext that is stored compressed, as "uncompressed length || compressed data".
+   */
+  static final byte COMPRESSION_FLAG_COMPRESSED = 1;
+
+  /**
+   * Written in place of the length of an encrypted share to mark a share wrapped with {@link KeyWrap}, whose length is fixed by the key length. Shares
+   * encrypted with the field's {@link ValueEncryptorBase} always have a non-negative length.
+   */
+  static final int KEY_WRAP_FLAG = -1;
+
+  /**
+   * Written before the shares of a visibility field encryption key when they follow the {@link VisibilityPlan#minimized minimized} expression rather than the
+   * expression as written, and followed by that tree as written by {@link VisibilityPlan#writeTree}. Its vint encoding is the single byte -2, which never
+   * starts the non-negative key version that otherwise begins the shares.
+   */
+  static final byte MINIMIZED_TREE_FLAG = -2;
+
+  /**
+   * Scratch buffers for the current thread. Field encryptor calls never nest, so these are shared by all field encryptors.
+   */
+  private static final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
 
   /**
    * Configuration for this encryptor.
@@ -68,6 +156,21 @@ final class FieldEncryptor {
    */
   private final ValueEncryptorBase encryptor;
 
+  /**
+   * Wraps the shares of visibility field keys under attribute keys, or null if the field is not encrypted using the visibility.
+   */
+  private final KeyWrap keyWrap;
+
+  /**
+   * Field encryption keys and their encrypted shares, cached by visibility expression and attribute key versions. Null if caching is disabled.
+   */
+  private final Cache<VisibilityKeyId,VisibilityKey> visibilityKeys;
+
+  /**
+   * Field encryption keys reconstructed from their encrypted shares, cached by visibility expression and share metadata. Null if caching is disabled.
+   */
+  private final Cache<VisibilitySharesId,byte[]> decryptedKeys;
+
   /**
    * Creates a field encryptor.
    *
@@ -84,6 +187,17 @@ final class FieldEncryptor {
     this.keys = keys;
 
     this.encryptor = config.valueEncryptor.getInstance(config.provider);
+    this.keyWrap = config.encryptUsingVisibility ? new KeyWrap(config.provider) : null;
+
+    if (config.encryptUsingVisibility && config.visibilityKeyCacheSize > 0) {
+      this.visibilityKeys = CacheBuilder.newBuilder().maximumSize(config.visibilityKeyCacheSize)
+          .expireAfterWrite(config.visibilityKeyCacheLifetime, TimeUnit.SECONDS).build();
+      this.decryptedKeys = CacheBuilder.newBuilder().maximumSize(config.visibilityKeyCacheSize)
+          .expireAfterWrite(config.visibilityKeyCacheLifetime, TimeUnit.SECONDS).recordStats().build();
+    } else {
+      this.visibilityKeys = null;
+      this.decryptedKeys = null;
+    }
   }
 
   /**
@@ -93,56 +207,260 @@ final class FieldEncryptor {
    *          {@link MutableEntry} to encrypt.
    * @param result
    *          {@link MutableEntry} to write result to.
-   * @param columnVisibility
-   *          The parsed column visibility.
+   * @param visibility
+   *          The compiled column visibility.
    * @throws IOException
    *           Not actually thrown.
    */
-  void encrypt(MutableEntry entry, MutableEntry result, ColumnVisibility columnVisibility) throws IOException {
-    // Put the data in a single byte array.
-    byte[] data = concatData(entry);
+  void encrypt(MutableEntry entry, MutableEntry result, VisibilityPlan visibility) throws IOException {
+    Buffers buffers = FieldEncryptor.buffers.get();
+    if (encryptor instanceof ChunkedAESValueEncryptor && config.compression == Compression.NONE) {
+      encryptChunked(entry, result, visibility, buffers);
+      return;
+    }
+    if (config.rowSegmentation != null) {
+      DataOutputBuffer out = buffers.header;
+      out.reset();
+      byte[] key = getKey(visibility, out);
+      writeSegments(key, config.rowSegmentation.split(entry.getBytes(EntryField.ROW)), out);
+      result.setBytes(config.destination, Arrays.copyOf(out.getData(), out.getLength()));
+      buffers.release();
+      return;
+    }
 
-    // Gets the key used to encrypt the data. Also write to the front of the ciphertext the metadata necessary to retrieve the key.
-    ByteArrayOutputStream ciphertextStream = new ByteArrayOutputStream();
-    DataOutput ciphertextOut = new DataOutputStream(ciphertextStream);
+    // Put the data in the plaintext buffer.
+    int length = config.compression == Compression.NONE ? concatData(entry, buffers, 0) : compressData(entry, buffers);
 
-    // Encrypt the data, and write it to the result (first wrapping it if writing to the column visibility field).
-    byte[] key = getKey(columnVisibility, ciphertextOut);
-    ciphertextOut.write(encryptor.encrypt(key, data));
-    byte[] ciphertext = ciphertextStream.toByteArray();
+    // Gets the key used to encrypt the data. Also write the metadata necessary to retrieve the key, which will be written to the front of the ciphertext.
+    DataOutputBuffer header = buffers.header;
+    header.reset();
+    byte[] key = getKey(visibility, header);
+
+    // Encrypt the data directly into an array that has room for the header, and then fill in the header.
+    byte[] ciphertext = encryptor.encrypt(key, buffers.plaintext, 0, length, header.getLength());
+    System.arraycopy(header.getData(), 0, ciphertext, 0, header.getLength());
     result.setBytes(config.destination, ciphertext);
+    buffers.release();
   }
 
   /**
-   * Concat the data in preparation for it to be encrypted.
+   * Encrypt the given entry with a chunked encryptor, streaming the source fields through the encryptor instead of concatenating them first.
    *
    * @param entry
-   *          Entry to pull data from.
-   * @return Concatenated data.
+   *          {@link MutableEntry} to encrypt.
+   * @param result
+   *          {@link MutableEntry} to write result to.
+   * @param visibility
+   *          The compiled column visibility.
+   * @param buffers
+   *          Scratch buffers for the current thread.
    * @throws IOException
    *           Not actually thrown.
    */
-  private byte[] concatData(MutableEntry entry) throws IOException {
-    ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-    DataOutput dataOut = new DataOutputStream(dataStream);
+  private void encryptChunked(MutableEntry entry, MutableEntry result, VisibilityPlan visibility, Buffers buffers) throws IOException {
+    int length = 0;
+    for (EntryField source : config.sources) {
+      int fieldLength = entry.getBytes(source).length;
+      length += WritableUtils.getVIntSize(fieldLength) + fieldLength;
+    }
 
+    DataOutputBuffer header = buffers.header;
+    header.reset();
+    byte[] key = getKey(visibility, header);
+
+    ChunkedAESValueEncryptor.EncryptionStream stream = ((ChunkedAESValueEncryptor) encryptor).encryptionStream(key, length, header.getLength());
+    byte[] fieldLength = new byte[MAX_VINT_SIZE];
     for (EntryField source : config.sources) {
-      switch (source) {
-        case ROW:
-        case COLUMN_FAMILY:
-        case COLUMN_QUALIFIER:
-        case COLUMN_VISIBILITY:
-        case VALUE:
-          byte[] bytes = entry.getBytes(source);
-          WritableUtils.writeVInt(dataOut, bytes.length);
-          dataOut.write(bytes);
-          break;
+      byte[] bytes = entry.getBytes(source);
+      stream.write(fieldLength, 0, Utils.writeVInt(fieldLength, 0, bytes.length));
+      stream.write(bytes, 0, bytes.length);
+    }
 
-        default:
-          throw new UnsupportedOperationException();
+    byte[] ciphertext = stream.finish();
+    System.arraycopy(header.getData(), 0, ciphertext, 0, header.getLength());
+    result.setBytes(config.destination, ciphertext);
+    buffers.release();
+  }
+
+  /**
+   * Encrypt the segments of a row, writing each as "length || ciphertext". Each segment's plaintext is prefixed with the start of the previous segment's
+   * ciphertext, which for a deterministic cipher depends on all the segments before it; equal segments are therefore only encrypted identically when they
+   * follow the same segments.
+   *
+   * @param key
+   *          Field encryption key.
+   * @param segments
+   *          Segments to encrypt.
+   * @param out
+   *          Output to write the encrypted segments to.
+   * @throws IOException
+   *           Not actually thrown.
+   */
+  private void writeSegments(byte[] key, List<byte[]> segments, DataOutputBuffer out) throws IOException {
+    byte[] chain = EMPTY;
+    for (byte[] segment : segments) {
+      byte[] plaintext = new byte[chain.length + segment.length];
+      System.arraycopy(chain, 0, plaintext, 0, chain.length);
+      System.arraycopy(segment, 0, plaintext, chain.length, segment.length);
+
+      byte[] ciphertext = encryptor.encrypt(key, plaintext, 0, plaintext.length, 0);
+      WritableUtils.writeVInt(out, ciphertext.length);
+      out.write(ciphertext);
+      chain = Arrays.copyOf(ciphertext, Math.min(SEGMENT_CHAIN_LENGTH, ciphertext.length));
+    }
+  }
+
+  /**
+   * Decrypt the segments of a row written by {@link #writeSegments(byte[], List, DataOutputBuffer)}, and join them back into the row.
+   *
+   * @param key
+   *          Field encryption key.
+   * @param data
+   *          Encrypted field.
+   * @param offset
+   *          Offset of the first segment in the encrypted field, after the key metadata.
+   * @param result
+   *          {@link MutableEntry} to write result to.
+   * @throws IOException
+   *           Thrown if the encrypted field is truncated.
+   */
+  private void decryptSegments(byte[] key, byte[] data, int offset, MutableEntry result) throws IOException {
+    List<byte[]> segments = new ArrayList<>();
+    byte[] chain = EMPTY;
+    int position = offset;
+
+    while (position < data.length) {
+      int vintSize = WritableUtils.decodeVIntSize(data[position]);
+      if (position + vintSize > data.length) {
+        throw new EOFException();
+      }
+      int length = WritableComparator.readVInt(data, position);
+      position += vintSize;
+      if (length < 0 || position + length > data.length) {
+        throw new EOFException();
       }
+
+      byte[] plaintext = encryptor.decrypt(key, data, position, length);
+      if (plaintext.length < chain.length || !MessageDigest.isEqual(chain, Arrays.copyOf(plaintext, chain.length))) {
+        throw new EncryptionException("row segment does not follow the previous segment");
+      }
+      segments.add(Arrays.copyOfRange(plaintext, chain.length, plaintext.length));
+
+      chain = Arrays.copyOfRange(data, position, position + Math.min(SEGMENT_CHAIN_LENGTH, length));
+      position += length;
     }
-    return dataStream.toByteArray();
+
+    result.setBytes(EntryField.ROW, config.rowSegmentation.join(segments));
+  }
+
+  /**
+   * Concat the data in preparation for it to be encrypted.
+   * <p>
+   * The data is written to the plaintext buffer, which is grown as needed to hold the exact length of the concatenated data.
+   *
+   * @param entry
+   *          Entry to pull data from.
+   * @param buffers
+   *          Scratch buffers for the current thread.
+   * @param offset
+   *          Number of bytes to leave unused at the front of the plaintext buffer.
+   * @return Length of the concatenated data, including the unused bytes at the front.
+   */
+  private int concatData(MutableEntry entry, Buffers buffers, int offset) {
+    int length = offset;
+    for (EntryField source : config.sources) {
+      int fieldLength = entry.getBytes(source).length;
+      length += WritableUtils.getVIntSize(fieldLength) + fieldLength;
+    }
+
+    if (buffers.plaintext.length < length) {
+      buffers.plaintext = new byte[length];
+    }
+    byte[] plaintext = buffers.plaintext;
+
+    int position = offset;
+    for (EntryField source : config.sources) {
+      byte[] bytes = entry.getBytes(source);
+      position = Utils.writeVInt(plaintext, position, bytes.length);
+      System.arraycopy(bytes, 0, plaintext, position, bytes.length);
+      position += bytes.length;
+    }
+    return length;
+  }
+
+  /**
+   * Concat the data in preparation for it to be encrypted, and compress it if that makes it smaller.
+   * <p>
+   * The data written to the plaintext buffer starts with a flag, followed either by the concatenated data, or by its length and compressed form.
+   *
+   * @param entry
+   *          Entry to pull data from.
+   * @param buffers
+   *          Scratch buffers for the current thread.
+   * @return Length of the data in the plaintext buffer.
+   */
+  private int compressData(MutableEntry entry, Buffers buffers) {
+    int length = concatData(entry, buffers, 1);
+    int dataLength = length - 1;
+    buffers.plaintext[0] = COMPRESSION_FLAG_RAW;
+
+    if (dataLength >= config.compressionThreshold) {
+      // Only keep the compressed form if it is strictly smaller than the raw form.
+      int dataOffset = 1 + WritableUtils.getVIntSize(dataLength);
+      int maxLength = length - dataOffset - 1;
+      if (maxLength > 0) {
+        if (buffers.compressed.length < dataOffset + maxLength) {
+          buffers.compressed = new byte[dataOffset + maxLength];
+        }
+
+        int compressedLength = config.compression.compress(buffers.plaintext, 1, dataLength, buffers.compressed, dataOffset, maxLength);
+        if (compressedLength >= 0) {
+          buffers.compressed[0] = COMPRESSION_FLAG_COMPRESSED;
+          Utils.writeVInt(buffers.compressed, 1, dataLength);
+
+          byte[] compressed = buffers.compressed;
+          buffers.compressed = buffers.plaintext;
+          buffers.plaintext = compressed;
+          return dataOffset + compressedLength;
+        }
+      }
+    }
+
+    return length;
+  }
+
+  /**
+   * Decompress decrypted data that was compressed by {@link #compressData(MutableEntry, Buffers)}.
+   *
+   * @param decryptedData
+   *          Decrypted data, starting with the compression flag.
+   * @return The concatenated data.
+   * @throws IOException
+   *           Thrown if the data is truncated.
+   * @throws EncryptionException
+   *           Thrown if the data is malformed.
+   */
+  private byte[] decompressData(byte[] decryptedData) throws IOException {
+    if (decryptedData[0] != COMPRESSION_FLAG_COMPRESSED) {
+      throw new EncryptionException("invalid compression flag");
+    }
+    if (decryptedData.length == 1) {
+      throw new EOFException();
+    }
+
+    int dataOffset = 1 + WritableUtils.decodeVIntSize(decryptedData[1]);
+    if (dataOffset > decryptedData.length) {
+      throw new EOFException();
+    }
+
+    int length = WritableComparator.readVInt(decryptedData, 1);
+    if (length < 0 || length > (long) (decryptedData.length - dataOffset) * Compression.MAX_COMPRESSION_RATIO) {
+      throw new EncryptionException("invalid decompressed length");
+    }
+
+    byte[] data = new byte[length];
+    config.compression.decompress(decryptedData, dataOffset, decryptedData.length - dataOffset, data);
+    return data;
   }
 
   /**
@@ -152,49 +470,90 @@ final class FieldEncryptor {
    *          {@link MutableEntry} to encrypt.
    * @param result
    *          {@link MutableEntry} to write result to.
-   * @param columnVisibility
-   *          The parsed column visibility.
+   * @param visibility
+   *          The compiled column visibility.
    *
    * @throws IOException
    *           Not actually thrown.
    */
-  void decrypt(MutableEntry entry, MutableEntry result, ColumnVisibility columnVisibility) throws IOException {
-    ByteArrayInputStream ciphertextStream = new ByteArrayInputStream(entry.getBytes(config.destination));
-    DataInput ciphertextIn = new DataInputStream(ciphertextStream);
+  void decrypt(MutableEntry entry, MutableEntry result, VisibilityPlan visibility) throws IOException {
+    if (!config.valueEncryptor.isRecoverable()) {
+      return; // Tokens are only used for searching; the plaintext of their sources is restored by a recoverable encryptor.
+    }
 
-    byte[] key = getKey(columnVisibility, ciphertextIn);
-    byte[] ciphertext = new byte[ciphertextStream.available()];
-    ciphertextIn.readFully(ciphertext);
-    byte[] decryptedData = encryptor.decrypt(key, ciphertext);
+    byte[] data = entry.getBytes(config.destination);
+    DataInputBuffer headerInput = buffers.get().headerInput;
+    headerInput.reset(data, data.length);
 
-    // Break apart the decrypted data.
-    ByteArrayInputStream dataStream = new ByteArrayInputStream(decryptedData);
-    DataInput dataIn = new DataInputStream(dataStream);
+    byte[] key = getKey(visibility, headerInput);
+    int ciphertextOffset = headerInput.getPosition();
+    headerInput.reset(EMPTY, 0); // Don't hold onto the ciphertext.
+    if (encryptor instanceof ChunkedAESValueEncryptor && config.compression == Compression.NONE) {
+      decryptChunked(key, data, ciphertextOffset, result);
+      return;
+    }
+    if (config.rowSegmentation != null) {
+      decryptSegments(key, data, ciphertextOffset, result);
+      return;
+    }
+    byte[] decryptedData = encryptor.decrypt(key, data, ciphertextOffset, data.length - ciphertextOffset);
 
+    // Raw data follows the compression flag, if there is one; compressed data is expanded first.
+    int position = 0;
+    if (config.compression != Compression.NONE) {
+      if (decryptedData.length == 0) {
+        throw new EOFException();
+      } else if (decryptedData[0] == COMPRESSION_FLAG_RAW) {
+        position = 1;
+      } else {
+        decryptedData = decompressData(decryptedData);
+      }
+    }
+
+    // Break apart the decrypted data.
     for (EntryField source : config.sources) {
-      switch (source) {
-        case ROW:
-        case COLUMN_FAMILY:
-        case COLUMN_QUALIFIER:
-        case COLUMN_VISIBILITY:
-        case VALUE:
-          int length = WritableUtils.readVInt(dataIn);
-          byte[] bytes = new byte[length];
-          dataIn.readFully(bytes);
-          result.setBytes(source, bytes);
-          break;
-
-        // case TIMESTAMP:
-        // result.timestamp = WritableUtils.readVLong(dataIn);
-        // break;
-
-        // case DELETE:
-        // result.delete = dataIn.readBoolean();
-        // break;
+      if (position >= decryptedData.length) {
+        throw new EOFException();
+      }
 
-        default:
-          throw new UnsupportedOperationException();
+      int length = WritableComparator.readVInt(decryptedData, position);
+      position += WritableUtils.decodeVIntSize(decryptedData[position]);
+      if (length < 0 || position + length > decryptedData.length) {
+        throw new EOFException();
       }
+
+      result.setBytes(source, Arrays.copyOfRange(decryptedData, position, position + length));
+      position += length;
+    }
+  }
+
+  /**
+   * Decrypt a field encrypted with a chunked encryptor, streaming each source field out of the encryptor instead of decrypting the whole plaintext first.
+   *
+   * @param key
+   *          Field encryption key.
+   * @param data
+   *          Encrypted field.
+   * @param offset
+   *          Offset of the ciphertext in the encrypted field, after the key metadata.
+   * @param result
+   *          {@link MutableEntry} to write result to.
+   * @throws IOException
+   *           Thrown if the ciphertext is truncated.
+   */
+  private void decryptChunked(byte[] key, byte[] data, int offset, MutableEntry result) throws IOException {
+    ChunkedAESValueEncryptor.DecryptionStream stream = ((ChunkedAESValueEncryptor) encryptor).decryptionStream(key, data, offset, data.length - offset);
+    DataInputStream in = new DataInputStream(stream);
+
+    for (EntryField source : config.sources) {
+      int length = WritableUtils.readVInt(in);
+      if (length < 0 || length > stream.available()) {
+        throw new EOFException();
+      }
+
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      result.setBytes(source, bytes);
     }
   }
 
@@ -211,16 +570,41 @@ final class FieldEncryptor {
    * @throws IOException
    *           Not actually thrown.
    */
-  private byte[] getKey(ColumnVisibility visibility, DataOutput out) throws IOException {
+  private byte[] getKey(VisibilityPlan visibility, DataOutput out) throws IOException {
     if (config.encryptUsingVisibility) {
-      byte[] key = new byte[config.keyLength];
+      if (visibility.isEmpty()) {
+        return new byte[config.keyLength];
+      }
+
+      // Look up the current attribute keys up front, as their versions determine whether a cached key can be used.
+      KeyWithVersion[] attributeKeys = new KeyWithVersion[visibility.attributes.length];
+      for (int i = 0; i < attributeKeys.length; i++) {
+        attributeKeys[i] = keys.getAttributeKey(visibility.attributes[i], config.keyId, config.keyLength);
+      }
+
+      if (visibilityKeys == null) {
+        KeyMaterial material = new KeyMaterial(visibility, config.keyLength);
+        byte[] key = material.next();
+        writeVisibilityShares(key, visibility, attributeKeys, material, out);
+        return key;
+      }
 
-      if (visibility.getParseTree().getType() != NodeType.EMPTY) {
-        random.nextBytes(key);
-        writeVisibilityShare(key, visibility.getParseTree(), visibility.getExpression(), out);
+      VisibilityKeyId id = new VisibilityKeyId(visibility.expression, attributeKeys);
+      VisibilityKey cached = visibilityKeys.getIfPresent(id);
+      if (cached == null) {
+        KeyMaterial material = new KeyMaterial(visibility, config.keyLength);
+        byte[] key = material.next();
+
+        DataOutputBuffer shares = new DataOutputBuffer();
+        writeVisibilityShares(key, visibility, attributeKeys, material, shares);
+        cached = new VisibilityKey(key, Arrays.copyOf(shares.getData(), shares.getLength()));
+
+        // Racing threads may each generate a key for the same expression; whichever is cached last will be reused.
+        visibilityKeys.put(id, cached);
       }
 
-      return key;
+      out.write(cached.shares);
+      return cached.key;
     } else {
       KeyWithVersion keyData = keys.getKey(config.keyId, config.keyLength);
       WritableUtils.writeVInt(out, keyData.version); // Write the version of the key being used as meta-data.
@@ -236,19 +620,28 @@ final class FieldEncryptor {
    * @param visibility
    *          Visibility expression for the field.
    * @param in
-   *          Stream from which metadata is read.
+   *          Buffer from which metadata is read.
    * @return Field encryption key.
    * @throws IOException
    *           Not actually thrown.
    */
-  private byte[] getKey(ColumnVisibility visibility, DataInput in) throws IOException {
+  private byte[] getKey(VisibilityPlan visibility, DataInputBuffer in) throws IOException {
     if (config.encryptUsingVisibility) {
-      if (visibility.getParseTree().getType() != NodeType.EMPTY) {
-        // Rebuild the key from the shares created based on the visibility expression.
-        byte[] key = readVisibilityShare(visibility.getParseTree(), visibility.getExpression(), in, false);
+      if (!visibility.isEmpty()) {
+        if (decryptedKeys == null) {
+          return reconstructVisibilityKey(visibility, in);
+        }
+
+        // Find the extent of the share metadata without decrypting anything, and check whether the key it encodes has already been reconstructed.
+        int start = in.getPosition();
+        readVisibilityShares(readShareTree(visibility, in), in, null);
+        VisibilitySharesId id = new VisibilitySharesId(visibility.expression, in.getData(), start, in.getPosition() - start);
 
+        byte[] key = decryptedKeys.getIfPresent(id);
         if (key == null) {
-          throw new IllegalKeyRequestException();
+          in.reset(in.getData(), start, in.getLength() - start);
+          key = reconstructVisibilityKey(visibility, in);
+          decryptedKeys.put(id.copy(), key);
         }
         return key;
       } else {
@@ -260,6 +653,77 @@ final class FieldEncryptor {
     }
   }
 
+  /**
+   * Reconstruct a field encryption key from its shares, which were encrypted based on the visibility expression.
+   *
+   * @param visibility
+   *          Visibility expression for the field.
+   * @param in
+   *          Stream from which metadata is read.
+   * @return Field encryption key.
+   * @throws IOException
+   *           Not actually thrown.
+   */
+  private byte[] reconstructVisibilityKey(VisibilityPlan visibility, DataInputBuffer in) throws IOException {
+    PlanNode root = readShareTree(visibility, in);
+    EncryptedShares shares = new EncryptedShares(visibility.attributes);
+    readVisibilityShares(root, in, shares);
+    byte[] key = readVisibilityShare(root, shares);
+
+    if (key == null) {
+      throw new IllegalKeyRequestException();
+    }
+    return key;
+  }
+
+  /**
+   * Encrypt a field encryption key into shares based on the visibility expression.
+   * <p>
+   * The shares follow the minimized expression. If it differs from the expression as written, {@link #MINIMIZED_TREE_FLAG} and the minimized tree are written
+   * first, so that readers do not depend on how the expression was minimized.
+   *
+   * @param key
+   *          Field encryption key.
+   * @param visibility
+   *          Visibility expression for the field.
+   * @param attributeKeys
+   *          Current attribute keys for the terms in the expression, indexed as in {@link VisibilityPlan#attributes}.
+   * @param material
+   *          Random material from which the masks for AND nodes are drawn.
+   * @param out
+   *          Stream to which metadata is written.
+   * @throws IOException
+   *           Not actually thrown.
+   */
+  private void writeVisibilityShares(byte[] key, VisibilityPlan visibility, KeyWithVersion[] attributeKeys, KeyMaterial material, DataOutput out)
+      throws IOException {
+    if (visibility.minimized != visibility.root) {
+      WritableUtils.writeVInt(out, MINIMIZED_TREE_FLAG);
+      VisibilityPlan.writeTree(visibility.minimized, out);
+    }
+    writeVisibilityShare(key, visibility.minimized, attributeKeys, material, out);
+  }
+
+  /**
+   * Determine which expression the shares were written for, reading the {@link #MINIMIZED_TREE_FLAG} and the tree that follows it if present.
+   *
+   * @param visibility
+   *          Visibility expression for the field.
+   * @param in
+   *          Buffer from which metadata is read.
+   * @return Root of the expression the shares follow.
+   * @throws IOException
+   *           Thrown if the serialized tree is truncated or invalid.
+   */
+  private PlanNode readShareTree(VisibilityPlan visibility, DataInputBuffer in) throws IOException {
+    // The flag is a single byte, and can not be the first byte of the non-negative key version that otherwise starts the shares.
+    if (in.getPosition() < in.getLength() && in.getData()[in.getPosition()] == MINIMIZED_TREE_FLAG) {
+      in.skip(1);
+      return visibility.readTree(in);
+    }
+    return visibility.root;
+  }
+
   /**
    * Encrypt the given share based on the current visibility node.
    * <p>
@@ -269,37 +733,42 @@ final class FieldEncryptor {
    *          Share of an encryption key to encrypt based on the visilbity expression.
    * @param node
    *          Visibility node to use in encrypting the share.
-   * @param expression
-   *          Visibility expression.
+   * @param attributeKeys
+   *          Current attribute keys for the terms in the expression, indexed as in {@link VisibilityPlan#attributes}.
+   * @param material
+   *          Random material from which the masks for AND nodes are drawn.
    * @param out
    *          Stream to which metadata is written.
    * @throws IOException
    *           Not actually thrown.
    */
-  private void writeVisibilityShare(byte[] share, Node node, byte[] expression, DataOutput out) throws IOException {
-    switch (node.getType()) {
+  private void writeVisibilityShare(byte[] share, PlanNode node, KeyWithVersion[] attributeKeys, KeyMaterial material, DataOutput out) throws IOException {
+    switch (node.type) {
       case TERM:
         // This is the only case we actually write to the stream. Encrypt the share with the attribute share.
-        // The output format is "version || length || encrypted data"
-        KeyWithVersion keyData = keys.getAttributeKey(new String(node.getTerm(expression).toArray(), VISIBILITY_CHARSET), config.keyId, config.keyLength);
+        // The output format is "version || length || encrypted data", or "version || key wrap flag || wrapped data" when the share can be key wrapped.
+        KeyWithVersion keyData = attributeKeys[node.term];
         WritableUtils.writeVInt(out, keyData.version); // Key version is written to the metadata.
 
-        byte[] encrypted;
-        encrypted = encryptor.encrypt(keyData.key, share);
-        WritableUtils.writeVInt(out, encrypted.length);
-        out.write(encrypted);
+        if (KeyWrap.supports(keyData.key.length, share.length)) {
+          WritableUtils.writeVInt(out, KEY_WRAP_FLAG);
+          out.write(keyWrap.wrap(keyData.key, share));
+        } else {
+          byte[] encrypted = encryptor.encrypt(keyData.key, share);
+          WritableUtils.writeVInt(out, encrypted.length);
+          out.write(encrypted);
+        }
         break;
 
       case AND:
         // Create random shares, with the final share being the original share xor'ed with each of the random shares.
         byte[] mask = new byte[share.length];
-        for (int i = 0; i < node.getChildren().size(); i++) {
-          if (i == (node.getChildren().size() - 1)) {
-            writeVisibilityShare(xor(mask, share), node.getChildren().get(i), expression, out);
+        for (int i = 0; i < node.children.length; i++) {
+          if (i == (node.children.length - 1)) {
+            writeVisibilityShare(xor(mask, share), node.children[i], attributeKeys, material, out);
           } else {
-            byte[] randomMask = new byte[share.length];
-            random.nextBytes(randomMask);
-            writeVisibilityShare(randomMask, node.getChildren().get(i), expression, out);
+            byte[] randomMask = material.next();
+            writeVisibilityShare(randomMask, node.children[i], attributeKeys, material, out);
             xor(mask, randomMask);
           }
         }
@@ -307,8 +776,8 @@ final class FieldEncryptor {
 
       case OR:
         // Write the same share with each attribute share.
-        for (Node child : node.getChildren()) {
-          writeVisibilityShare(share, child, expression, out);
+        for (PlanNode child : node.children) {
+          writeVisibilityShare(share, child, attributeKeys, material, out);
         }
         break;
 
@@ -318,86 +787,217 @@ final class FieldEncryptor {
   }
 
   /**
-   * Decrypt the given share based on the current visibility node.
+   * Read the shares written by {@link #writeVisibilityShare(byte[], PlanNode, KeyWithVersion[], KeyMaterial, DataOutput)}, without decrypting them.
    * <p>
-   * This method must read all metadata that the corresponding call to {@link #writeVisibilityShare(byte[], Node, byte[], DataOutput)} wrote. This is necessary
-   * regardless of whether the key retrieval is ongoing, successful, or failed.
+   * This method must read all metadata that the corresponding call wrote, so that the stream is left positioned after the key metadata.
    *
    * @param node
-   *          Visibility node to use in decrypting the share.
-   * @param expression
-   *          Visibility expression.
+   *          Visibility node whose shares are read.
    * @param in
    *          Stream from which metadata is read.
-   * @param skipDecryption
-   *          Tracks whether the call to this method is trying to regenerate the share.
-   *          <p>
-   *          This will be false if the share was already generated (i.e., from a different branch in an OR expression) or if there was an error in this branch
-   *          (i.e., lacked the attribute key to decrypt a different share of an AND expression).
-   * @return The decrypted share, or null if it could not be obtained.
+   * @param shares
+   *          Holds the encrypted share read for each term, or null to skip over the shares.
    * @throws IOException
-   *           Not actually thrown.
+   *           Thrown if the metadata is truncated.
    */
-  private byte[] readVisibilityShare(Node node, byte[] expression, DataInput in, boolean skipDecryption) throws IOException {
-    byte[] share = null;
-
-    switch (node.getType()) {
+  private void readVisibilityShares(PlanNode node, DataInput in, EncryptedShares shares) throws IOException {
+    switch (node.type) {
       case TERM:
-        // This is the only case we actually read from the stream. Decrypt the share with the attribute share.
-        // The input format is "version || length || encrypted data"
+        // This is the only case we actually read from the stream.
+        // The input format is "version || length || encrypted data", or "version || key wrap flag || wrapped data".
         int version = WritableUtils.readVInt(in);
-        byte[] encrypted = new byte[WritableUtils.readVInt(in)];
-        in.readFully(encrypted);
-
-        if (!skipDecryption) {
-          try {
-            byte[] key = keys.getAttributeKey(new String(node.getTerm(expression).toArray(), VISIBILITY_CHARSET), config.keyId, version, config.keyLength);
-            share = encryptor.decrypt(key, encrypted);
-          } catch (IllegalKeyRequestException e) {
-            // Swallow this error. The user does not have access to decrypt this sub-share, but it still may be possible for the user to decrypt another
-            // sub-share that will give the same data. This error will be re-thrown if at the end of reading all shares the users does not have enough
-            // data to reconstruct the original share.
+        int length = WritableUtils.readVInt(in);
+        boolean wrapped = length == KEY_WRAP_FLAG;
+        if (wrapped) {
+          length = config.keyLength + KeyWrap.OVERHEAD;
+        }
+
+        if (shares == null) {
+          if (length < 0 || in.skipBytes(length) != length) {
+            throw new EOFException();
           }
+        } else {
+          if (length < 0) {
+            throw new EOFException();
+          }
+          byte[] encrypted = new byte[length];
+          in.readFully(encrypted);
+
+          shares.versions[node.term] = version;
+          shares.wrapped[node.term] = wrapped;
+          shares.encrypted[node.term] = encrypted;
         }
         break;
 
       case AND:
-        // Read random shares, with the final share being the original share xor'ed with each of the random shares.
-        for (Node child : node.getChildren()) {
-          byte[] mask = readVisibilityShare(child, expression, in, skipDecryption);
-
-          // A single failure means this whole AND is a failure.
-          if (!skipDecryption) {
-            if (mask == null) {
-              share = null;
-              skipDecryption = true;
-            } else {
-              if (share == null) {
-                share = mask;
-              } else {
-                xor(share, mask);
-              }
-            }
-          }
+      case OR:
+        for (PlanNode child : node.children) {
+          readVisibilityShares(child, in, shares);
         }
         break;
 
+      default:
+        throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Decrypt the share for the given visibility node.
+   * <p>
+   * Only branches that can be satisfied with the attribute keys the user holds are decrypted, so no attribute key lookup fails with an exception and no share
+   * is decrypted for an AND that cannot be completed.
+   *
+   * @param node
+   *          Visibility node to use in decrypting the share.
+   * @param shares
+   *          The encrypted shares for the terms of the expression.
+   * @return The decrypted share, or null if it could not be obtained.
+   * @throws IOException
+   *           Not actually thrown.
+   */
+  private byte[] readVisibilityShare(PlanNode node, EncryptedShares shares) throws IOException {
+    switch (node.type) {
+      case TERM:
+        // Decrypt the share with the attribute key.
+        byte[] key = shares.getAttributeKey(node.term);
+        if (key == null) {
+          return null;
+        }
+        byte[] encrypted = shares.encrypted[node.term];
+        return shares.wrapped[node.term] ? keyWrap.unwrap(key, encrypted) : encryptor.decrypt(key, encrypted);
+
+      case AND:
+        // The final share is the original share xor'ed with each of the random shares, so every child is needed.
+        if (!shares.isSatisfiable(node)) {
+          return null;
+        }
+        byte[] share = null;
+        for (PlanNode child : node.children) {
+          byte[] mask = readVisibilityShare(child, shares);
+          share = share == null ? mask : xor(share, mask);
+        }
+        return share;
+
       case OR:
-        // Read the share from multiple possible attribute shares. Only one share is needed.
-        for (Node child : node.getChildren()) {
-          byte[] tempKey = readVisibilityShare(child, expression, in, skipDecryption);
-          if (!skipDecryption && tempKey != null) {
-            share = tempKey;
-            skipDecryption = true;
+        // Only one share is needed. Terms the user holds are tried first, as they need only a single decryption.
+        for (PlanNode child : node.children) {
+          if (child.type == NodeType.TERM && shares.getAttributeKey(child.term) != null) {
+            return readVisibilityShare(child, shares);
           }
         }
-        break;
+        for (PlanNode child : node.children) {
+          if (child.type != NodeType.TERM && shares.isSatisfiable(child)) {
+            return readVisibilityShare(child, shares);
+          }
+        }
+        return null;
 
       default:
         throw new UnsupportedOperationException();
     }
+  }
+
+  /**
+   * The encrypted shares of a visibility field encryption key, indexed as in {@link VisibilityPlan#attributes}, along with the attribute keys needed to decrypt
+   * them.
+   */
+  private final class EncryptedShares {
+
+    /**
+     * Attributes for the terms in the expression.
+     */
+    private final String[] attributes;
+
+    /**
+     * Version of the attribute key each share was encrypted with.
+     */
+    private final int[] versions;
+
+    /**
+     * Whether each share was wrapped with {@link KeyWrap}, rather than encrypted with the field's encryptor.
+     */
+    private final boolean[] wrapped;
+
+    /**
+     * The encrypted shares.
+     */
+    private final byte[][] encrypted;
 
-    return share;
+    /**
+     * Attribute keys that have been looked up, which are null if the user does not hold the key.
+     */
+    private final byte[][] attributeKeys;
+
+    /**
+     * Whether the attribute key for each term has been looked up.
+     */
+    private final boolean[] lookedUp;
+
+    EncryptedShares(String[] attributes) {
+      this.attributes = attributes;
+      this.versions = new int[attributes.length];
+      this.wrapped = new boolean[attributes.length];
+      this.encrypted = new byte[attributes.length][];
+      this.attributeKeys = new byte[attributes.length][];
+      this.lookedUp = new boolean[attributes.length];
+    }
+
+    /**
+     * Get the attribute key for the given term, looking it up if needed.
+     *
+     * @param term
+     *          Index of the term.
+     * @return The attribute key, or null if the user does not hold it.
+     */
+    byte[] getAttributeKey(int term) {
+      if (!lookedUp[term]) {
+        attributeKeys[term] = keys.findAttributeKey(attributes[term], config.keyId, versions[term], config.keyLength);
+        lookedUp[term] = true;
+      }
+      return attributeKeys[term];
+    }
+
+    /**
+     * Whether the user holds enough attribute keys to decrypt the share for the given node.
+     *
+     * @param node
+     *          Node to check.
+     * @return Whether the share can be decrypted.
+     */
+    boolean isSatisfiable(PlanNode node) {
+      switch (node.type) {
+        case TERM:
+          return getAttributeKey(node.term) != null;
+
+        case AND:
+          for (PlanNode child : node.children) {
+            if (!isSatisfiable(child)) {
+              return false;
+            }
+          }
+          return true;
+
+        case OR:
+          for (PlanNode child : node.children) {
+            if (isSatisfiable(child)) {
+              return true;
+            }
+          }
+          return false;
+
+        default:
+          throw new UnsupportedOperationException();
+      }
+    }
+  }
+
+  /**
+   * Get statistics for the cache of reconstructed visibility field encryption keys.
+   *
+   * @return Cache statistics, or null if keys are not cached.
+   */
+  CacheStats getDecryptedKeyCacheStats() {
+    return decryptedKeys == null ? null : decryptedKeys.stats();
   }
 
   /**
@@ -430,6 +1030,16 @@ final class FieldEncryptor {
     return config.valueEncryptor.isDeterministic() && fields.equals(config.sources);
   }
 
+  /**
+   * Get the live versions of the key currently available to this field, in the order they are used by {@link #getServerSideFilterValues(MutableEntry, boolean)}
+   * .
+   *
+   * @return Key versions.
+   */
+  int[] getKeyVersions() {
+    return keys.getKeys(config.keyId, config.keyLength).stream().mapToInt(keyData -> keyData.version).filter(config::isLiveKeyVersion).toArray();
+  }
+
   /**
    * Transform a value into a set of server side search terms. This method assumes that {@link #canBeFilteredServerSide(Collection)} was called, and that this
    * field is suitable for server side filtering.
@@ -450,7 +1060,8 @@ final class FieldEncryptor {
    * field is suitable for server side filtering.
    * <p>
    * This method will encrypt the data in the given key using ever version of that key available. For example, if key "ROW_KEY" has 3 versions, than this method
-   * will encrypt the key with all 3 versions, resulting in 3 possible server side filter values for this encrypted field.
+   * will encrypt the key with all 3 versions, resulting in 3 possible server side filter values for this encrypted field. Versions that the configuration
+   * declares are no longer present in the data are skipped.
    *
    * @param key
    *          Data used to create the filter.
@@ -459,26 +1070,271 @@ final class FieldEncryptor {
    * @return Keys containing the data for the server side filters.
    */
   List<byte[]> getServerSideFilterValues(MutableEntry key, boolean followingKey) {
+    if (config.rowSegmentation != null) {
+      List<byte[]> segments = config.rowSegmentation.split(key.getBytes(EntryField.ROW));
+      List<byte[]> filterValues = getSegmentedFilterValues(segments);
+      if (followingKey) {
+        filterValues.replaceAll(value -> Arrays.copyOf(value, value.length + 1)); // Trailing zero byte.
+      }
+      return filterValues;
+    }
+
     List<byte[]> filterValues = new ArrayList<>();
+    Buffers buffers = FieldEncryptor.buffers.get();
+    int length = concatData(key, buffers, 0);
 
     for (KeyWithVersion keyData : keys.getKeys(config.keyId, config.keyLength)) {
-      ByteArrayOutputStream ciphertextStream = new ByteArrayOutputStream();
-      DataOutput ciphertextOut = new DataOutputStream(ciphertextStream);
+      if (!config.isLiveKeyVersion(keyData.version)) {
+        continue;
+      }
 
       try {
-        WritableUtils.writeVInt(ciphertextOut, keyData.version);
-        ciphertextOut.write(encryptor.encrypt(keyData.key, concatData(key)));
+        int headerLength = WritableUtils.getVIntSize(keyData.version);
+        byte[] ciphertext = encryptor.encrypt(keyData.key, buffers.plaintext, 0, length, headerLength);
+        Utils.writeVInt(ciphertext, 0, keyData.version);
+
         if (followingKey) {
-          ciphertextOut.writeByte(0);
+          ciphertext = Arrays.copyOf(ciphertext, ciphertext.length + 1); // Trailing zero byte.
         }
-      } catch (IOException e) { // IO exceptions won't be thrown in practice as we are operating on in-memory streams.
+        filterValues.add(ciphertext);
+      } catch (IOException e) { // IO exceptions won't be thrown in practice as we are operating on in-memory buffers.
         throw new EncryptionException(e);
       }
+    }
 
-      filterValues.add(ciphertextStream.toByteArray());
+    buffers.release();
+    return filterValues;
+  }
+
+  /**
+   * Checks whether this field splits the row into segments that can be searched for by prefix.
+   *
+   * @return Whether the row is segmented.
+   */
+  boolean isRowSegmented() {
+    return config.rowSegmentation != null;
+  }
+
+  /**
+   * Get the lengths of the prefixes of the row that can be searched for server side. Only valid if {@link #isRowSegmented()}.
+   *
+   * @param row
+   *          Plaintext row.
+   * @return Lengths of the prefixes that end with a complete segment, in ascending order.
+   */
+  int[] getSearchablePrefixLengths(byte[] row) {
+    return config.rowSegmentation.getPrefixLengths(row);
+  }
+
+  /**
+   * Transform a row prefix into the encrypted prefixes shared by every encrypted row that starts with it, one for each live key version. Only valid if
+   * {@link #isRowSegmented()}.
+   *
+   * @param row
+   *          Plaintext row.
+   * @param prefixLength
+   *          Length of the prefix, which must be one of those returned by {@link #getSearchablePrefixLengths(byte[])}.
+   * @return Encrypted prefixes.
+   */
+  List<byte[]> getServerSidePrefixValues(byte[] row, int prefixLength) {
+    int[] prefixLengths = config.rowSegmentation.getPrefixLengths(row);
+    int segmentCount = Arrays.binarySearch(prefixLengths, prefixLength) + 1;
+    checkArgument(segmentCount > 0, "prefix does not end with a complete segment");
+
+    return getSegmentedFilterValues(config.rowSegmentation.split(Arrays.copyOf(row, prefixLength)).subList(0, segmentCount));
+  }
+
+  /**
+   * Encrypt row segments under each live version of the key.
+   *
+   * @param segments
+   *          Segments to encrypt.
+   * @return The encrypted segments, with the key version at the front, for each version.
+   */
+  private List<byte[]> getSegmentedFilterValues(List<byte[]> segments) {
+    List<byte[]> filterValues = new ArrayList<>();
+    DataOutputBuffer out = new DataOutputBuffer();
+
+    for (KeyWithVersion keyData : keys.getKeys(config.keyId, config.keyLength)) {
+      if (!config.isLiveKeyVersion(keyData.version)) {
+        continue;
+      }
+
+      try {
+        out.reset();
+        WritableUtils.writeVInt(out, keyData.version);
+        writeSegments(keyData.key, segments, out);
+        filterValues.add(Arrays.copyOf(out.getData(), out.getLength()));
+      } catch (IOException e) { // IO exceptions won't be thrown in practice as we are operating on in-memory buffers.
+        throw new EncryptionException(e);
+      }
     }
 
     return filterValues;
   }
 
+  /**
+   * Identifies a cached visibility field encryption key: the visibility expression, and the versions of the attribute keys its shares were encrypted with.
+   */
+  private static final class VisibilityKeyId {
+
+    /**
+     * The visibility expression, as held by its {@link VisibilityPlan}.
+     */
+    private final byte[] expression;
+
+    /**
+     * Versions of the attribute keys for each term in the expression.
+     */
+    private final int[] versions;
+
+    /**
+     * Cached hash code.
+     */
+    private final int hashCode;
+
+    VisibilityKeyId(byte[] expression, KeyWithVersion[] attributeKeys) {
+      this.expression = expression;
+      this.versions = new int[attributeKeys.length];
+      for (int i = 0; i < versions.length; i++) {
+        versions[i] = attributeKeys[i].version;
+      }
+      this.hashCode = 31 * Arrays.hashCode(expression) + Arrays.hashCode(versions);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof VisibilityKeyId)) {
+        return false;
+      }
+      VisibilityKeyId other = (VisibilityKeyId) obj;
+      return hashCode == other.hashCode && Arrays.equals(expression, other.expression) && Arrays.equals(versions, other.versions);
+    }
+  }
+
+  /**
+   * A cached visibility field encryption key, along with its encrypted shares.
+   */
+  private static final class VisibilityKey {
+
+    /**
+     * The field encryption key.
+     */
+    private final byte[] key;
+
+    /**
+     * The key metadata, containing the shares of the key encrypted under the attribute keys.
+     */
+    private final byte[] shares;
+
+    VisibilityKey(byte[] key, byte[] shares) {
+      this.key = key;
+      this.shares = shares;
+    }
+  }
+
+  /**
+   * Random material for a new visibility field encryption key and the masks used to split it into shares, drawn with a single call to {@link RandomSource}.
+   */
+  private static final class KeyMaterial {
+
+    /**
+     * The random bytes, holding the key followed by each mask.
+     */
+    private final byte[] bytes;
+
+    /**
+     * Length of the key and of each mask.
+     */
+    private final int length;
+
+    /**
+     * Offset of the next unused key or mask.
+     */
+    private int offset = 0;
+
+    KeyMaterial(VisibilityPlan visibility, int length) {
+      this.bytes = RandomSource.nextBytes((1 + visibility.masks) * length);
+      this.length = length;
+    }
+
+    /**
+     * Get the next unused key or mask.
+     *
+     * @return Random bytes of the key length.
+     */
+    byte[] next() {
+      byte[] next = Arrays.copyOfRange(bytes, offset, offset + length);
+      offset += length;
+      return next;
+    }
+  }
+
+  /**
+   * Identifies a reconstructed visibility field encryption key: the visibility expression, and the share metadata the key was reconstructed from.
+   */
+  private static final class VisibilitySharesId {
+
+    /**
+     * The visibility expression, as held by its {@link VisibilityPlan}.
+     */
+    private final byte[] expression;
+
+    /**
+     * Buffer containing the share metadata.
+     */
+    private final byte[] shares;
+
+    /**
+     * Offset of the share metadata in the buffer.
+     */
+    private final int offset;
+
+    /**
+     * Length of the share metadata.
+     */
+    private final int length;
+
+    /**
+     * Cached hash code.
+     */
+    private final int hashCode;
+
+    VisibilitySharesId(byte[] expression, byte[] shares, int offset, int length) {
+      this.expression = expression;
+      this.shares = shares;
+      this.offset = offset;
+      this.length = length;
+      this.hashCode = 31 * Arrays.hashCode(expression) + WritableComparator.hashBytes(shares, offset, length);
+    }
+
+    /**
+     * Copy this id, so that it does not share the entry's buffer.
+     *
+     * @return Copy of this id.
+     */
+    VisibilitySharesId copy() {
+      return new VisibilitySharesId(expression, Arrays.copyOfRange(shares, offset, offset + length), 0, length);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof VisibilitySharesId)) {
+        return false;
+      }
+      VisibilitySharesId other = (VisibilitySharesId) obj;
+      return hashCode == other.hashCode && Arrays.equals(expression, other.expression)
+          && WritableComparator.compareBytes(shares, offset, length, other.shares, other.offset, other.length) == 0;
+    }
+  }
 }
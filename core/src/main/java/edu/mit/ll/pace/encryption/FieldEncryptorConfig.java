@@ -20,6 +20,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 import java.util.Collections;
 import java.util.List;
 import java.util.SortedSet;
+import java.util.TreeSet;
 
 import org.apache.commons.lang3.StringUtils;
 import org.ini4j.Ini;
@@ -52,7 +53,7 @@ public final class FieldEncryptorConfig {
   /**
    * Set of fields that can be sources for data when encrypting the value.
    */
-  static final List<EntryField> VALUE_SOURCE_FIELDS = ImmutableList.of(EntryField.VALUE);
+  static final List<EntryField> VALUE_SOURCE_FIELDS = ImmutableList.of(EntryField.ROW, EntryField.COLUMN_FAMILY, EntryField.COLUMN_QUALIFIER, EntryField.VALUE);
 
   /**
    * The {@link ValueEncryptor} used to encrypt the field.
@@ -89,6 +90,42 @@ public final class FieldEncryptorConfig {
    */
   final SortedSet<EntryField> sources;
 
+  /**
+   * Maximum number of visibility expressions whose field encryption keys are cached, or 0 if keys are not cached. Only used when encrypting using the
+   * visibility. The same bound applies separately to keys generated for encryption and keys reconstructed during decryption.
+   */
+  final int visibilityKeyCacheSize;
+
+  /**
+   * Number of seconds a cached field encryption key is used before a new key is generated for the visibility expression.
+   */
+  final long visibilityKeyCacheLifetime;
+
+  /**
+   * Codec used to compress the plaintext before it is encrypted. Only supported when the destination is the value.
+   */
+  final Compression compression;
+
+  /**
+   * Plaintexts shorter than this number of bytes are stored without compression.
+   */
+  final int compressionThreshold;
+
+  /**
+   * Versions of the key below this one are no longer present in the data, and are not searched for.
+   */
+  final int minimumKeyVersion;
+
+  /**
+   * Versions of the key that are no longer present in the data, and are not searched for.
+   */
+  final SortedSet<Integer> retiredKeyVersions;
+
+  /**
+   * How the row is split into separately encrypted segments so that it can be searched for by prefix, or null if the field is encrypted whole.
+   */
+  final RowSegmentation rowSegmentation;
+
   /**
    * Creates a configuration for an {@link FieldEncryptor}.
    *
@@ -110,6 +147,65 @@ public final class FieldEncryptorConfig {
    */
   public FieldEncryptorConfig(ValueEncryptor valueEncryptor, String provider, boolean encryptUsingVisibility, String keyId, int keyLength,
       EntryField destination, SortedSet<EntryField> sources) {
+    this(valueEncryptor, provider, encryptUsingVisibility, keyId, keyLength, destination, sources, 0, 0, Compression.NONE, 0, 0, new TreeSet<>(), null);
+  }
+
+  /**
+   * Creates a configuration for an {@link FieldEncryptor} with all of its options. Use {@link FieldEncryptorConfigBuilder} to set the options that are not
+   * taken by the public constructor.
+   * <p>
+   * When encrypting using the visibility, a new field encryption key is normally generated for each entry, and then encrypted under the attribute keys for each
+   * term in the entry's visibility expression. With caching enabled, the key and its encrypted shares are instead reused for entries with the same visibility
+   * expression and attribute key versions, until the cache lifetime expires. Entries encrypted with a cached key have identical key metadata, revealing that
+   * they share a key.
+   * <p>
+   * When compression is enabled, a flag is added to the front of the plaintext recording whether it was compressed. Plaintexts shorter than the threshold, or
+   * that do not get smaller when compressed, are stored raw. Compression is not available for key fields, where it would leak information about the plaintext
+   * through the length of a searchable ciphertext.
+   * <p>
+   * Deterministically encrypted fields are searched for by encrypting the search term under every version of the key, and a delete is expanded into one
+   * mutation per combination of versions across the encrypted key fields. Once the data has been re-encrypted so that some versions can no longer be present,
+   * declaring them with a minimum version or a set of retired versions removes them from the searches and deletes. The version currently used for encryption
+   * must remain live, or newly written entries cannot be found. Decryption is not affected, so entries encrypted with a retired version can still be read.
+   * <p>
+   * When a row segmentation is given, each segment of the row is deterministically encrypted on its own, so that scans for rows starting with whole segments
+   * can be bounded on the tablet servers. This reveals the length of each segment, and which rows share leading segments.
+   *
+   * @param valueEncryptor
+   *          The {@link ValueEncryptor} used to encrypt the field.
+   * @param provider
+   *          The provider to use when getting an instance of the {@link ValueEncryptor}. If this is null, will search for the appropriate providers as defined
+   *          by the system.
+   * @param encryptUsingVisibility
+   *          Will this encryption encrypt the field using the visibility.
+   * @param keyId
+   *          Id of the key that will be used for encryption.
+   * @param keyLength
+   *          The length of the key to use.
+   * @param destination
+   *          The field where encrypted data will be written to by the encryptor.
+   * @param sources
+   *          The fields that plaintext data is drawn from.
+   * @param visibilityKeyCacheSize
+   *          Maximum number of visibility expressions whose field encryption keys are cached, or 0 to disable caching.
+   * @param visibilityKeyCacheLifetime
+   *          Number of seconds a cached field encryption key is used. Must be positive if caching is enabled.
+   * @param compression
+   *          Codec used to compress the plaintext before it is encrypted. Compression other than {@link Compression#NONE} is only supported when the
+   *          destination is the value.
+   * @param compressionThreshold
+   *          Plaintexts shorter than this number of bytes are stored without compression.
+   * @param minimumKeyVersion
+   *          Oldest version of the key still present in the data, or 0 if all versions may be present.
+   * @param retiredKeyVersions
+   *          Versions of the key that are no longer present in the data.
+   * @param rowSegmentation
+   *          How the row is split into separately encrypted segments, or null to encrypt it whole. Only supported when deterministically encrypting the row
+   *          into itself.
+   */
+  FieldEncryptorConfig(ValueEncryptor valueEncryptor, String provider, boolean encryptUsingVisibility, String keyId, int keyLength, EntryField destination,
+      SortedSet<EntryField> sources, int visibilityKeyCacheSize, long visibilityKeyCacheLifetime, Compression compression, int compressionThreshold,
+      int minimumKeyVersion, SortedSet<Integer> retiredKeyVersions, RowSegmentation rowSegmentation) {
     checkArgument(valueEncryptor != null, "valueEncryptor is null");
     checkArgument(!encryptUsingVisibility || !valueEncryptor.isDeterministic(),
         "Cannot deterministically encrypt when encrypting fields using the visibility expression");
@@ -119,6 +215,23 @@ public final class FieldEncryptorConfig {
     checkArgument(KEY_DESTINATION_FIELDS.contains(destination) || destination == EntryField.VALUE, "invalid destination");
     checkArgument(sources != null, "sources is null");
     checkArgument(sources.size() > 0, "sources is empty");
+    checkArgument(visibilityKeyCacheSize >= 0, "visibilityKeyCacheSize is negative");
+    checkArgument(visibilityKeyCacheSize == 0 || visibilityKeyCacheLifetime > 0, "visibilityKeyCacheLifetime must be positive when caching keys");
+    checkArgument(compression != null, "compression is null");
+    checkArgument(compression == Compression.NONE || destination == EntryField.VALUE, "compression is only supported when encrypting into the value");
+    checkArgument(compressionThreshold >= 0, "compressionThreshold is negative");
+    checkArgument(valueEncryptor != ValueEncryptor.AES_GCM_CHUNKED || destination == EntryField.VALUE,
+        "chunked encryption is only supported when encrypting into the value");
+    checkArgument(valueEncryptor.isRecoverable() || KEY_DESTINATION_FIELDS.contains(destination),
+        "encryptors that cannot be decrypted are only supported when encrypting into a key field");
+    checkArgument(minimumKeyVersion >= 0, "minimumKeyVersion is negative");
+    checkArgument(retiredKeyVersions != null, "retiredKeyVersions is null");
+    checkArgument((minimumKeyVersion == 0 && retiredKeyVersions.isEmpty()) || valueEncryptor.isDeterministic(),
+        "key versions can only be retired for deterministic encryption");
+    checkArgument(
+        rowSegmentation == null
+            || (valueEncryptor.isDeterministic() && destination == EntryField.ROW && sources.size() == 1 && sources.contains(EntryField.ROW)),
+        "row segmentation is only supported when deterministically encrypting the row into itself");
 
     if (KEY_SOURCE_FIELDS.contains(destination)) {
       for (EntryField source : sources) {
@@ -137,6 +250,24 @@ public final class FieldEncryptorConfig {
     this.keyId = keyId;
     this.destination = destination;
     this.sources = Collections.unmodifiableSortedSet(sources);
+    this.visibilityKeyCacheSize = visibilityKeyCacheSize;
+    this.visibilityKeyCacheLifetime = visibilityKeyCacheSize == 0 ? 0 : visibilityKeyCacheLifetime;
+    this.compression = compression;
+    this.compressionThreshold = compression == Compression.NONE ? 0 : compressionThreshold;
+    this.minimumKeyVersion = minimumKeyVersion;
+    this.retiredKeyVersions = Collections.unmodifiableSortedSet(new TreeSet<>(retiredKeyVersions));
+    this.rowSegmentation = rowSegmentation;
+  }
+
+  /**
+   * Checks whether entries encrypted with the given version of the key may still be present in the data.
+   *
+   * @param version
+   *          Version of the key.
+   * @return Whether the version is live.
+   */
+  boolean isLiveKeyVersion(int version) {
+    return version >= minimumKeyVersion && !retiredKeyVersions.contains(version);
   }
 
   /**
@@ -154,5 +285,25 @@ public final class FieldEncryptorConfig {
     section.put("keyId", keyId);
     section.put("keyLength", Integer.toString(keyLength));
     section.put("sources", StringUtils.join(sources, ','));
+
+    if (visibilityKeyCacheSize != 0) {
+      section.put("visibilityKeyCacheSize", Integer.toString(visibilityKeyCacheSize));
+      section.put("visibilityKeyCacheLifetime", Long.toString(visibilityKeyCacheLifetime));
+    }
+
+    if (compression != Compression.NONE) {
+      section.put("compression", compression.toString());
+      section.put("compressionThreshold", Integer.toString(compressionThreshold));
+    }
+
+    if (minimumKeyVersion != 0) {
+      section.put("minimumKeyVersion", Integer.toString(minimumKeyVersion));
+    }
+    if (!retiredKeyVersions.isEmpty()) {
+      section.put("retiredKeyVersions", StringUtils.join(retiredKeyVersions, ','));
+    }
+    if (rowSegmentation != null) {
+      section.put("rowSegmentation", rowSegmentation.toString());
+    }
   }
 }
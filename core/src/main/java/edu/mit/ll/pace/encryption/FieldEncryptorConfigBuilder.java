@@ -29,6 +29,16 @@ import edu.mit.ll.pace.EntryField;
  */
 public class FieldEncryptorConfigBuilder {
 
+  /**
+   * Default number of seconds a cached visibility field encryption key is used.
+   */
+  static final long DEFAULT_VISIBILITY_KEY_CACHE_LIFETIME = 300;
+
+  /**
+   * Default size, in bytes, below which plaintexts are not compressed.
+   */
+  static final int DEFAULT_COMPRESSION_THRESHOLD = 64;
+
   // For definitions of these values see FieldEncryptorConfig.
   private ValueEncryptor valueEncryptor;
   private String provider;
@@ -37,6 +47,13 @@ public class FieldEncryptorConfigBuilder {
   private String keyId;
   private EntryField destination;
   private SortedSet<EntryField> sources = new TreeSet<>();
+  private int visibilityKeyCacheSize = 0;
+  private long visibilityKeyCacheLifetime = DEFAULT_VISIBILITY_KEY_CACHE_LIFETIME;
+  private Compression compression = Compression.NONE;
+  private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+  private int minimumKeyVersion = 0;
+  private SortedSet<Integer> retiredKeyVersions = new TreeSet<>();
+  private RowSegmentation rowSegmentation = null;
 
   /**
    * Set the value encryptor.
@@ -138,6 +155,90 @@ public class FieldEncryptorConfigBuilder {
     return this;
   }
 
+  /**
+   * Set the size of the visibility key cache.
+   *
+   * @param visibilityKeyCacheSize
+   *          Maximum number of visibility expressions whose field encryption keys are cached, or 0 to disable caching.
+   * @return Builder.
+   */
+  public FieldEncryptorConfigBuilder setVisibilityKeyCacheSize(int visibilityKeyCacheSize) {
+    this.visibilityKeyCacheSize = visibilityKeyCacheSize;
+    return this;
+  }
+
+  /**
+   * Set the lifetime of keys in the visibility key cache.
+   *
+   * @param visibilityKeyCacheLifetime
+   *          Number of seconds a cached field encryption key is used.
+   * @return Builder.
+   */
+  public FieldEncryptorConfigBuilder setVisibilityKeyCacheLifetime(long visibilityKeyCacheLifetime) {
+    this.visibilityKeyCacheLifetime = visibilityKeyCacheLifetime;
+    return this;
+  }
+
+  /**
+   * Set the compression codec.
+   *
+   * @param compression
+   *          Codec used to compress the plaintext before it is encrypted.
+   * @return Builder.
+   */
+  public FieldEncryptorConfigBuilder setCompression(Compression compression) {
+    this.compression = compression;
+    return this;
+  }
+
+  /**
+   * Set the compression threshold.
+   *
+   * @param compressionThreshold
+   *          Plaintexts shorter than this number of bytes are stored without compression.
+   * @return Builder.
+   */
+  public FieldEncryptorConfigBuilder setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+    return this;
+  }
+
+  /**
+   * Set the oldest version of the key still present in the data.
+   *
+   * @param minimumKeyVersion
+   *          Oldest live key version, or 0 if all versions may be present.
+   * @return Builder.
+   */
+  public FieldEncryptorConfigBuilder setMinimumKeyVersion(int minimumKeyVersion) {
+    this.minimumKeyVersion = minimumKeyVersion;
+    return this;
+  }
+
+  /**
+   * Set the versions of the key that are no longer present in the data.
+   *
+   * @param retiredKeyVersions
+   *          Retired key versions.
+   * @return Builder.
+   */
+  public FieldEncryptorConfigBuilder setRetiredKeyVersions(Collection<Integer> retiredKeyVersions) {
+    this.retiredKeyVersions = retiredKeyVersions == null ? null : new TreeSet<>(retiredKeyVersions);
+    return this;
+  }
+
+  /**
+   * Set how the row is split into separately encrypted segments.
+   *
+   * @param rowSegmentation
+   *          Row segmentation, or null to encrypt the row whole.
+   * @return Builder.
+   */
+  public FieldEncryptorConfigBuilder setRowSegmentation(RowSegmentation rowSegmentation) {
+    this.rowSegmentation = rowSegmentation;
+    return this;
+  }
+
   /**
    * Read the configuration from a Reader.
    *
@@ -154,6 +255,21 @@ public class FieldEncryptorConfigBuilder {
     setKeyId(section.getOrDefault("keyId", valueEncryptor.toString()));
     setKeyLength(section.containsKey("keyLength") ? Integer.parseInt(section.get("keyLength")) : valueEncryptor.getDefaultKeyLength());
     setDestination(EntryField.fromString(section.getName()));
+    setVisibilityKeyCacheSize(section.containsKey("visibilityKeyCacheSize") ? Integer.parseInt(section.get("visibilityKeyCacheSize")) : 0);
+    setVisibilityKeyCacheLifetime(section.containsKey("visibilityKeyCacheLifetime") ? Long.parseLong(section.get("visibilityKeyCacheLifetime"))
+        : DEFAULT_VISIBILITY_KEY_CACHE_LIFETIME);
+    setCompression(section.containsKey("compression") ? Compression.fromString(section.get("compression")) : Compression.NONE);
+    setCompressionThreshold(section.containsKey("compressionThreshold") ? Integer.parseInt(section.get("compressionThreshold")) : DEFAULT_COMPRESSION_THRESHOLD);
+    setMinimumKeyVersion(section.containsKey("minimumKeyVersion") ? Integer.parseInt(section.get("minimumKeyVersion")) : 0);
+
+    SortedSet<Integer> retiredKeyVersions = new TreeSet<>();
+    if (section.containsKey("retiredKeyVersions")) {
+      for (String version : StringUtils.split(section.get("retiredKeyVersions"), ',')) {
+        retiredKeyVersions.add(Integer.parseInt(version.trim()));
+      }
+    }
+    setRetiredKeyVersions(retiredKeyVersions);
+    setRowSegmentation(section.containsKey("rowSegmentation") ? RowSegmentation.fromString(section.get("rowSegmentation")) : null);
 
     if (!section.containsKey("sources")) {
       addSource(EntryField.fromString(section.getName()));
@@ -172,6 +288,7 @@ public class FieldEncryptorConfigBuilder {
    * @return Built config.
    */
   public FieldEncryptorConfig build() {
-    return new FieldEncryptorConfig(valueEncryptor, provider, encryptUsingVisibility, keyId, keyLength, destination, sources);
+    return new FieldEncryptorConfig(valueEncryptor, provider, encryptUsingVisibility, keyId, keyLength, destination, sources, visibilityKeyCacheSize,
+        visibilityKeyCacheLifetime, compression, compressionThreshold, minimumKeyVersion, retiredKeyVersions, rowSegmentation);
   }
 }
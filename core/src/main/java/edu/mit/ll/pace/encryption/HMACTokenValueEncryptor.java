@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keyed hash tokens, used as a compact blind index for fields that only need to be searched for by equality.
+ * <p>
+ * The token is the HMAC of the plaintext, truncated to {@link #TOKEN_LENGTH} bytes. It has a fixed length regardless of the plaintext, and is shorter than a
+ * deterministic ciphertext, making keys smaller and cheaper to compare on the tablet servers. Tokens cannot be decrypted, so the plaintext must also be stored
+ * by a recoverable field encryptor, such as one encrypting it into the value.
+ */
+final class HMACTokenValueEncryptor extends ValueEncryptorBase {
+
+  /**
+   * Length of a token in bytes.
+   */
+  static final int TOKEN_LENGTH = 16;
+
+  /**
+   * HMAC algorithm used to compute tokens.
+   */
+  private final String algorithm;
+
+  /**
+   * Provider used to compute tokens, or null to use the first provider that supports the algorithm.
+   */
+  private final String provider;
+
+  /**
+   * Instances of the HMAC for each thread, as {@link Mac} instances are stateful.
+   */
+  private final ThreadLocal<Mac> macs;
+
+  /**
+   * Create a token encryptor.
+   *
+   * @param algorithm
+   *          HMAC algorithm used to compute tokens.
+   * @param provider
+   *          Provider used to compute tokens, or null to use the first provider that supports the algorithm.
+   */
+  HMACTokenValueEncryptor(String algorithm, String provider) {
+    this.algorithm = algorithm;
+    this.provider = provider;
+    this.macs = ThreadLocal.withInitial(() -> {
+      try {
+        return this.provider == null ? Mac.getInstance(this.algorithm) : Mac.getInstance(this.algorithm, this.provider);
+      } catch (GeneralSecurityException e) {
+        throw new EncryptionException(e);
+      }
+    });
+  }
+
+  @Override
+  byte[] encrypt(byte[] key, byte[] data) {
+    return encrypt(key, data, 0, data.length, 0);
+  }
+
+  @Override
+  byte[] encrypt(byte[] key, byte[] data, int offset, int length, int headerLength) {
+    Mac mac = macs.get();
+    byte[] hash;
+    try {
+      mac.init(new SecretKeySpec(key, algorithm));
+      mac.update(data, offset, length);
+      hash = mac.doFinal();
+    } catch (GeneralSecurityException e) {
+      throw new EncryptionException(e);
+    }
+
+    byte[] output = new byte[headerLength + TOKEN_LENGTH];
+    System.arraycopy(hash, 0, output, headerLength, TOKEN_LENGTH);
+    return output;
+  }
+
+  /**
+   * Tokens cannot be decrypted.
+   *
+   * @throws UnsupportedOperationException
+   *           Always thrown.
+   */
+  @Override
+  byte[] decrypt(byte[] key, byte[] data) {
+    throw new UnsupportedOperationException("tokens cannot be decrypted");
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Wraps shares of field encryption keys under attribute keys with the AES key wrap algorithm of RFC 3394.
+ * <p>
+ * Key wrap is deterministic and needs neither an IV nor padding, so a share wraps to exactly {@value #OVERHEAD} bytes more than its length. This is safe as the
+ * shares are themselves random. Compared to a general purpose {@link ValueEncryptorBase}, which writes an IV, padding, and possibly a tag for each share, this
+ * considerably shrinks the key metadata of expressions with many terms.
+ * <p>
+ * The key wrap cipher is created from the provider configured for the field, like the field's own cipher.
+ */
+final class KeyWrap {
+
+  /**
+   * Algorithm name of the key wrap cipher.
+   */
+  private static final String ALGORITHM = "AESWrap";
+
+  /**
+   * Number of bytes that wrapping adds to a share.
+   */
+  static final int OVERHEAD = 8;
+
+  /**
+   * Maximum number of attribute keys for which each thread keeps an initialised cipher.
+   */
+  static final int KEY_SCHEDULE_CACHE_SIZE = 256;
+
+  /**
+   * Provider the key wrap ciphers are created from.
+   */
+  private final Provider provider;
+
+  /**
+   * Initialised ciphers, keyed by the attribute key bytes. One cache per thread as {@link Cipher} instances are stateful.
+   */
+  private final ThreadLocal<Cache<ByteBuffer,Cipher>> ciphers = ThreadLocal.withInitial(() -> CacheBuilder.newBuilder().maximumSize(KEY_SCHEDULE_CACHE_SIZE)
+      .build());
+
+  /**
+   * Create a key wrapper.
+   *
+   * @param provider
+   *          Provider to use for the key wrap cipher. Passed to {@link Cipher#getInstance(String, String)}. If null, will search for the appropriate providers
+   *          as defined by the system.
+   * @throws EncryptionException
+   *           Thrown when the provider does not support AES key wrap.
+   */
+  KeyWrap(String provider) {
+    this.provider = ValueEncryptorBase.createCipher(ALGORITHM, provider).getProvider();
+  }
+
+  /**
+   * Whether a share can be wrapped under the given attribute key.
+   *
+   * @param keyLength
+   *          Length of the attribute key. Must be an AES key length.
+   * @param shareLength
+   *          Length of the share. Must be a multiple of 8 bytes, and at least 16 bytes.
+   * @return Whether the share can be wrapped.
+   */
+  static boolean supports(int keyLength, int shareLength) {
+    return (keyLength == 16 || keyLength == 24 || keyLength == 32) && shareLength >= 16 && shareLength % 8 == 0;
+  }
+
+  /**
+   * Wrap a share under an attribute key.
+   *
+   * @param key
+   *          The attribute key.
+   * @param share
+   *          The share to wrap. Must be {@link #supports(int, int) supported} for the key.
+   * @return The wrapped share, exactly {@value #OVERHEAD} bytes longer than the share.
+   * @throws EncryptionException
+   *           Thrown if the share cannot be wrapped.
+   */
+  byte[] wrap(byte[] key, byte[] share) {
+    try {
+      Cipher cipher = getCipher(key);
+      cipher.init(Cipher.WRAP_MODE, new SecretKeySpec(key, "AES"));
+      return cipher.wrap(new SecretKeySpec(share, "AES"));
+    } catch (InvalidKeyException | IllegalBlockSizeException e) {
+      throw new EncryptionException(e);
+    }
+  }
+
+  /**
+   * Unwrap a share that was wrapped with {@link #wrap(byte[], byte[])}.
+   *
+   * @param key
+   *          The attribute key.
+   * @param wrapped
+   *          The wrapped share.
+   * @return The share.
+   * @throws EncryptionException
+   *           Thrown if the wrapped share is corrupt, or was not wrapped under the given key.
+   */
+  byte[] unwrap(byte[] key, byte[] wrapped) {
+    try {
+      Cipher cipher = getCipher(key);
+      cipher.init(Cipher.UNWRAP_MODE, new SecretKeySpec(key, "AES"));
+      Key share = cipher.unwrap(wrapped, "AES", Cipher.SECRET_KEY);
+      return share.getEncoded();
+    } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+      throw new EncryptionException(e);
+    }
+  }
+
+  /**
+   * Get the cipher for the given attribute key on the current thread, creating it if needed. The cipher is only ever initialised with that key, so it keeps the
+   * expanded key between calls.
+   *
+   * @param key
+   *          The attribute key.
+   * @return The cipher.
+   */
+  private Cipher getCipher(byte[] key) {
+    Cache<ByteBuffer,Cipher> cache = ciphers.get();
+    Cipher cipher = cache.getIfPresent(ByteBuffer.wrap(key));
+    if (cipher == null) {
+      try {
+        cipher = Cipher.getInstance(ALGORITHM, provider);
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        throw new EncryptionException(e);
+      }
+      cache.put(ByteBuffer.wrap(key.clone()), cipher);
+    }
+    return cipher;
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import static edu.mit.ll.pace.internal.Utils.EMPTY;
+
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.function.Function;
+
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Value;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import edu.mit.ll.pace.internal.MutableEntry;
+
+/**
+ * Packs the columns written to a row with the same visibility into a single entry, and unpacks them again.
+ * <p>
+ * A packed entry has the row and visibility of its columns, an empty column family, a random column qualifier, and a value holding the column family,
+ * qualifier, timestamp, and value of each column. It is encrypted like any other entry, so a row of many columns costs a single key lookup, IV, and set of
+ * visibility shares, and is stored as a single cell. Columns written without a timestamp take the timestamp of the packed entry when they are unpacked.
+ * <p>
+ * The random qualifier gives every packed entry its own key, so a later packed entry for the same row and visibility never hides an earlier one through
+ * versioning. Instead, the packed entries of a row are read together, and {@link #latest(List, Function)} keeps the newest version of each column. Deleted
+ * columns are packed as tombstones, which hide older versions of the column when the row is merged.
+ */
+final class PackedRow {
+
+  /**
+   * Length of the random identifier stored in the column qualifier of a packed entry.
+   */
+  static final int ID_LENGTH = 16;
+
+  /**
+   * Flag set on a column that has its own timestamp. Columns without it take the timestamp of the packed entry.
+   */
+  private static final byte TIMESTAMP_FLAG = 1;
+
+  /**
+   * Flag set on a column that was deleted. Deleted columns have no value.
+   */
+  private static final byte DELETE_FLAG = 2;
+
+  private PackedRow() {}
+
+  /**
+   * Pack the given updates into one entry.
+   *
+   * @param row
+   *          Row the updates were written to.
+   * @param visibility
+   *          Visibility shared by all the updates.
+   * @param updates
+   *          Updates to pack, which may include deletes.
+   * @return The packed entry. Its column qualifier is a new random identifier, and its timestamp is the latest timestamp of the updates, which is only
+   *         meaningful if {@link #hasTimestamp(List)} is true.
+   */
+  static MutableEntry pack(byte[] row, byte[] visibility, List<ColumnUpdate> updates) {
+    DataOutputBuffer out = new DataOutputBuffer();
+    long timestamp = 0L;
+
+    try {
+      WritableUtils.writeVInt(out, updates.size());
+      for (ColumnUpdate update : updates) {
+        writeBytes(out, update.getColumnFamily());
+        writeBytes(out, update.getColumnQualifier());
+
+        byte flags = 0;
+        if (update.hasTimestamp()) {
+          flags |= TIMESTAMP_FLAG;
+        }
+        if (update.isDeleted()) {
+          flags |= DELETE_FLAG;
+        }
+        out.writeByte(flags);
+
+        if (update.hasTimestamp()) {
+          WritableUtils.writeVLong(out, update.getTimestamp());
+          timestamp = Math.max(timestamp, update.getTimestamp());
+        }
+        if (!update.isDeleted()) {
+          writeBytes(out, update.getValue());
+        }
+      }
+    } catch (IOException e) { // IO exceptions won't be thrown in practice as we are operating on in-memory streams.
+      throw new EncryptionException(e);
+    }
+
+    MutableEntry packed = new MutableEntry();
+    packed.row = row;
+    packed.colQ = RandomSource.nextBytes(ID_LENGTH);
+    packed.colVis = visibility;
+    packed.timestamp = timestamp;
+    packed.value = out.getLength() == out.getData().length ? out.getData() : Arrays.copyOf(out.getData(), out.getLength());
+    return packed;
+  }
+
+  /**
+   * Whether the entry packing the given updates should be written with an explicit timestamp. This is only the case if every update has one; otherwise the
+   * tablet server assigns the timestamp, as it would have for the unpacked updates.
+   *
+   * @param updates
+   *          Updates being packed.
+   * @return Whether the packed entry has an explicit timestamp.
+   */
+  static boolean hasTimestamp(List<ColumnUpdate> updates) {
+    for (ColumnUpdate update : updates) {
+      if (!update.hasTimestamp()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Unpack the columns of a decrypted packed entry.
+   *
+   * @param packed
+   *          The decrypted packed entry.
+   * @return The columns, sorted by key. Deleted columns are returned with {@link Key#isDeleted()} set and an empty value.
+   * @throws EncryptionException
+   *           Thrown if the entry is not a valid packed entry.
+   */
+  static List<Entry<Key,Value>> unpack(MutableEntry packed) {
+    byte[] row = packed.row;
+    byte[] visibility = packed.colVis;
+    byte[] data = packed.value;
+
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(data, data.length);
+
+    try {
+      int count = WritableUtils.readVInt(in);
+      if (count < 0) {
+        throw new IOException("invalid number of packed columns");
+      }
+
+      List<Entry<Key,Value>> columns = new ArrayList<>(Math.min(count, data.length));
+      for (int i = 0; i < count; i++) {
+        byte[] colF = readBytes(in);
+        byte[] colQ = readBytes(in);
+        byte flags = in.readByte();
+        long timestamp = (flags & TIMESTAMP_FLAG) != 0 ? WritableUtils.readVLong(in) : packed.timestamp;
+        boolean deleted = (flags & DELETE_FLAG) != 0;
+        byte[] value = deleted ? EMPTY : readBytes(in);
+        // The columns share the row and visibility arrays, which are never modified.
+        columns.add(new SimpleImmutableEntry<>(new Key(row, colF, colQ, visibility, timestamp, deleted, false), new Value(value, false)));
+      }
+
+      // Columns are packed in the order they were added to the mutation, which need not be sorted.
+      Collections.sort(columns, (first, second) -> first.getKey().compareTo(second.getKey()));
+      return columns;
+    } catch (IOException e) {
+      throw new EncryptionException(e);
+    }
+  }
+
+  /**
+   * Merge the columns unpacked from all the packed entries of a row, keeping only the newest version of each column. Columns whose newest version is a delete
+   * are dropped, as are any older versions of them.
+   * <p>
+   * This mirrors the versioning and delete handling the tablet server applies to unpacked entries, which it cannot apply to the columns inside packed entries.
+   *
+   * @param columns
+   *          Unpacked columns of a row, from any number of packed entries. The list is sorted in place.
+   * @param keyOf
+   *          Function giving the unpacked key of a column.
+   * @param <T>
+   *          Type holding an unpacked column.
+   * @return The newest live version of each column, sorted by key.
+   */
+  static <T> List<T> latest(List<T> columns, Function<T,Key> keyOf) {
+    // Sorting puts the versions of a column together, newest first, with a delete before a put of the same timestamp.
+    columns.sort((first, second) -> keyOf.apply(first).compareTo(keyOf.apply(second)));
+
+    List<T> latest = new ArrayList<>(columns.size());
+    Key previous = null;
+    for (T column : columns) {
+      Key key = keyOf.apply(column);
+      if (previous == null || !key.equals(previous, PartialKey.ROW_COLFAM_COLQUAL_COLVIS)) {
+        if (!key.isDeleted()) {
+          latest.add(column);
+        }
+        previous = key;
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Write a length prefixed array.
+   *
+   * @param out
+   *          Stream to write to.
+   * @param bytes
+   *          Bytes to write.
+   * @throws IOException
+   *           Not actually thrown.
+   */
+  private static void writeBytes(DataOutputBuffer out, byte[] bytes) throws IOException {
+    WritableUtils.writeVInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Read a length prefixed array.
+   *
+   * @param in
+   *          Stream to read from.
+   * @return The bytes.
+   * @throws IOException
+   *           Thrown if the stream is truncated.
+   */
+  private static byte[] readBytes(DataInputBuffer in) throws IOException {
+    int length = WritableUtils.readVInt(in);
+    if (length < 0 || length > in.getLength() - in.getPosition()) {
+      throw new IOException("invalid length for packed field");
+    }
+    if (length == 0) {
+      return EMPTY;
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.function.Supplier;
+
+/**
+ * Source of the randomness used for field keys, key share masks, IVs, and nonces.
+ * <p>
+ * A single shared {@link SecureRandom} serializes every thread that draws from it, which becomes a hotspot under multi-threaded ingest. Instead, each thread
+ * draws from its own generator, created by a pluggable factory. By default, each generator is a DRBG on JVMs that provide it (Java 9 and later), which keeps
+ * its state in the instance. On Java 8, each thread instead gets its own NativePRNGNonBlocking generator, which reads the operating system's non-blocking
+ * source, or the platform default {@link SecureRandom} where that is not available. These avoid contending on a single generator, but still share the
+ * provider's buffer of operating system randomness.
+ * <p>
+ * Applications that need a different generator, for example one backed by a hardware module, can set their own factory with {@link #setFactory(Supplier)}.
+ */
+public final class RandomSource {
+
+  /**
+   * Algorithms to try, in order, when creating the default per-thread generator.
+   */
+  static final String[] ALGORITHMS = new String[] {"DRBG", "NativePRNGNonBlocking"};
+
+  /**
+   * A generator, along with the factory that created it.
+   */
+  private static final class Generator {
+
+    /**
+     * Factory that created the generator.
+     */
+    final Supplier<SecureRandom> factory;
+
+    /**
+     * The generator.
+     */
+    final SecureRandom random;
+
+    Generator(Supplier<SecureRandom> factory) {
+      this.factory = factory;
+      this.random = factory.get();
+    }
+  }
+
+  /**
+   * Factory used to create the generator for each thread.
+   */
+  private static volatile Supplier<SecureRandom> factory = RandomSource::newDefaultGenerator;
+
+  /**
+   * Generator for the current thread.
+   */
+  private static final ThreadLocal<Generator> generators = ThreadLocal.withInitial(() -> new Generator(factory));
+
+  /**
+   * Static class.
+   */
+  private RandomSource() {}
+
+  /**
+   * Create a default generator.
+   *
+   * @return The first available generator from {@link #ALGORITHMS}, or the platform default if none are available.
+   */
+  static SecureRandom newDefaultGenerator() {
+    for (String algorithm : ALGORITHMS) {
+      try {
+        return SecureRandom.getInstance(algorithm);
+      } catch (NoSuchAlgorithmException e) {
+        // Try the next algorithm.
+      }
+    }
+    return new SecureRandom();
+  }
+
+  /**
+   * Set the factory used to create the generator for each thread. Threads replace their generator the next time they draw randomness.
+   * <p>
+   * The factory is called once for each thread that encrypts data, and each generator it returns is only used by that thread. It applies to every encryptor in
+   * the JVM.
+   *
+   * @param factory
+   *          Factory to use, or null to restore the default.
+   */
+  public static void setFactory(Supplier<SecureRandom> factory) {
+    RandomSource.factory = factory == null ? RandomSource::newDefaultGenerator : factory;
+  }
+
+  /**
+   * Get the generator for the current thread.
+   *
+   * @return The generator. It must not be shared with other threads.
+   */
+  static SecureRandom current() {
+    Generator generator = generators.get();
+    Supplier<SecureRandom> current = factory;
+    if (generator.factory != current) {
+      generator = new Generator(current);
+      generators.set(generator);
+    }
+    return generator.random;
+  }
+
+  /**
+   * Fill the given array with random bytes.
+   *
+   * @param bytes
+   *          Array to fill.
+   */
+  static void nextBytes(byte[] bytes) {
+    current().nextBytes(bytes);
+  }
+
+  /**
+   * Get the given number of random bytes.
+   *
+   * @param length
+   *          Number of bytes.
+   * @return Array of random bytes.
+   */
+  static byte[] nextBytes(int length) {
+    byte[] bytes = new byte[length];
+    nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Defines how an encrypted row is split into segments, such as the components of a time-bucketed row, so that it can be searched for by prefix.
+ * <p>
+ * Each segment of the row is encrypted separately, so the encrypted row starts with the encrypted form of each of its leading segments. A scan for rows that
+ * start with a whole number of segments can then be run as a bounded scan on the tablet servers, instead of as a full table scan filtered on the client. Rows
+ * are either split at every occurrence of a delimiter, which is not included in the segments, or into segments of fixed widths. In the latter case, any bytes
+ * past the last width form a final segment.
+ */
+public final class RowSegmentation {
+
+  /**
+   * The delimiter between segments, or -1 if the row is split into fixed widths.
+   */
+  private final int delimiter;
+
+  /**
+   * Widths of the leading segments, or null if the row is split at a delimiter.
+   */
+  private final int[] widths;
+
+  /**
+   * Create a segmentation.
+   *
+   * @param delimiter
+   *          The delimiter between segments, or -1.
+   * @param widths
+   *          Widths of the leading segments, or null.
+   */
+  private RowSegmentation(int delimiter, int[] widths) {
+    this.delimiter = delimiter;
+    this.widths = widths;
+  }
+
+  /**
+   * Split rows at every occurrence of the given delimiter.
+   *
+   * @param delimiter
+   *          The delimiter between segments. Must be an ASCII character.
+   * @return Segmentation.
+   */
+  public static RowSegmentation delimited(char delimiter) {
+    checkArgument(delimiter < 128, "delimiter is not an ASCII character");
+    return new RowSegmentation(delimiter, null);
+  }
+
+  /**
+   * Split rows into segments of the given widths, followed by a segment holding any remaining bytes.
+   *
+   * @param widths
+   *          Width of each leading segment in bytes.
+   * @return Segmentation.
+   */
+  public static RowSegmentation fixedWidth(int... widths) {
+    checkArgument(widths != null, "widths is null");
+    checkArgument(widths.length > 0, "widths is empty");
+    for (int width : widths) {
+      checkArgument(width > 0, "widths must be positive");
+    }
+    return new RowSegmentation(-1, widths.clone());
+  }
+
+  /**
+   * Parse a segmentation as written by {@link #toString()}.
+   *
+   * @param value
+   *          Either "delimiter:" followed by the delimiter, or "widths:" followed by a comma separated list of widths.
+   * @return Segmentation.
+   */
+  static RowSegmentation fromString(String value) {
+    checkArgument(value != null, "value is null");
+    if (value.startsWith("delimiter:")) {
+      String delimiter = value.substring("delimiter:".length());
+      checkArgument(delimiter.length() == 1, "delimiter must be a single character");
+      return delimited(delimiter.charAt(0));
+    } else if (value.startsWith("widths:")) {
+      String[] parts = StringUtils.split(value.substring("widths:".length()), ',');
+      int[] widths = new int[parts.length];
+      for (int i = 0; i < parts.length; i++) {
+        widths[i] = Integer.parseInt(parts[i].trim());
+      }
+      return fixedWidth(widths);
+    } else {
+      throw new IllegalArgumentException("invalid row segmentation: " + value);
+    }
+  }
+
+  /**
+   * Split the row into segments.
+   *
+   * @param row
+   *          Row to split.
+   * @return Segments of the row.
+   */
+  List<byte[]> split(byte[] row) {
+    List<byte[]> segments = new ArrayList<>();
+    int start = 0;
+
+    if (widths == null) {
+      for (int i = 0; i < row.length; i++) {
+        if (row[i] == delimiter) {
+          segments.add(Arrays.copyOfRange(row, start, i));
+          start = i + 1;
+        }
+      }
+      segments.add(Arrays.copyOfRange(row, start, row.length));
+    } else {
+      for (int width : widths) {
+        if (start + width > row.length) {
+          break;
+        }
+        segments.add(Arrays.copyOfRange(row, start, start + width));
+        start += width;
+      }
+      if (start < row.length) {
+        segments.add(Arrays.copyOfRange(row, start, row.length));
+      }
+    }
+
+    return segments;
+  }
+
+  /**
+   * Join segments back into a row. This is the inverse of {@link #split(byte[])}.
+   *
+   * @param segments
+   *          Segments to join.
+   * @return Row.
+   */
+  byte[] join(List<byte[]> segments) {
+    int length = widths == null ? Math.max(segments.size() - 1, 0) : 0;
+    for (byte[] segment : segments) {
+      length += segment.length;
+    }
+
+    byte[] row = new byte[length];
+    int position = 0;
+    for (int i = 0; i < segments.size(); i++) {
+      if (widths == null && i > 0) {
+        row[position++] = (byte) delimiter;
+      }
+      System.arraycopy(segments.get(i), 0, row, position, segments.get(i).length);
+      position += segments.get(i).length;
+    }
+    return row;
+  }
+
+  /**
+   * Get the lengths of the prefixes of the row that end with a complete segment, i.e., the prefixes shared by every row that starts with the same segments. For
+   * a delimited row, each prefix includes the delimiter that ends its last segment.
+   *
+   * @param row
+   *          Row to examine.
+   * @return Prefix lengths, in ascending order. The prefix of the i-th length holds i + 1 segments.
+   */
+  int[] getPrefixLengths(byte[] row) {
+    List<Integer> lengths = new ArrayList<>();
+
+    if (widths == null) {
+      for (int i = 0; i < row.length; i++) {
+        if (row[i] == delimiter) {
+          lengths.add(i + 1);
+        }
+      }
+    } else {
+      int length = 0;
+      for (int width : widths) {
+        length += width;
+        if (length > row.length) {
+          break;
+        }
+        lengths.add(length);
+      }
+    }
+
+    return lengths.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * delimiter + Arrays.hashCode(widths);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof RowSegmentation)) {
+      return false;
+    }
+
+    RowSegmentation other = (RowSegmentation) obj;
+    return delimiter == other.delimiter && Arrays.equals(widths, other.widths);
+  }
+
+  @Override
+  public String toString() {
+    if (widths == null) {
+      return "delimiter:" + (char) delimiter;
+    } else {
+      return "widths:" + Arrays.stream(widths).mapToObj(Integer::toString).collect(Collectors.joining(","));
+    }
+  }
+}
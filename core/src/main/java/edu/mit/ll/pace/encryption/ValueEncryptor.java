@@ -26,7 +26,8 @@ import com.google.common.collect.ImmutableList;
 public enum ValueEncryptor {
   AES_SIV_DETERMINISTIC("AES_SIV_DETERMINISTIC", true, true, null), AES_CTR("AES_CTR", false, false, "AES/CTR/NoPadding"), AES_CFB("AES_CFB", false, false,
       "AES/CFB/NoPadding"), AES_CBC("AES_CBC", false, false, "AES/CBC/PKCS5Padding"), AES_OFB("AES_OFB", false, false, "AES/OFB/NoPadding"), AES_GCM("AES_GCM",
-      false, false, "AES/GCM/NoPadding");
+      false, false, "AES/GCM/NoPadding"), AES_GCM_CHUNKED("AES_GCM_CHUNKED", false, false, "AES/GCM/NoPadding"), HMAC_SHA256_TOKEN("HMAC_SHA256_TOKEN", true,
+      false, "HmacSHA256", false);
 
   /**
    * Valid key sizes for generic AES.
@@ -64,6 +65,11 @@ public enum ValueEncryptor {
    */
   private final boolean needsTwoKeys;
 
+  /**
+   * Whether the plaintext can be recovered from the encryptor's output.
+   */
+  private final boolean recoverable;
+
   /**
    * Transformation used by this encryptor, or null if the encryptor's implementation does not rely on {@link javax.crypto.Cipher#getInstance(String, String)}.
    * <p>
@@ -85,10 +91,29 @@ public enum ValueEncryptor {
    *          {@link javax.crypto.Cipher#getInstance(String, String)}.
    */
   ValueEncryptor(String name, boolean deterministic, boolean needsTwoKeys, String transformation) {
+    this(name, deterministic, needsTwoKeys, transformation, true);
+  }
+
+  /**
+   * Create the value encryptor.
+   *
+   * @param name
+   *          Name of the encryptor.
+   * @param deterministic
+   *          Whether the encryptor is deterministic in its encryption of ciphertext (i.e., same value produces the same encrypted ciphertext).
+   * @param needsTwoKeys
+   *          Whether the encryptor needs two keys, an encryption and iv-generation key.
+   * @param transformation
+   *          Transformation or algorithm used by this encryptor, or null if the encryptor's implementation does not rely on the JCE.
+   * @param recoverable
+   *          Whether the plaintext can be recovered from the encryptor's output.
+   */
+  ValueEncryptor(String name, boolean deterministic, boolean needsTwoKeys, String transformation, boolean recoverable) {
     this.name = name;
     this.deterministic = deterministic;
     this.needsTwoKeys = needsTwoKeys;
     this.transformation = transformation;
+    this.recoverable = recoverable;
   }
 
   @Override
@@ -122,6 +147,16 @@ public enum ValueEncryptor {
     return deterministic;
   }
 
+  /**
+   * Gets whether the plaintext can be recovered from this encryptor's output. The output of an encryptor that is not recoverable is only useful for searching,
+   * and the plaintext must also be stored by a recoverable encryptor.
+   *
+   * @return Whether this encryptor is recoverable.
+   */
+  boolean isRecoverable() {
+    return recoverable;
+  }
+
   /**
    * Gets the default key length for this encryptor.
    *
@@ -161,6 +196,12 @@ public enum ValueEncryptor {
       case AES_GCM:
         return new AESValueEncryptor(transformation, provider);
 
+      case AES_GCM_CHUNKED:
+        return new ChunkedAESValueEncryptor(transformation, provider);
+
+      case HMAC_SHA256_TOKEN:
+        return new HMACTokenValueEncryptor(transformation, provider);
+
       default:
         throw new UnsupportedOperationException();
     }
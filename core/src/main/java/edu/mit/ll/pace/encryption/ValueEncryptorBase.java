@@ -16,12 +16,74 @@
 package edu.mit.ll.pace.encryption;
 
 import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
 
 /**
  * Defines the contract for classes that supports symmetric encryption and decryption of data.
+ * <p>
+ * Implementations must be safe for concurrent use by multiple threads.
  */
 abstract class ValueEncryptorBase {
 
+  /**
+   * Create the ciphers for an encryptor that uses {@link Cipher}, one per thread as {@link Cipher} instances are stateful.
+   * <p>
+   * The first cipher is created immediately, so that an invalid transformation or provider is reported when the encryptor is created. Ciphers for other threads
+   * are created from the same provider that was resolved for the first cipher.
+   *
+   * @param transformation
+   *          Cipher transformation. Passed to {@link Cipher#getInstance(String, String)}.
+   * @param provider
+   *          Cipher provider. Passed to {@link Cipher#getInstance(String, String)}. If null, the highest priority provider supporting the transformation is
+   *          used.
+   * @return The per-thread ciphers, with a cipher already created for the calling thread.
+   * @throws EncryptionException
+   *           Thrown when the cipher can't be instantiated.
+   */
+  static ThreadLocal<Cipher> createThreadLocalCiphers(String transformation, String provider) {
+    Cipher cipher = createCipher(transformation, provider);
+    Provider resolvedProvider = cipher.getProvider();
+    ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+      try {
+        return Cipher.getInstance(transformation, resolvedProvider);
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        throw new EncryptionException(e);
+      }
+    });
+    ciphers.set(cipher);
+    return ciphers;
+  }
+
+  /**
+   * Create a cipher from the given provider.
+   *
+   * @param transformation
+   *          Cipher transformation. Passed to {@link Cipher#getInstance(String, String)}.
+   * @param provider
+   *          Cipher provider. Passed to {@link Cipher#getInstance(String, String)}. If null, the highest priority provider supporting the transformation is
+   *          used.
+   * @return The cipher. Further ciphers should be created from its {@link Cipher#getProvider() provider}, which is resolved when the provider is null.
+   * @throws EncryptionException
+   *           Thrown when the cipher can't be instantiated.
+   */
+  static Cipher createCipher(String transformation, String provider) {
+    try {
+      if (provider == null) {
+        return Cipher.getInstance(transformation);
+      } else {
+        return Cipher.getInstance(transformation, provider);
+      }
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | NoSuchProviderException e) {
+      throw new EncryptionException(e);
+    }
+  }
+
   /**
    * Encrypt the given data with the given key.
    *
@@ -52,4 +114,57 @@ abstract class ValueEncryptorBase {
    */
   abstract byte[] decrypt(byte[] key, byte[] data) throws EncryptionException, IOException;
 
+  /**
+   * Encrypt a slice of the given data with the given key, reserving space at the front of the returned array for a header written by the caller.
+   * <p>
+   * The default implementation copies the data and delegates to {@link #encrypt(byte[], byte[])}. Implementations that can write their output in place should
+   * override this method so that the ciphertext is allocated exactly once.
+   *
+   * @param key
+   *          Key to encrypt with.
+   * @param data
+   *          Buffer containing the data to encrypt.
+   * @param offset
+   *          Offset of the data in the buffer.
+   * @param length
+   *          Length of the data in the buffer.
+   * @param headerLength
+   *          Number of bytes to leave unused at the front of the returned array.
+   * @return An array of exactly {@code headerLength} bytes followed by the encrypted data, encoded with any metadata needed to decrypt the data.
+   * @throws EncryptionException
+   *           Thrown if an error happens during encryption.
+   * @throws IOException
+   *           Not actually thrown.
+   */
+  byte[] encrypt(byte[] key, byte[] data, int offset, int length, int headerLength) throws EncryptionException, IOException {
+    byte[] ciphertext = encrypt(key, Arrays.copyOfRange(data, offset, offset + length));
+    byte[] output = new byte[headerLength + ciphertext.length];
+    System.arraycopy(ciphertext, 0, output, headerLength, ciphertext.length);
+    return output;
+  }
+
+  /**
+   * Decrypt a slice of the given data with the given key.
+   * <p>
+   * The default implementation copies the data and delegates to {@link #decrypt(byte[], byte[])}. Implementations that can read their input in place should
+   * override this method.
+   *
+   * @param key
+   *          Key to decrypt with.
+   * @param data
+   *          Buffer containing the data to decrypt, including the encoded metadata needed to decrypt the data.
+   * @param offset
+   *          Offset of the data in the buffer.
+   * @param length
+   *          Length of the data in the buffer.
+   * @return The decrypted data.
+   * @throws EncryptionException
+   *           Thrown if an error happens during encryption
+   * @throws IOException
+   *           Not actually thrown.
+   */
+  byte[] decrypt(byte[] key, byte[] data, int offset, int length) throws EncryptionException, IOException {
+    return decrypt(key, Arrays.copyOfRange(data, offset, offset + length));
+  }
+
 }
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import static edu.mit.ll.pace.internal.Utils.VISIBILITY_CHARSET;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.accumulo.core.security.ColumnVisibility.Node;
+import org.apache.accumulo.core.security.ColumnVisibility.NodeType;
+import org.apache.hadoop.io.WritableUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A parsed visibility expression, compiled into the form used to split field encryption keys into shares.
+ * <p>
+ * Plans are immutable, and are cached process-wide by the bytes of their expression, so that entries with the same visibility do not parse the expression or
+ * decode its terms again.
+ */
+final class VisibilityPlan {
+
+  /**
+   * Maximum number of plans kept in the cache.
+   */
+  static final int CACHE_SIZE = 1 << 14;
+
+  /**
+   * Process-wide cache of compiled plans, keyed by the bytes of the expression.
+   */
+  private static final Cache<ByteBuffer,VisibilityPlan> plans = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+  /**
+   * Tag written before a term in a serialized tree.
+   */
+  private static final byte TERM_TAG = 0;
+
+  /**
+   * Tag written before an AND node in a serialized tree.
+   */
+  private static final byte AND_TAG = 1;
+
+  /**
+   * Tag written before an OR node in a serialized tree.
+   */
+  private static final byte OR_TAG = 2;
+
+  /**
+   * A node in the compiled expression.
+   */
+  static final class PlanNode {
+
+    /**
+     * Type of the node, either {@link NodeType#TERM}, {@link NodeType#AND}, or {@link NodeType#OR}.
+     */
+    final NodeType type;
+
+    /**
+     * For a term, its index in {@link VisibilityPlan#attributes}; otherwise -1.
+     */
+    final int term;
+
+    /**
+     * Children of an AND or OR node; empty for a term.
+     */
+    final PlanNode[] children;
+
+    PlanNode(NodeType type, int term, PlanNode[] children) {
+      this.type = type;
+      this.term = term;
+      this.children = children;
+    }
+  }
+
+  /**
+   * The visibility expression. Must not be modified.
+   */
+  final byte[] expression;
+
+  /**
+   * The parsed visibility.
+   */
+  final ColumnVisibility visibility;
+
+  /**
+   * Root of the compiled expression, or null if the expression is empty.
+   */
+  final PlanNode root;
+
+  /**
+   * Root of the minimized expression, which is logically equivalent to the expression but has no nested operators of the same type, duplicate operands, or
+   * operands absorbed by other operands. Its terms index {@link #attributes} like those of {@link #root}. This is the same instance as {@link #root} if the
+   * expression is already minimal.
+   */
+  final PlanNode minimized;
+
+  /**
+   * The attribute for each term in the expression, in depth-first order.
+   */
+  final String[] attributes;
+
+  /**
+   * Number of random masks needed to split a key into shares for the minimized expression, one fewer than the number of children of each AND node.
+   */
+  final int masks;
+
+  /**
+   * Compile a plan for the given visibility.
+   *
+   * @param visibility
+   *          The parsed visibility.
+   */
+  private VisibilityPlan(ColumnVisibility visibility) {
+    this.visibility = visibility;
+    this.expression = visibility.getExpression();
+
+    List<String> attributes = new ArrayList<>();
+    Node tree = visibility.getParseTree();
+    this.root = tree.getType() == NodeType.EMPTY ? null : compile(tree, attributes);
+    this.attributes = attributes.toArray(new String[attributes.size()]);
+
+    PlanNode minimized = root == null ? null : minimize(root);
+    this.minimized = root == null || isSameTree(root, minimized) ? root : minimized;
+    this.masks = root == null ? 0 : countMasks(this.minimized);
+  }
+
+  /**
+   * Minimize a node of the compiled expression by flattening nested operators of the same type, removing duplicate operands, and applying absorption, i.e.,
+   * {@code a|(a&b) = a} and {@code a&(a|b) = a}.
+   * <p>
+   * The minimized tree is serialized with the shares written for it, using {@link #writeTree(PlanNode, DataOutput)}, so readers never run this method. It can
+   * therefore be changed without breaking existing data.
+   *
+   * @param node
+   *          Node to minimize.
+   * @return The minimized node.
+   */
+  private PlanNode minimize(PlanNode node) {
+    if (node.type == NodeType.TERM) {
+      return node;
+    }
+
+    // Minimize the children, flattening any that have the same type as this node.
+    List<PlanNode> children = new ArrayList<>();
+    for (PlanNode child : node.children) {
+      PlanNode minimizedChild = minimize(child);
+      if (minimizedChild.type == node.type) {
+        children.addAll(Arrays.asList(minimizedChild.children));
+      } else {
+        children.add(minimizedChild);
+      }
+    }
+
+    // Treat each child as a set of operands of the other type. A child is dropped if another child's operands are a strict subset of its own, or if an earlier
+    // child has the same operands.
+    List<Set<String>> operands = new ArrayList<>(children.size());
+    for (PlanNode child : children) {
+      operands.add(getOperands(child, node.type == NodeType.AND ? NodeType.OR : NodeType.AND));
+    }
+
+    List<PlanNode> kept = new ArrayList<>();
+    for (int i = 0; i < children.size(); i++) {
+      boolean absorbed = false;
+      for (int j = 0; j < children.size() && !absorbed; j++) {
+        Set<String> mine = operands.get(i), other = operands.get(j);
+        absorbed = j != i && mine.containsAll(other) && (other.size() < mine.size() || j < i);
+      }
+      if (!absorbed) {
+        kept.add(children.get(i));
+      }
+    }
+
+    return kept.size() == 1 ? kept.get(0) : new PlanNode(node.type, -1, kept.toArray(new PlanNode[kept.size()]));
+  }
+
+  /**
+   * Get the canonical forms of the operands of a node, viewed as an operator of the given type. A node of a different type is its own single operand.
+   *
+   * @param node
+   *          Node to get the operands of.
+   * @param type
+   *          Operator type, either {@link NodeType#AND} or {@link NodeType#OR}.
+   * @return Canonical forms of the operands.
+   */
+  private Set<String> getOperands(PlanNode node, NodeType type) {
+    Set<String> operands = new HashSet<>();
+    if (node.type == type) {
+      for (PlanNode child : node.children) {
+        operands.add(getCanonicalForm(child));
+      }
+    } else {
+      operands.add(getCanonicalForm(node));
+    }
+    return operands;
+  }
+
+  /**
+   * Get a canonical form of a node, which is equal for two nodes exactly when they have the same type and, ignoring order, the same operands.
+   *
+   * @param node
+   *          Node to get the canonical form of.
+   * @return The canonical form.
+   */
+  private String getCanonicalForm(PlanNode node) {
+    if (node.type == NodeType.TERM) {
+      String attribute = attributes[node.term];
+      return attribute.length() + ":" + attribute;
+    }
+
+    List<String> children = new ArrayList<>();
+    for (PlanNode child : node.children) {
+      children.add(getCanonicalForm(child));
+    }
+    Collections.sort(children);
+    return node.type + "(" + String.join(",", children) + ")";
+  }
+
+  /**
+   * Whether two nodes have the same structure and terms.
+   *
+   * @param first
+   *          First node.
+   * @param second
+   *          Second node.
+   * @return Whether the nodes are the same.
+   */
+  private static boolean isSameTree(PlanNode first, PlanNode second) {
+    if (first.type != second.type || first.term != second.term || first.children.length != second.children.length) {
+      return false;
+    }
+    for (int i = 0; i < first.children.length; i++) {
+      if (!isSameTree(first.children[i], second.children[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Count the random masks needed to split a key into shares for the given node.
+   *
+   * @param node
+   *          Node to count masks for.
+   * @return Number of masks.
+   */
+  private static int countMasks(PlanNode node) {
+    int masks = node.type == NodeType.AND ? node.children.length - 1 : 0;
+    for (PlanNode child : node.children) {
+      masks += countMasks(child);
+    }
+    return masks;
+  }
+
+  /**
+   * Write a compiled tree of this expression, such as {@link #minimized}, so that readers can use it without recomputing it.
+   * <p>
+   * Nodes are written depth first. Each is a tag byte followed by a vint, which is the index of the attribute in {@link #attributes} for a term, and the number
+   * of children for an AND or OR.
+   *
+   * @param node
+   *          Root of the tree to write.
+   * @param out
+   *          Stream to write to.
+   * @throws IOException
+   *           Thrown if the stream cannot be written.
+   */
+  static void writeTree(PlanNode node, DataOutput out) throws IOException {
+    switch (node.type) {
+      case TERM:
+        out.writeByte(TERM_TAG);
+        WritableUtils.writeVInt(out, node.term);
+        break;
+
+      case AND:
+      case OR:
+        out.writeByte(node.type == NodeType.AND ? AND_TAG : OR_TAG);
+        WritableUtils.writeVInt(out, node.children.length);
+        for (PlanNode child : node.children) {
+          writeTree(child, out);
+        }
+        break;
+
+      default:
+        throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Read a tree of this expression written by {@link #writeTree(PlanNode, DataOutput)}.
+   *
+   * @param in
+   *          Stream to read from.
+   * @return Root of the tree.
+   * @throws IOException
+   *           Thrown if the tree is truncated or is not a valid tree of this expression.
+   */
+  PlanNode readTree(DataInput in) throws IOException {
+    // A minimized tree has no more terms than the expression, and every operator has at least two children, so it has fewer than twice as many nodes.
+    int[] remainingNodes = {2 * attributes.length};
+    return readTree(in, remainingNodes);
+  }
+
+  /**
+   * Read a node of a serialized tree.
+   *
+   * @param in
+   *          Stream to read from.
+   * @param remainingNodes
+   *          Number of nodes that may still be read, which bounds the size and depth of the tree.
+   * @return The node.
+   * @throws IOException
+   *           Thrown if the tree is truncated or is not a valid tree of this expression.
+   */
+  private PlanNode readTree(DataInput in, int[] remainingNodes) throws IOException {
+    if (--remainingNodes[0] < 0) {
+      throw new IOException("serialized visibility tree has too many nodes");
+    }
+
+    byte tag = in.readByte();
+    int value = WritableUtils.readVInt(in);
+    switch (tag) {
+      case TERM_TAG:
+        if (value < 0 || value >= attributes.length) {
+          throw new IOException("serialized visibility tree has an invalid term");
+        }
+        return new PlanNode(NodeType.TERM, value, new PlanNode[0]);
+
+      case AND_TAG:
+      case OR_TAG:
+        if (value < 2 || value > remainingNodes[0]) {
+          throw new IOException("serialized visibility tree has an invalid number of children");
+        }
+        PlanNode[] children = new PlanNode[value];
+        for (int i = 0; i < children.length; i++) {
+          children[i] = readTree(in, remainingNodes);
+        }
+        return new PlanNode(tag == AND_TAG ? NodeType.AND : NodeType.OR, -1, children);
+
+      default:
+        throw new IOException("serialized visibility tree has an invalid node");
+    }
+  }
+
+  /**
+   * Compile a node of the parse tree.
+   *
+   * @param node
+   *          Node to compile.
+   * @param attributes
+   *          List to which the attributes of terms are added, in depth-first order.
+   * @return The compiled node.
+   */
+  private PlanNode compile(Node node, List<String> attributes) {
+    switch (node.getType()) {
+      case TERM:
+        attributes.add(new String(node.getTerm(expression).toArray(), VISIBILITY_CHARSET));
+        return new PlanNode(NodeType.TERM, attributes.size() - 1, new PlanNode[0]);
+
+      case AND:
+      case OR:
+        PlanNode[] children = new PlanNode[node.getChildren().size()];
+        for (int i = 0; i < children.length; i++) {
+          children[i] = compile(node.getChildren().get(i), attributes);
+        }
+        return new PlanNode(node.getType(), -1, children);
+
+      default:
+        throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Get the plan for the given visibility expression, compiling and caching it if needed.
+   *
+   * @param expression
+   *          The visibility expression. It is copied before being cached, so the caller may modify it afterwards.
+   * @return The plan.
+   * @throws IllegalArgumentException
+   *           Thrown if the expression is not a valid visibility.
+   */
+  static VisibilityPlan of(byte[] expression) {
+    VisibilityPlan plan = plans.getIfPresent(ByteBuffer.wrap(expression));
+    if (plan == null) {
+      // Racing threads may each compile the same plan; the plans are equivalent, so it does not matter which is kept.
+      plan = new VisibilityPlan(new ColumnVisibility(expression.clone()));
+      plans.put(ByteBuffer.wrap(plan.expression), plan);
+    }
+    return plan;
+  }
+
+  /**
+   * Whether the expression is empty, in which case the field is not protected by any attribute.
+   *
+   * @return Whether the expression is empty.
+   */
+  boolean isEmpty() {
+    return root == null;
+  }
+}
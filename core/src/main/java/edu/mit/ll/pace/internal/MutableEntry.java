@@ -20,6 +20,7 @@ import static edu.mit.ll.pace.internal.Utils.EMPTY;
 import java.util.AbstractMap;
 import java.util.Map;
 
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.ColumnUpdate;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Value;
@@ -29,6 +30,11 @@ import edu.mit.ll.pace.EntryField;
 /**
  * Mutable container representing an Accumulo entry.
  * <p>
+ * When created from a key or entry, the fields are views of the key's and value's own buffers rather than copies, and the key and value are remembered. Fields
+ * that are replaced with new arrays are treated as changed; if none of the fields of the key or value have changed, {@link #toKey()} and {@link #toEntry()}
+ * return the original key and value instead of creating new ones. The arrays of the fields must therefore never be modified in place.
+ * </p>
+ * <p>
  * This class is not part of the PACE API, and should not be used.
  * </p>
  */
@@ -49,6 +55,21 @@ public final class MutableEntry implements Cloneable {
    */
   public boolean delete = false;
 
+  /**
+   * The key this entry was created from, or null.
+   */
+  private Key sourceKey = null;
+
+  /**
+   * The value this entry was created from, or null.
+   */
+  private Value sourceValue = null;
+
+  /**
+   * The fields of {@link #sourceKey} and {@link #sourceValue}, used to detect whether they have been replaced.
+   */
+  private byte[] sourceRow, sourceColF, sourceColQ, sourceColVis, sourceValueBytes;
+
   /**
    * Creates an empty mutable entry.
    */
@@ -61,12 +82,13 @@ public final class MutableEntry implements Cloneable {
    *          Key to wrap.
    */
   public MutableEntry(Key key) {
-    row = key.getRowData().getBackingArray();
-    colF = key.getColumnFamilyData().getBackingArray();
-    colQ = key.getColumnQualifierData().getBackingArray();
-    colVis = key.getColumnVisibilityData().getBackingArray();
+    row = sourceRow = bytesOf(key.getRowData());
+    colF = sourceColF = bytesOf(key.getColumnFamilyData());
+    colQ = sourceColQ = bytesOf(key.getColumnQualifierData());
+    colVis = sourceColVis = bytesOf(key.getColumnVisibilityData());
     timestamp = key.getTimestamp();
     delete = key.isDeleted();
+    sourceKey = key;
   }
 
   /**
@@ -77,7 +99,22 @@ public final class MutableEntry implements Cloneable {
    */
   public MutableEntry(Map.Entry<Key,Value> entry) {
     this(entry.getKey());
-    value = entry.getValue().get();
+    value = sourceValueBytes = entry.getValue().get();
+    sourceValue = entry.getValue();
+  }
+
+  /**
+   * Get the bytes of a sequence, without copying them if the sequence is exactly its backing array.
+   *
+   * @param sequence
+   *          Sequence to read.
+   * @return The bytes of the sequence.
+   */
+  private static byte[] bytesOf(ByteSequence sequence) {
+    if (sequence.isBackedByArray() && sequence.offset() == 0 && sequence.length() == sequence.getBackingArray().length) {
+      return sequence.getBackingArray();
+    }
+    return sequence.toArray();
   }
 
   /**
@@ -104,6 +141,10 @@ public final class MutableEntry implements Cloneable {
    * @return An Accumulo key.
    */
   public Key toKey() {
+    if (sourceKey != null && row == sourceRow && colF == sourceColF && colQ == sourceColQ && colVis == sourceColVis && timestamp == sourceKey.getTimestamp()
+        && delete == sourceKey.isDeleted()) {
+      return sourceKey;
+    }
     return new Key(row, colF, colQ, colVis, timestamp, delete, false);
   }
 
@@ -113,7 +154,7 @@ public final class MutableEntry implements Cloneable {
    * @return An Accumulo entry.
    */
   public Map.Entry<Key,Value> toEntry() {
-    return new AbstractMap.SimpleImmutableEntry<>(toKey(), new Value(value, false));
+    return new AbstractMap.SimpleImmutableEntry<>(toKey(), sourceValue != null && value == sourceValueBytes ? sourceValue : new Value(value, false));
   }
 
   /**
@@ -60,4 +60,46 @@ public final class Utils {
     return first;
   }
 
+  /**
+   * Write an integer to the buffer using the variable length encoding of {@link org.apache.hadoop.io.WritableUtils#writeVInt(java.io.DataOutput, int)}.
+   * <p>
+   * The caller is responsible for ensuring the buffer is large enough, which can be computed using {@link org.apache.hadoop.io.WritableUtils#getVIntSize(long)}.
+   *
+   * @param buffer
+   *          Buffer to write to.
+   * @param offset
+   *          Offset in the buffer to start writing at.
+   * @param value
+   *          Value to write.
+   * @return The offset immediately after the written value.
+   */
+  public static int writeVInt(byte[] buffer, int offset, int value) {
+    long i = value;
+    if (i >= -112 && i <= 127) {
+      buffer[offset++] = (byte) i;
+      return offset;
+    }
+
+    int len = -112;
+    if (i < 0) {
+      i ^= -1L; // take one's complement
+      len = -120;
+    }
+
+    long tmp = i;
+    while (tmp != 0) {
+      tmp = tmp >> 8;
+      len--;
+    }
+
+    buffer[offset++] = (byte) len;
+    len = (len < -120) ? -(len + 120) : -(len + 112);
+
+    for (int idx = len; idx != 0; idx--) {
+      int shiftbits = (idx - 1) * 8;
+      buffer[offset++] = (byte) ((i >> shiftbits) & 0xFF);
+    }
+    return offset;
+  }
+
 }
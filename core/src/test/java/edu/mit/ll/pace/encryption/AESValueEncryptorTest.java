@@ -22,11 +22,22 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.isA;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertThat;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.security.Security;
+import java.util.Arrays;
 
 import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.hadoop.io.WritableUtils;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.BeforeClass;
@@ -109,4 +120,84 @@ public class AESValueEncryptorTest {
     }
   }
 
+  @Test
+  public void inPlaceEncryptionTest() throws Exception {
+    for (ValueEncryptor valueEncryptor : new ValueEncryptor[] {ValueEncryptor.AES_CBC, ValueEncryptor.AES_CTR, ValueEncryptor.AES_GCM}) {
+      ValueEncryptorBase encryptor = valueEncryptor.getInstance(null);
+      byte[] data = "xx1234567890123457yy".getBytes(VISIBILITY_CHARSET);
+      byte[] key = "aabbccddaabbccdd".getBytes(VISIBILITY_CHARSET);
+
+      byte[] ciphertext = encryptor.encrypt(key, data, 2, 16, 3);
+      assertThat("header is left empty", Arrays.copyOf(ciphertext, 3), is(equalTo(new byte[3])));
+
+      byte[] plaintext = encryptor.decrypt(key, ciphertext, 3, ciphertext.length - 3);
+      assertThat("decrypting the slice should give the plaintext", plaintext, is(equalTo(Arrays.copyOfRange(data, 2, 18))));
+
+      plaintext = encryptor.decrypt(key, Arrays.copyOfRange(ciphertext, 3, ciphertext.length));
+      assertThat("slice and array apis should be compatible", plaintext, is(equalTo(Arrays.copyOfRange(data, 2, 18))));
+    }
+  }
+
+  @Test
+  public void serializedFormatTest() throws Exception {
+    byte[] plaintext = "1234".getBytes(VISIBILITY_CHARSET);
+    byte[] key = "aabbccddaabbccdd".getBytes(VISIBILITY_CHARSET);
+
+    // Manually create a ciphertext in the original format "params length || params || ciphertext".
+    for (String[] transformation : new String[][] { {"AES/CBC/PKCS5Padding", "AES_CBC", null}, {"AES/CTR/NoPadding", "AES_CTR", null},
+        {"AES/GCM/NoPadding", "AES_GCM", "SunJCE"}, {"AES/GCM/NoPadding", "AES_GCM", "BC"}}) {
+      Cipher cipher = transformation[2] == null ? Cipher.getInstance(transformation[0]) : Cipher.getInstance(transformation[0], transformation[2]);
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+      byte[] params = cipher.getParameters().getEncoded();
+
+      ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(stream);
+      WritableUtils.writeVInt(out, params.length);
+      out.write(params);
+      out.write(cipher.doFinal(plaintext));
+
+      ValueEncryptorBase encryptor = ValueEncryptor.valueOf(transformation[1]).getInstance(transformation[2]);
+      assertThat("existing ciphertexts can be decrypted", encryptor.decrypt(key, stream.toByteArray()), is(equalTo(plaintext)));
+      assertThat("compact ciphertexts are smaller", encryptor.encrypt(key, plaintext).length, is(lessThan(stream.size())));
+    }
+  }
+
+  @Test
+  public void compactFormatTest() throws Exception {
+    byte[] plaintext = "1234".getBytes(VISIBILITY_CHARSET);
+    byte[] key = "aabbccddaabbccdd".getBytes(VISIBILITY_CHARSET);
+
+    for (String provider : new String[] {null, "BC"}) {
+      // Manually decrypt a ciphertext in the format "marker || IV || ciphertext".
+      byte[] ciphertext = ValueEncryptor.AES_CBC.getInstance(provider).encrypt(key, plaintext);
+      assertThat("ciphertext starts with the marker", ciphertext[0], is(AESValueEncryptor.COMPACT_FORMAT_MARKER));
+      assertThat("ciphertext has a raw IV", ciphertext.length, is(1 + 16 + 16));
+
+      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(ciphertext, 1, 16));
+      assertThat("ciphertext is decrypted with the raw IV", cipher.doFinal(ciphertext, 17, 16), is(equalTo(plaintext)));
+
+      ciphertext = ValueEncryptor.AES_GCM.getInstance(provider).encrypt(key, plaintext);
+      assertThat("ciphertext starts with the marker", ciphertext[0], is(AESValueEncryptor.COMPACT_FORMAT_MARKER));
+      assertThat("ciphertext has a raw nonce and a full tag", ciphertext.length, is(1 + AESValueEncryptor.GCM_IV_LENGTH + plaintext.length
+          + AESValueEncryptor.GCM_TAG_LENGTH / 8));
+
+      cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(AESValueEncryptor.GCM_TAG_LENGTH, ciphertext, 1,
+          AESValueEncryptor.GCM_IV_LENGTH));
+      assertThat("ciphertext is decrypted with the raw nonce",
+          cipher.doFinal(ciphertext, 1 + AESValueEncryptor.GCM_IV_LENGTH, ciphertext.length - 1 - AESValueEncryptor.GCM_IV_LENGTH), is(equalTo(plaintext)));
+    }
+  }
+
+  @Test
+  public void truncatedCompactFormatTest() throws Exception {
+    byte[] key = "aabbccddaabbccdd".getBytes(VISIBILITY_CHARSET);
+    byte[] ciphertext = ValueEncryptor.AES_CTR.getInstance(null).encrypt(key, "1234".getBytes(VISIBILITY_CHARSET));
+
+    thrown.expect(EncryptionException.class);
+    thrown.expectCause(isA(EOFException.class));
+    ValueEncryptor.AES_CTR.getInstance(null).decrypt(key, Arrays.copyOf(ciphertext, 10));
+  }
+
 }
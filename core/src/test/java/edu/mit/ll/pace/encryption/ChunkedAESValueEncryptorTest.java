@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import static edu.mit.ll.pace.internal.Utils.VISIBILITY_CHARSET;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.isA;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Test {@link ChunkedAESValueEncryptor}.
+ */
+public class ChunkedAESValueEncryptorTest {
+
+  /**
+   * Use small chunks so that the tests cover many chunks without large values.
+   */
+  private static final int CHUNK_SIZE_BITS = 6;
+  private static final int CHUNK_SIZE = 1 << CHUNK_SIZE_BITS;
+  private static final int CHUNK_LENGTH = CHUNK_SIZE + ChunkedAESValueEncryptor.TAG_LENGTH;
+
+  private static final byte[] KEY = "aabbccddaabbccdd".getBytes(VISIBILITY_CHARSET);
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @BeforeClass
+  public static void registerBouncyCastle() {
+    if (Security.getProvider("BC") == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  @Test
+  public void encryptDecryptTest() throws Exception {
+    for (String provider : new String[] {null, "BC"}) {
+      ChunkedAESValueEncryptor encryptor = new ChunkedAESValueEncryptor("AES/GCM/NoPadding", provider, CHUNK_SIZE_BITS);
+
+      for (int length : new int[] {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 3 * CHUNK_SIZE, 3 * CHUNK_SIZE + 5}) {
+        byte[] plaintext = getRandomBytes(length);
+        byte[] ciphertext = encryptor.encrypt(KEY, plaintext);
+
+        int chunks = length == 0 ? 1 : (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        assertThat("ciphertext has a tag per chunk", ciphertext.length, is(ChunkedAESValueEncryptor.METADATA_LENGTH + length + chunks
+            * ChunkedAESValueEncryptor.TAG_LENGTH));
+        assertThat("decrypting the ciphertext should give the plaintext", encryptor.decrypt(KEY, ciphertext), is(equalTo(plaintext)));
+        assertThat("ciphertexts with other chunk sizes can be decrypted", ValueEncryptor.AES_GCM_CHUNKED.getInstance(provider).decrypt(KEY, ciphertext),
+            is(equalTo(plaintext)));
+      }
+    }
+  }
+
+  @Test
+  public void streamTest() throws Exception {
+    ChunkedAESValueEncryptor encryptor = new ChunkedAESValueEncryptor("AES/GCM/NoPadding", null, CHUNK_SIZE_BITS);
+    byte[] plaintext = getRandomBytes(5 * CHUNK_SIZE + 7);
+
+    // Write in uneven pieces that straddle the chunk boundaries.
+    ChunkedAESValueEncryptor.EncryptionStream out = encryptor.encryptionStream(KEY, plaintext.length, 3);
+    for (int position = 0; position < plaintext.length; position += 13) {
+      out.write(plaintext, position, Math.min(13, plaintext.length - position));
+    }
+    byte[] ciphertext = out.finish();
+    assertThat("header is left empty", Arrays.copyOf(ciphertext, 3), is(equalTo(new byte[3])));
+
+    // Read in pieces both smaller and larger than a chunk.
+    ChunkedAESValueEncryptor.DecryptionStream in = encryptor.decryptionStream(KEY, ciphertext, 3, ciphertext.length - 3);
+    assertThat("available is the plaintext length", in.available(), is(plaintext.length));
+    ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+    byte[] buffer = new byte[2 * CHUNK_SIZE];
+    for (int size = 1, read; (read = in.read(buffer, 0, size)) != -1; size = size % buffer.length + 17) {
+      decrypted.write(buffer, 0, read);
+    }
+    assertThat("streamed plaintext is correct", decrypted.toByteArray(), is(equalTo(plaintext)));
+    assertThat("nothing is left", in.available(), is(0));
+  }
+
+  @Test
+  public void streamLengthTest() throws Exception {
+    ChunkedAESValueEncryptor encryptor = new ChunkedAESValueEncryptor("AES/GCM/NoPadding", null, CHUNK_SIZE_BITS);
+
+    try {
+      encryptor.encryptionStream(KEY, 10, 0).write(new byte[11], 0, 11);
+      fail("cannot write more than the declared length");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      ChunkedAESValueEncryptor.EncryptionStream out = encryptor.encryptionStream(KEY, 10, 0);
+      out.write(new byte[9], 0, 9);
+      out.finish();
+      fail("cannot write less than the declared length");
+    } catch (IllegalStateException e) { /* expected */}
+  }
+
+  @Test
+  public void modifiedChunkTest() throws Exception {
+    ChunkedAESValueEncryptor encryptor = new ChunkedAESValueEncryptor("AES/GCM/NoPadding", null, CHUNK_SIZE_BITS);
+    byte[] ciphertext = encryptor.encrypt(KEY, getRandomBytes(3 * CHUNK_SIZE));
+    ciphertext[ChunkedAESValueEncryptor.METADATA_LENGTH + CHUNK_LENGTH + 5] ^= 1;
+
+    thrown.expect(EncryptionException.class);
+    thrown.expectCause(isA(AEADBadTagException.class));
+    encryptor.decrypt(KEY, ciphertext);
+  }
+
+  @Test
+  public void reorderedChunkTest() throws Exception {
+    ChunkedAESValueEncryptor encryptor = new ChunkedAESValueEncryptor("AES/GCM/NoPadding", null, CHUNK_SIZE_BITS);
+    byte[] ciphertext = encryptor.encrypt(KEY, getRandomBytes(3 * CHUNK_SIZE));
+
+    byte[] first = Arrays.copyOfRange(ciphertext, ChunkedAESValueEncryptor.METADATA_LENGTH, ChunkedAESValueEncryptor.METADATA_LENGTH + CHUNK_LENGTH);
+    System.arraycopy(ciphertext, ChunkedAESValueEncryptor.METADATA_LENGTH + CHUNK_LENGTH, ciphertext, ChunkedAESValueEncryptor.METADATA_LENGTH, CHUNK_LENGTH);
+    System.arraycopy(first, 0, ciphertext, ChunkedAESValueEncryptor.METADATA_LENGTH + CHUNK_LENGTH, CHUNK_LENGTH);
+
+    thrown.expect(EncryptionException.class);
+    thrown.expectCause(isA(AEADBadTagException.class));
+    encryptor.decrypt(KEY, ciphertext);
+  }
+
+  @Test
+  public void truncatedChunksTest() throws Exception {
+    ChunkedAESValueEncryptor encryptor = new ChunkedAESValueEncryptor("AES/GCM/NoPadding", null, CHUNK_SIZE_BITS);
+    byte[] ciphertext = encryptor.encrypt(KEY, getRandomBytes(3 * CHUNK_SIZE));
+
+    // Dropping whole chunks from the end leaves a valid chunk that was not encrypted as the last chunk.
+    thrown.expect(EncryptionException.class);
+    thrown.expectCause(isA(AEADBadTagException.class));
+    encryptor.decrypt(KEY, Arrays.copyOf(ciphertext, ChunkedAESValueEncryptor.METADATA_LENGTH + 2 * CHUNK_LENGTH));
+  }
+
+  /**
+   * Get random bytes.
+   *
+   * @param length
+   *          Number of bytes.
+   * @return Random bytes.
+   */
+  private static byte[] getRandomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new SecureRandom().nextBytes(bytes);
+    return bytes;
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.accumulo.core.data.Column;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+/**
+ * Test {@link ClientSideFilter}.
+ */
+public class ClientSideFilterTest {
+
+  @Test
+  public void emptyFilterTest() {
+    ClientSideFilter filter = new ClientSideFilter(Collections.emptyList(), Collections.emptyList());
+    assertThat("everything is accepted", filter.accept(new Key("row", "colF", "colQ")), is(true));
+  }
+
+  @Test
+  public void rangeTest() {
+    List<Range> ranges = Arrays.asList(new Range("b", "d"), new Range("c", "e"), new Range("g", false, "i", true), new Range("i", false, "k", false),
+        new Range("x", null));
+    ClientSideFilter filter = new ClientSideFilter(ranges, Collections.emptyList());
+
+    for (String row : new String[] {"a", "b", "c", "e", "e0", "f", "g", "g0", "i", "j", "k", "w", "x", "z"}) {
+      Key key = new Key(row);
+      assertThat("matches the ranges for " + row, filter.accept(key), is(ranges.stream().anyMatch(range -> range.contains(key))));
+    }
+
+    filter = new ClientSideFilter(Arrays.asList(new Range(null, "c"), new Range("m", "n")), Collections.emptyList());
+    assertThat("infinite start key is matched", filter.accept(new Key("a")), is(true));
+    assertThat("gap is not matched", filter.accept(new Key("d")), is(false));
+  }
+
+  @Test
+  public void randomRangeTest() {
+    Random random = new Random();
+    for (int i = 0; i < 100; i++) {
+      List<Range> ranges = new ArrayList<>();
+      for (int j = random.nextInt(20) + 1; j > 0; j--) {
+        int start = random.nextInt(100);
+        ranges.add(new Range(row(start), random.nextBoolean(), row(start + 1 + random.nextInt(10)), random.nextBoolean()));
+      }
+      ClientSideFilter filter = new ClientSideFilter(ranges, Collections.emptyList());
+
+      for (int row = 0; row < 110; row++) {
+        Key key = new Key(row(row));
+        assertThat("matches the ranges", filter.accept(key), is(ranges.stream().anyMatch(range -> range.contains(key))));
+      }
+    }
+  }
+
+  @Test
+  public void columnTest() {
+    List<Column> columns = Arrays.asList(new Column("a".getBytes(), null, null), new Column("a".getBytes(), "x".getBytes(), null), new Column("b".getBytes(),
+        "x".getBytes(), null), new Column("b".getBytes(), "y".getBytes(), null));
+    ClientSideFilter filter = new ClientSideFilter(Collections.emptyList(), columns);
+
+    assertThat("whole family matches", filter.accept(new Key("row", "a", "z")), is(true));
+    assertThat("qualifier matches", filter.accept(new Key("row", "b", "x")), is(true));
+    assertThat("qualifier matches", filter.accept(new Key("row", "b", "y")), is(true));
+    assertThat("other qualifier does not match", filter.accept(new Key("row", "b", "z")), is(false));
+    assertThat("other family does not match", filter.accept(new Key("row", "c", "x")), is(false));
+
+    // Keys whose backing arrays are larger than their data.
+    Text family = new Text("bb");
+    family.set("b");
+    assertThat("only the data is compared", filter.accept(new Key(new Text("row"), family, new Text("x"))), is(true));
+  }
+
+  @Test
+  public void rangeAndColumnTest() {
+    ClientSideFilter filter = new ClientSideFilter(Collections.singletonList(new Range("a", "c")), Collections.singletonList(new Column("f".getBytes(), null,
+        null)));
+
+    assertThat("matches both", filter.accept(new Key("b", "f", "q")), is(true));
+    assertThat("wrong range", filter.accept(new Key("d", "f", "q")), is(false));
+    assertThat("wrong column", filter.accept(new Key("b", "g", "q")), is(false));
+  }
+
+  /**
+   * Get a row that sorts in numeric order.
+   *
+   * @param row
+   *          Number of the row.
+   * @return Row.
+   */
+  private static String row(int row) {
+    return String.format("%03d", row);
+  }
+}
@@ -24,6 +24,10 @@ import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.Matchers.arrayContaining;
 import static org.junit.Assert.assertThat;
 
+import java.util.Arrays;
+import java.util.Random;
+
+import org.cryptomator.siv.SivMode;
 import org.cryptomator.siv.UnauthenticCiphertextException;
 import org.junit.Rule;
 import org.junit.Test;
@@ -70,4 +74,42 @@ public class DeterministicSIVValueEncryptorTest {
     encryptor.decrypt(key, ciphertext);
   }
 
+  @Test
+  public void compatibleWithSivModeTest() throws Exception {
+    ValueEncryptorBase encryptor = ValueEncryptor.AES_SIV_DETERMINISTIC.getInstance(null);
+    SivMode siv = new SivMode();
+    Random random = new Random(42);
+
+    for (int keyLength : new int[] {32, 48, 64}) {
+      for (int i = 0; i < 4; i++) {
+        byte[] key = new byte[keyLength];
+        random.nextBytes(key);
+        byte[] encKey = Arrays.copyOfRange(key, 0, keyLength / 2);
+        byte[] macKey = Arrays.copyOfRange(key, keyLength / 2, keyLength);
+
+        for (int length : new int[] {0, 1, 15, 16, 17, 31, 32, 33, 100, 1000}) {
+          byte[] plaintext = new byte[length];
+          random.nextBytes(plaintext);
+
+          byte[] ciphertext = encryptor.encrypt(key, plaintext);
+          assertThat("ciphertext should match the reference implementation", ciphertext, is(equalTo(siv.encrypt(encKey, macKey, plaintext))));
+          assertThat("decrypting the ciphertext should give the plaintext", encryptor.decrypt(key, ciphertext), is(equalTo(plaintext)));
+
+          byte[] sliced = encryptor.encrypt(key, Arrays.copyOf(plaintext, length + 3), 0, length, 5);
+          assertThat("sliced ciphertext should match", Arrays.copyOfRange(sliced, 5, sliced.length), is(equalTo(ciphertext)));
+          assertThat("sliced decryption should give the plaintext", encryptor.decrypt(key, sliced, 5, sliced.length - 5), is(equalTo(plaintext)));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void shortCiphertextTest() throws Exception {
+    ValueEncryptorBase encryptor = ValueEncryptor.AES_SIV_DETERMINISTIC.getInstance(null);
+    byte[] key = "aabbccddaabbccddaabbccddaabbccdd".getBytes(VISIBILITY_CHARSET);
+
+    thrown.expect(EncryptionException.class);
+    encryptor.decrypt(key, new byte[15]);
+  }
+
 }
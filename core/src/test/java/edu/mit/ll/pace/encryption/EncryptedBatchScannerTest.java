@@ -15,6 +15,8 @@
  */
 package edu.mit.ll.pace.encryption;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
@@ -27,9 +29,11 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
@@ -43,8 +47,10 @@ import org.apache.accumulo.core.client.Connector;
 import org.apache.accumulo.core.client.IteratorSetting;
 import org.apache.accumulo.core.client.sample.SamplerConfiguration;
 import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
 import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.user.WholeRowIterator;
 import org.apache.accumulo.core.security.Authorizations;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.hadoop.io.Text;
@@ -119,6 +125,11 @@ public class EncryptedBatchScannerTest {
       new EncryptedBatchScanner(mockConnector, TEST_TABLE, authorizations, 0, getConfig("encrypt-value.ini"), null);
       fail("null key container not allowed");
     } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      new EncryptedBatchScanner(mockConnector, TEST_TABLE, authorizations, 0, getConfig("encrypt-value.ini"), KEYS, -1);
+      fail("negative number of decryption threads not allowed");
+    } catch (IllegalArgumentException e) { /* expected */}
   }
 
   @Test
@@ -181,6 +192,50 @@ public class EncryptedBatchScannerTest {
     assertThat("correct number of ranges", captor.getValue(), hasSize(2));
   }
 
+  @Test
+  public void setRangesKeyRotationTest() throws Exception {
+    when(mockConnector.createBatchScanner(TEST_TABLE, authorizations, 1)).thenReturn(mockScanner);
+    MockEncryptionKeyContainer keys = new MockEncryptionKeyContainer(Pair.of("searchable_row", 2));
+
+    BatchScanner scanner = new EncryptedBatchScanner(mockConnector, TEST_TABLE, authorizations, 1, getConfig("searchable-row.ini"), keys);
+    scanner.setRanges(Collections.singletonList(new Range(new Text(new byte[] {1}))));
+
+    // A scanner that outlives a key rotation must also search for the row encrypted with the new key.
+    keys.setVersion("searchable_row", 3);
+    scanner.setRanges(Collections.singletonList(new Range(new Text(new byte[] {1}))));
+
+    verify(mockScanner, times(2)).setRanges(captor.capture());
+    assertThat("one range per key version", captor.getAllValues().get(0), hasSize(2));
+    assertThat("new key version is searched for", captor.getAllValues().get(1), hasSize(3));
+  }
+
+  @Test
+  public void setRangesMergedTest() throws Exception {
+    when(mockConnector.createBatchScanner(TEST_TABLE, authorizations, 1)).thenReturn(mockScanner);
+
+    EntryEncryptor encryptor = new EntryEncryptor(getConfig("searchable-row.ini"), KEYS);
+    List<Map.Entry<Key,Value>> entries = new ArrayList<>();
+    Map.Entry<Key,Value> entry = new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3},
+        "secret".getBytes(Utils.VISIBILITY_CHARSET), 0, false, false), new Value(new byte[] {4}));
+    Map.Entry<Key,Value> entry2 = new SimpleImmutableEntry<>(new Key(new byte[] {5}, new byte[] {6}, new byte[] {7},
+        "secret".getBytes(Utils.VISIBILITY_CHARSET), 0, false, false), new Value(new byte[] {8}));
+    entries.add(encryptor.encrypt(entry));
+    entries.add(encryptor.encrypt(entry2));
+    when(mockScanner.iterator()).thenReturn(entries.iterator());
+
+    // The first range is searchable, the others fall back to unbounded server side ranges that must be merged.
+    BatchScanner scanner = new EncryptedBatchScanner(mockConnector, TEST_TABLE, authorizations, 1, getConfig("searchable-row.ini"), KEYS);
+    scanner.setRanges(Arrays.asList(new Range(new Text(new byte[] {1})), new Range(new Text(new byte[] {2}), new Text(new byte[] {6})), new Range(new Text(
+        new byte[] {4}), new Text(new byte[] {7}))));
+
+    verify(mockScanner).setRanges(captor.capture());
+    assertThat("overlapping ranges are merged", captor.getValue(), hasSize(1));
+    assertThat("overlapping ranges are merged", captor.getValue().iterator().next(), equalTo(new Range()));
+
+    // The searchable range must still be matched by the client side filter.
+    assertThat("entries from all ranges are returned", scanner, iterableWithSize(2));
+  }
+
   @Test
   public void setRangesException() throws Exception {
     BatchScanner scanner = new EncryptedBatchScanner(mockConnector, TEST_TABLE, authorizations, 1, getConfig("encrypt-key.ini"), KEYS);
@@ -384,6 +439,100 @@ public class EncryptedBatchScannerTest {
     assertThat("correct item", iterator.next(), Matchers.equalTo(entry2));
   }
 
+  @Test
+  public void packedRowTest() throws Exception {
+    when(mockConnector.createBatchScanner(TEST_TABLE, authorizations, 1)).thenReturn(mockScanner);
+
+    EntryEncryptor encryptor = new EntryEncryptor(getConfig("packed-row.ini"), KEYS);
+    Mutation mutation = new Mutation(new byte[] {1});
+    mutation.put(new byte[] {2}, new byte[] {3}, 5L, new byte[] {4});
+    mutation.put(new byte[] {2}, new byte[] {2}, 5L, new byte[] {5});
+    Mutation mutation2 = new Mutation(new byte[] {6});
+    mutation2.put(new byte[] {2}, new byte[] {3}, 5L, new byte[] {7});
+
+    List<Map.Entry<Key,Value>> entries = new ArrayList<>();
+    entries.add(encodeRow(encryptor.encrypt(PackedRow.pack(mutation.getRow(), Utils.EMPTY, mutation.getUpdates()).toEntry())));
+    entries.add(encodeRow(encryptor.encrypt(PackedRow.pack(mutation2.getRow(), Utils.EMPTY, mutation2.getUpdates()).toEntry())));
+    when(mockScanner.iterator()).thenReturn(entries.iterator()).thenReturn(entries.iterator()).thenReturn(entries.iterator());
+
+    Map.Entry<Key,Value> entry = new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {2}, Utils.EMPTY, 5L), new Value(new byte[] {5}));
+    Map.Entry<Key,Value> entry2 = new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3}, Utils.EMPTY, 5L),
+        new Value(new byte[] {4}));
+    Map.Entry<Key,Value> entry3 = new SimpleImmutableEntry<>(new Key(new byte[] {6}, new byte[] {2}, new byte[] {3}, Utils.EMPTY, 5L),
+        new Value(new byte[] {7}));
+
+    BatchScanner scanner = new EncryptedBatchScanner(mockConnector, TEST_TABLE, authorizations, 1, encryptor);
+    ArgumentCaptor<IteratorSetting> iteratorCaptor = ArgumentCaptor.forClass(IteratorSetting.class);
+    verify(mockScanner).addScanIterator(iteratorCaptor.capture());
+    assertThat("whole rows are read", iteratorCaptor.getValue().getIteratorClass(), is(WholeRowIterator.class.getName()));
+    assertThat("packed entries are unpacked", scanner, contains(Matchers.equalTo(entry), Matchers.equalTo(entry2), Matchers.equalTo(entry3)));
+
+    // Rows are searched for on the server, and the columns within them on the client.
+    scanner.setRanges(Collections.singletonList(new Range(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3}), true, new Key(new byte[] {1},
+        new byte[] {2}, new byte[] {4}), false)));
+    verify(mockScanner).setRanges(captor.capture());
+    assertThat("one range per key version", captor.getValue(), hasSize(2));
+    assertThat("only entries in the range are returned", scanner, contains(Matchers.equalTo(entry2)));
+
+    scanner.setRanges(Collections.singletonList(new Range()));
+    scanner.fetchColumn(new Text(new byte[] {2}), new Text(new byte[] {2}));
+    verify(mockScanner, never()).fetchColumn(any(), any());
+    assertThat("only matching columns are returned", scanner, contains(Matchers.equalTo(entry)));
+
+    scanner.clearScanIterators();
+    verify(mockScanner, times(2)).addScanIterator(any());
+  }
+
+  @Test
+  public void packedRowMergeTest() throws Exception {
+    when(mockConnector.createBatchScanner(TEST_TABLE, authorizations, 1)).thenReturn(mockScanner);
+
+    EntryEncryptor encryptor = new EntryEncryptor(getConfig("packed-row.ini"), KEYS);
+    Mutation mutation = new Mutation(new byte[] {1});
+    mutation.put(new byte[] {2}, new byte[] {2}, 5L, new byte[] {3});
+    mutation.put(new byte[] {2}, new byte[] {3}, 5L, new byte[] {4});
+    mutation.put(new byte[] {2}, new byte[] {4}, 5L, new byte[] {5});
+
+    // A later write to the same row and visibility that touches only some of the columns.
+    Mutation mutation2 = new Mutation(new byte[] {1});
+    mutation2.put(new byte[] {2}, new byte[] {3}, 6L, new byte[] {6});
+    mutation2.putDelete(new byte[] {2}, new byte[] {4}, 6L);
+
+    List<Map.Entry<Key,Value>> entries = new ArrayList<>();
+    entries.add(encodeRow(encryptor.encrypt(PackedRow.pack(mutation.getRow(), Utils.EMPTY, mutation.getUpdates()).toEntry()),
+        encryptor.encrypt(PackedRow.pack(mutation2.getRow(), Utils.EMPTY, mutation2.getUpdates()).toEntry())));
+    when(mockScanner.iterator()).thenReturn(entries.iterator());
+
+    Map.Entry<Key,Value> entry = new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {2}, Utils.EMPTY, 5L), new Value(new byte[] {3}));
+    Map.Entry<Key,Value> entry2 = new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3}, Utils.EMPTY, 6L),
+        new Value(new byte[] {6}));
+
+    BatchScanner scanner = new EncryptedBatchScanner(mockConnector, TEST_TABLE, authorizations, 1, encryptor);
+    assertThat("untouched columns are kept, rewritten columns are replaced, and deleted columns are removed", scanner,
+        contains(Matchers.equalTo(entry), Matchers.equalTo(entry2)));
+  }
+
+  @Test
+  public void parallelIteratorTest() throws Exception {
+    when(mockConnector.createBatchScanner(TEST_TABLE, authorizations, 1)).thenReturn(mockScanner);
+
+    EntryEncryptor encryptor = new EntryEncryptor(getConfig("encrypt-value.ini"), KEYS);
+    List<Map.Entry<Key,Value>> entries = new ArrayList<>();
+    Map.Entry<Key,Value> entry = new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3},
+        "secret".getBytes(Utils.VISIBILITY_CHARSET), 0, false, false), new Value(new byte[] {4}));
+    Map.Entry<Key,Value> entry2 = new SimpleImmutableEntry<>(new Key(new byte[] {5}, new byte[] {6}, new byte[] {7},
+        "secret".getBytes(Utils.VISIBILITY_CHARSET), 0, false, false), new Value(new byte[] {8}));
+    entries.add(encryptor.encrypt(entry));
+    entries.add(encryptor.encrypt(entry2));
+    when(mockScanner.iterator()).thenReturn(entries.iterator());
+
+    BatchScanner scanner = new EncryptedBatchScanner(mockConnector, TEST_TABLE, authorizations, 1, encryptor, 2);
+    assertThat("has correct elements", scanner, containsInAnyOrder(Matchers.equalTo(entry), Matchers.equalTo(entry2)));
+
+    scanner.close();
+    verify(mockScanner).close();
+  }
+
   @Test
   public void clearScanIteratorsTest() throws Exception {
     when(mockConnector.createBatchScanner(TEST_TABLE, authorizations, 1)).thenReturn(mockScanner);
@@ -510,6 +659,24 @@ public class EncryptedBatchScannerTest {
     assertThat("correct timeout returned", value, is(5L));
   }
 
+  /**
+   * Encode encrypted packed entries of the same row as they are returned by the server side {@link WholeRowIterator}.
+   *
+   * @param packedEntries
+   *          Encrypted packed entries, sharing an encrypted row.
+   * @return The encoded row.
+   */
+  @SafeVarargs
+  private static Map.Entry<Key,Value> encodeRow(Map.Entry<Key,Value>... packedEntries) throws IOException {
+    List<Key> keys = new ArrayList<>();
+    List<Value> values = new ArrayList<>();
+    for (Map.Entry<Key,Value> packed : packedEntries) {
+      keys.add(packed.getKey());
+      values.add(packed.getValue());
+    }
+    return new SimpleImmutableEntry<>(new Key(keys.get(0).getRow()), WholeRowIterator.encodeRow(keys, values));
+  }
+
   /**
    * Get an encryptor config.
    *
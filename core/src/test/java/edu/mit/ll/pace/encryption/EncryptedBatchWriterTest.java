@@ -17,6 +17,7 @@ package edu.mit.ll.pace.encryption;
 
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.iterableWithSize;
 import static org.hamcrest.Matchers.not;
@@ -30,12 +31,17 @@ import static org.mockito.Mockito.when;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map.Entry;
 
 import org.apache.accumulo.core.client.BatchWriter;
 import org.apache.accumulo.core.client.BatchWriterConfig;
 import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.Rule;
 import org.junit.Test;
@@ -45,6 +51,7 @@ import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
 
+import edu.mit.ll.pace.IllegalKeyRequestException;
 import edu.mit.ll.pace.internal.MutableEntry;
 import edu.mit.ll.pace.test.TestUtils;
 
@@ -96,6 +103,11 @@ public class EncryptedBatchWriterTest {
       new EncryptedBatchWriter(mockConnector, TEST_TABLE, null, getConfig("encrypt-value.ini"), null);
       fail("null key container not allowed");
     } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      new EncryptedBatchWriter(mockConnector, TEST_TABLE, null, getConfig("encrypt-value.ini"), KEYS, -1);
+      fail("negative number of encryption threads not allowed");
+    } catch (IllegalArgumentException e) { /* expected */}
   }
 
   @Test
@@ -117,15 +129,15 @@ public class EncryptedBatchWriterTest {
     mutation.put("colF".getBytes(), "colQ".getBytes(), 0, "val2".getBytes());
     writer.addMutation(mutation);
 
-    verify(mockWriter, times(2)).addMutation(captor.capture());
+    verify(mockWriter, times(1)).addMutation(captor.capture());
     List<Mutation> mutations = captor.getAllValues();
-    assertThat("two mutations", mutations, iterableWithSize(2));
+    assertThat("updates to the same row are written in one mutation", mutations, iterableWithSize(1));
 
     Mutation encrypted = mutations.get(0);
     assertThat("row is unchanged", encrypted.getRow(), equalTo("row".getBytes()));
 
     List<ColumnUpdate> updates = encrypted.getUpdates();
-    assertThat("has 1 update", updates, hasSize(1));
+    assertThat("has 2 updates", updates, hasSize(2));
 
     ColumnUpdate update = updates.get(0);
     assertThat("column family is unchanged", update.getColumnFamily(), equalTo("colF".getBytes()));
@@ -136,13 +148,7 @@ public class EncryptedBatchWriterTest {
     MutableEntry decrypted = new MutableEntry(encryptor.decrypt(new MutableEntry("row".getBytes(), update).toEntry()));
     assertThat("value was encrypted correctly", decrypted.value, equalTo("val1".getBytes()));
 
-    encrypted = mutations.get(1);
-    assertThat("row is unchanged", encrypted.getRow(), equalTo("row".getBytes()));
-
-    updates = encrypted.getUpdates();
-    assertThat("has 1 update", updates, hasSize(1));
-
-    update = updates.get(0);
+    update = updates.get(1);
     assertThat("column family is unchanged", update.getColumnFamily(), equalTo("colF".getBytes()));
     assertThat("column qualifier is unchanged", update.getColumnQualifier(), equalTo("colQ".getBytes()));
     assertThat("timestamp is set", update.hasTimestamp(), is(true));
@@ -164,9 +170,71 @@ public class EncryptedBatchWriterTest {
     mutation.put("colF1".getBytes(), "colQ".getBytes(), 0, "val2".getBytes());
     writer.addMutation(mutation);
 
-    verify(mockWriter, times(3)).addMutation(captor.capture());
-    Iterable<Mutation> mutations = captor.getAllValues();
-    assertThat("should have 2 mutations", mutations, iterableWithSize(3));
+    verify(mockWriter, times(2)).addMutation(captor.capture());
+    List<Mutation> mutations = captor.getAllValues();
+    assertThat("should have one mutation per encrypted row", mutations, iterableWithSize(2));
+    assertThat("updates that encrypt to the same row are grouped", mutations.get(0).getUpdates(), hasSize(2));
+    assertThat("updates that encrypt to the same row are grouped", mutations.get(1).getUpdates(), hasSize(1));
+  }
+
+  @Test
+  public void addMutationPackedTest() throws Exception {
+    when(mockConnector.createBatchWriter(TEST_TABLE, null)).thenReturn(mockWriter);
+    BatchWriter writer = new EncryptedBatchWriter(mockConnector, TEST_TABLE, null, getConfig("packed-row.ini"), KEYS);
+
+    Mutation mutation = new Mutation("row".getBytes());
+    mutation.put("colF1".getBytes(), "colQ".getBytes(), "val1".getBytes());
+    mutation.put("colF2".getBytes(), "colQ".getBytes(), new ColumnVisibility("secret"), "val2".getBytes());
+    mutation.put("colF1".getBytes(), "colQ2".getBytes(), 7, "val3".getBytes());
+    writer.addMutation(mutation);
+
+    verify(mockWriter, times(1)).addMutation(captor.capture());
+    List<Mutation> mutations = captor.getAllValues();
+    assertThat("packed entries for the same row are written in one mutation", mutations, iterableWithSize(1));
+    assertThat("one update per visibility", mutations.get(0).getUpdates(), hasSize(2));
+
+    EntryEncryptor encryptor = new EntryEncryptor(getConfig("packed-row.ini"), KEYS);
+    ColumnUpdate update = mutations.get(0).getUpdates().get(0);
+    assertThat("timestamp not set when a packed column has none", update.hasTimestamp(), is(false));
+
+    List<Entry<Key,Value>> unpacked = PackedRow.unpack(encryptor.decryptMutable(new MutableEntry(mutations.get(0).getRow(), update)));
+    assertThat("columns with the same visibility are packed", unpacked, hasSize(2));
+    assertThat("columns are sorted", unpacked.get(0).getKey().getColumnQualifier().toString(), is("colQ"));
+    assertThat("value was packed", unpacked.get(0).getValue().get(), equalTo("val1".getBytes()));
+    assertThat("columns are sorted", unpacked.get(1).getKey().getColumnQualifier().toString(), is("colQ2"));
+    assertThat("timestamp was packed", unpacked.get(1).getKey().getTimestamp(), is(7L));
+    assertThat("value was packed", unpacked.get(1).getValue().get(), equalTo("val3".getBytes()));
+
+    update = mutations.get(0).getUpdates().get(1);
+    unpacked = PackedRow.unpack(encryptor.decryptMutable(new MutableEntry(mutations.get(0).getRow(), update)));
+    assertThat("columns with a different visibility are packed separately", unpacked, hasSize(1));
+    assertThat("visibility is kept", unpacked.get(0).getKey().getColumnVisibility().toString(), is("secret"));
+    assertThat("value was packed", unpacked.get(0).getValue().get(), equalTo("val2".getBytes()));
+  }
+
+  @Test
+  public void deletePackedTest() throws Exception {
+    when(mockConnector.createBatchWriter(TEST_TABLE, null)).thenReturn(mockWriter);
+    BatchWriter writer = new EncryptedBatchWriter(mockConnector, TEST_TABLE, null, getConfig("packed-row.ini"), KEYS);
+
+    Mutation mutation = new Mutation("row".getBytes());
+    mutation.putDelete("colF1".getBytes(), "colQ".getBytes());
+    mutation.put("colF1".getBytes(), "colQ2".getBytes(), "val1".getBytes());
+    writer.addMutation(mutation);
+
+    verify(mockWriter, times(1)).addMutation(captor.capture());
+    List<Mutation> mutations = captor.getAllValues();
+    assertThat("one update per visibility", mutations.get(0).getUpdates(), hasSize(1));
+
+    ColumnUpdate update = mutations.get(0).getUpdates().get(0);
+    assertThat("the packed entry is not a delete", update.isDeleted(), is(false));
+
+    EntryEncryptor encryptor = new EntryEncryptor(getConfig("packed-row.ini"), KEYS);
+    List<Entry<Key,Value>> unpacked = PackedRow.unpack(encryptor.decryptMutable(new MutableEntry(mutations.get(0).getRow(), update)));
+    assertThat("deletes are packed with the other columns", unpacked, hasSize(2));
+    assertThat("delete was packed", unpacked.get(0).getKey().getColumnQualifier().toString(), is("colQ"));
+    assertThat("delete was packed", unpacked.get(0).getKey().isDeleted(), is(true));
+    assertThat("value was packed", unpacked.get(1).getValue().get(), equalTo("val1".getBytes()));
   }
 
   @Test
@@ -220,6 +288,72 @@ public class EncryptedBatchWriterTest {
     verify(mockWriter, times(6)).addMutation(any()); // 1 + 2 + 3 times
   }
 
+  @Test
+  public void parallelAddMutationsTest() throws Exception {
+    when(mockConnector.createBatchWriter(TEST_TABLE, null)).thenReturn(mockWriter);
+    BatchWriter writer = new EncryptedBatchWriter(mockConnector, TEST_TABLE, null, getConfig("encrypt-value.ini"), KEYS, 4);
+
+    List<Mutation> mutations = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      Mutation mutation = new Mutation(Integer.toString(i));
+      mutation.put("colF", "colQ", "val");
+      mutations.add(mutation);
+    }
+    writer.addMutations(mutations);
+    writer.flush();
+
+    verify(mockWriter, times(100)).addMutation(captor.capture());
+    verify(mockWriter).flush();
+
+    List<Mutation> encrypted = captor.getAllValues();
+    for (int i = 0; i < 100; i++) {
+      assertThat("mutations are written in the order they were added", encrypted.get(i).getRow(), equalTo(Integer.toString(i).getBytes()));
+      assertThat("value is encrypted", encrypted.get(i).getUpdates().get(0).getValue(), not(equalTo("val".getBytes())));
+    }
+  }
+
+  @Test
+  public void parallelEncryptionFailureTest() throws Exception {
+    when(mockConnector.createBatchWriter(TEST_TABLE, null)).thenReturn(mockWriter);
+    BatchWriter writer = new EncryptedBatchWriter(mockConnector, TEST_TABLE, null, getConfig("encrypt-value.ini"), KEYS, 2);
+
+    Mutation mutation = new Mutation("row");
+    mutation.put("colF", "colQ", new ColumnVisibility("unknown"), "val"); // No key exists for this attribute.
+
+    try {
+      writer.addMutation(mutation);
+      writer.flush();
+      fail("encryption failure should be reported");
+    } catch (MutationsRejectedException e) {
+      assertThat("cause is the encryption failure", e.getCause(), instanceOf(IllegalKeyRequestException.class));
+    }
+
+    try {
+      writer.addMutation(new Mutation("row"));
+      fail("writer rejects mutations after a failure");
+    } catch (MutationsRejectedException e) { /* expected */}
+
+    try {
+      writer.close();
+      fail("close reports the failure");
+    } catch (MutationsRejectedException e) { /* expected */}
+    verify(mockWriter).close();
+  }
+
+  @Test
+  public void parallelCloseTest() throws Exception {
+    when(mockConnector.createBatchWriter(TEST_TABLE, null)).thenReturn(mockWriter);
+    BatchWriter writer = new EncryptedBatchWriter(mockConnector, TEST_TABLE, null, getConfig("encrypt-value.ini"), KEYS, 2);
+
+    Mutation mutation = new Mutation("row");
+    mutation.put("colF", "colQ", "val");
+    writer.addMutation(mutation);
+    writer.close();
+
+    verify(mockWriter).addMutation(any());
+    verify(mockWriter).close();
+  }
+
   @Test
   public void flushTest() throws Exception {
     when(mockConnector.createBatchWriter(TEST_TABLE, null)).thenReturn(mockWriter);
@@ -24,10 +24,14 @@ import java.io.InputStreamReader;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.accumulo.core.data.Column;
 import org.apache.accumulo.core.data.Key;
@@ -207,6 +211,75 @@ public class EncryptedScannerIteratorTest {
     } catch (NoSuchElementException e) { /* expected */}
   }
 
+  @Test
+  public void readAheadOrderedTest() throws Exception {
+    EntryEncryptor encryptor = new EntryEncryptor(getConfig("config.ini"), KEYS);
+    List<Entry<Key,Value>> plaintext = getEntries(1000);
+    List<Entry<Key,Value>> entries = new ArrayList<>();
+    for (Entry<Key,Value> entry : plaintext) {
+      entries.add(encryptor.encrypt(entry));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      EncryptedScannerIterator iterator = new EncryptedScannerIterator(entries.iterator(), encryptor, new ArrayList<>(), new TreeSet<>(), executor, 4, true);
+      for (int i = 0; i < plaintext.size(); i++) {
+        assertThat("items are returned in order", iterator.next(), Matchers.equalTo(plaintext.get(i)));
+        assertThat("unprocessed item is correct", iterator.unprocessed(), Matchers.equalTo(entries.get(i)));
+      }
+      assertThat("no items are left", iterator.hasNext(), is(false));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void readAheadUnorderedTest() throws Exception {
+    EntryEncryptor encryptor = new EntryEncryptor(getConfig("config.ini"), KEYS);
+    List<Entry<Key,Value>> plaintext = getEntries(1000);
+    Map<Key,Entry<Key,Value>> encryptedByKey = new HashMap<>();
+    List<Entry<Key,Value>> entries = new ArrayList<>();
+    for (Entry<Key,Value> entry : plaintext) {
+      Entry<Key,Value> encrypted = encryptor.encrypt(entry);
+      encryptedByKey.put(entry.getKey(), encrypted);
+      entries.add(encrypted);
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      // Only keep the rows starting with the byte 1.
+      EncryptedScannerIterator iterator = new EncryptedScannerIterator(entries.iterator(), encryptor, Collections.singletonList(Range.prefix(new Text(
+          new byte[] {1}))), new TreeSet<>(), executor, 4, false);
+
+      int count = 0;
+      while (iterator.hasNext()) {
+        Entry<Key,Value> entry = iterator.next();
+        assertThat("entry matches the client side range", entry.getKey().getRowData().byteAt(0), is((byte) 1));
+        assertThat("unprocessed item is correct", iterator.unprocessed(), Matchers.equalTo(encryptedByKey.get(entry.getKey())));
+        count++;
+      }
+      assertThat("correct number of items", count, is(256));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Get a list of distinct entries, with two byte rows.
+   *
+   * @param count
+   *          Number of entries to create.
+   * @return The entries.
+   */
+  private List<Entry<Key,Value>> getEntries(int count) {
+    List<Entry<Key,Value>> entries = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      entries.add(new SimpleImmutableEntry<>(new Key(new byte[] {(byte) (i >> 8), (byte) i}, new byte[] {2}, new byte[] {3}, "secret"
+          .getBytes(Utils.VISIBILITY_CHARSET), 0, false, false), new Value(new byte[] {(byte) i})));
+    }
+    return entries;
+  }
+
   @Test
   public void removeException() throws Exception {
     EntryEncryptor encryptor = new EntryEncryptor(getConfig("config.ini"), KEYS);
@@ -18,6 +18,7 @@ package edu.mit.ll.pace.encryption;
 import static edu.mit.ll.pace.test.Matchers.hasSameFieldsAs;
 import static edu.mit.ll.pace.test.TestUtils.getResourceAsStream;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
@@ -27,6 +28,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.List;
 import java.util.TreeMap;
 
 import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
@@ -90,6 +92,23 @@ public class EncryptionConfigTest {
                   .setKeyId("AES_GCM").setDestination(EntryField.VALUE).setSources(ImmutableSortedSet.of(EntryField.VALUE)).build())).build();
       fail("duplicate fieldEncryptionConfigs should not be allowed");
     } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      new EncryptionConfigBuilder().setFieldEncryptorConfigs(
+          ImmutableList.of(
+              new FieldEncryptorConfigBuilder().setValueEncryptor(ValueEncryptor.HMAC_SHA256_TOKEN).setKeyLength(16).setEncryptUsingVisibility(false)
+                  .setKeyId("deterministic").setDestination(EntryField.ROW).setSources(ImmutableSortedSet.of(EntryField.ROW)).build(),
+              new FieldEncryptorConfigBuilder().setValueEncryptor(ValueEncryptor.AES_GCM).setKeyLength(16).setEncryptUsingVisibility(true).setKeyId("AES_GCM")
+                  .setDestination(EntryField.VALUE).setSources(ImmutableSortedSet.of(EntryField.VALUE)).build())).build();
+      fail("fields only encrypted as tokens should not be allowed");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    new EncryptionConfigBuilder().setFieldEncryptorConfigs(
+        ImmutableList.of(new FieldEncryptorConfigBuilder().setValueEncryptor(ValueEncryptor.HMAC_SHA256_TOKEN).setKeyLength(16)
+            .setEncryptUsingVisibility(false).setKeyId("deterministic").setDestination(EntryField.ROW).setSources(ImmutableSortedSet.of(EntryField.ROW))
+            .build(),
+            new FieldEncryptorConfigBuilder().setValueEncryptor(ValueEncryptor.AES_GCM).setKeyLength(16).setEncryptUsingVisibility(true).setKeyId("AES_GCM")
+                .setDestination(EntryField.VALUE).setSources(ImmutableSortedSet.of(EntryField.ROW, EntryField.VALUE)).build())).build();
   }
 
   @Test
@@ -124,6 +143,49 @@ public class EncryptionConfigTest {
     assertThat("writing then reading the config should produce an equivalent configuration", config2, is(equalTo(config1)));
   }
 
+  @Test
+  public void packRowsTest() throws IOException {
+    // The first configuration clears the row, which packed rows cannot do.
+    List<FieldEncryptorConfig> fieldEncryptorConfigs = config1.fieldEncryptorConfigs.subList(1, 3);
+    EncryptionConfig unpacked = new EncryptionConfigBuilder().setFieldEncryptorConfigs(fieldEncryptorConfigs).build();
+    EncryptionConfig packed = new EncryptionConfigBuilder().setFieldEncryptorConfigs(fieldEncryptorConfigs).setPackRows(true).build();
+    assertThat("rows are not packed by default", unpacked.packRows, is(false));
+    assertThat("packing is a different configuration", packed, is(not(equalTo(unpacked))));
+
+    try {
+      new EncryptionConfigBuilder().setFieldEncryptorConfigs(config1.fieldEncryptorConfigs).setPackRows(true).build();
+      fail("packed rows must keep the row");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      new EncryptionConfigBuilder()
+          .setFieldEncryptorConfigs(
+              ImmutableList.of(new FieldEncryptorConfigBuilder().setValueEncryptor(ValueEncryptor.AES_GCM).setKeyLength(16).setEncryptUsingVisibility(false)
+                  .setKeyId("AES_GCM").setDestination(EntryField.ROW).setSources(ImmutableSortedSet.of(EntryField.ROW)).build())).setPackRows(true).build();
+      fail("packed rows must encrypt the row deterministically");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      new EncryptionConfigBuilder()
+          .setFieldEncryptorConfigs(
+              ImmutableList.of(new FieldEncryptorConfigBuilder().setValueEncryptor(ValueEncryptor.AES_GCM).setKeyLength(16).setEncryptUsingVisibility(false)
+                  .setKeyId("AES_GCM").setDestination(EntryField.VALUE).setSources(ImmutableSortedSet.of(EntryField.COLUMN_QUALIFIER, EntryField.VALUE))
+                  .build())).setPackRows(true).build();
+      fail("packed rows must keep the column qualifier");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    File ini = testFolder.newFile();
+    FileWriter out = new FileWriter(ini);
+    packed.write(out);
+    out.close();
+
+    FileReader in = new FileReader(ini);
+    EncryptionConfig packed2 = new EncryptionConfigBuilder().readFromFile(in).build();
+    in.close();
+
+    assertThat("writing then reading the config should keep packing", packed2, is(equalTo(packed)));
+  }
+
   /**
    * Gets a hamcrest matcher that tests whether two {@link EncryptionConfig} are equal.
    *
@@ -141,7 +203,7 @@ public class EncryptionConfigTest {
     return new TypeSafeMatcher<EncryptionConfig>() {
       @Override
       protected boolean matchesSafely(EncryptionConfig actualValue) {
-        if (actualValue.fieldEncryptorConfigs.size() != configMatchers.size()) {
+        if (actualValue.packRows != expectedValue.packRows || actualValue.fieldEncryptorConfigs.size() != configMatchers.size()) {
           return false;
         }
 
@@ -21,8 +21,10 @@ import static edu.mit.ll.pace.test.TestUtils.getResourceAsStream;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
@@ -34,6 +36,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.accumulo.core.data.Column;
 import org.apache.accumulo.core.data.Key;
@@ -115,6 +120,53 @@ public class EntryEncryptorTest {
     }
   }
 
+  @Test
+  public void concurrentEncryptDecryptTest() throws Exception {
+    final int threads = 4, entriesPerThread = 100;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+    try {
+      for (final EntryEncryptor encryptor : getEncryptors()) { // A single encryptor is shared by all threads.
+        List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+          final byte thread = (byte) i;
+          results.add(executor.submit(() -> {
+            for (int j = 0; j < entriesPerThread; j++) {
+              Entry<Key,Value> entry = new SimpleImmutableEntry<>(new Key(new byte[] {thread, (byte) j}, new byte[] {2}, new byte[j % 7], "secret"
+                  .getBytes(VISIBILITY_CHARSET), (long) j, false), new Value(new byte[j]));
+              assertThat("round trip from multiple threads should return the original value", encryptor.decrypt(encryptor.encrypt(entry)),
+                  Matchers.equalTo(entry));
+            }
+            return null;
+          }));
+        }
+
+        for (Future<Void> result : results) {
+          result.get();
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void decryptedKeyCacheCountTest() throws Exception {
+    Entry<Key,Value> entry = new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3}, "secret".getBytes(VISIBILITY_CHARSET),
+        (long) 5, false), new Value(new byte[] {6}));
+
+    EntryEncryptor encryptor = getEncryptor("encrypt-value.ini");
+    encryptor.decrypt(encryptor.encrypt(entry));
+    assertThat("nothing is counted without caching", encryptor.getDecryptedKeyCacheMissCount(), is(0L));
+
+    encryptor = getEncryptor("cached-visibility-key.ini");
+    Entry<Key,Value> encrypted = encryptor.encrypt(entry);
+    encryptor.decrypt(encrypted);
+    encryptor.decrypt(encrypted);
+    assertThat("first decryption is a miss", encryptor.getDecryptedKeyCacheMissCount(), is(1L));
+    assertThat("second decryption is a hit", encryptor.getDecryptedKeyCacheHitCount(), is(1L));
+  }
+
   @Test
   public void canBeDeletedServerSideTest() throws Exception {
     assertThat("non-encrypted key can be updated", getEncryptor("encrypt-value.ini").canBeDeleteServerSide(), is(true));
@@ -274,6 +326,103 @@ public class EntryEncryptorTest {
     } catch (IllegalArgumentException e) { /* expected */}
   }
 
+  @Test
+  public void queryPlanCacheTest() throws Exception {
+    MockEncryptionKeyContainer keys = new MockEncryptionKeyContainer(Pair.of("searchable_row", 2), Pair.of("searchable_colFamily", 2), Pair.of(
+        "searchable_colQualifier", 2));
+    EntryEncryptor encryptor = getEncryptor("searchable.ini", keys);
+    Range range = new Range(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3}, "secret".getBytes(VISIBILITY_CHARSET), 0, false), new Key(new byte[] {1},
+        new byte[] {2}, new byte[] {3}, "secret".getBytes(VISIBILITY_CHARSET), 0, false));
+
+    List<Range> planned = new ArrayList<>();
+    boolean result = encryptor.transformRange(range, planned);
+    assertThat("first transform is a miss", encryptor.getQueryPlanCacheMissCount(), is(1L));
+
+    List<Range> cached = new ArrayList<>();
+    assertThat("cached plan needs the same client side filtering", encryptor.transformRange(range, cached), is(result));
+    assertThat("second transform is a hit", encryptor.getQueryPlanCacheHitCount(), is(1L));
+    assertThat("cached plan has the same server side ranges", cached, equalTo(planned));
+
+    ColumnFilterResult filter = encryptor.getColumnFilter(new Text(new byte[] {2}), new Text(new byte[] {3}));
+    assertThat("columns are planned separately from ranges", encryptor.getQueryPlanCacheMissCount(), is(2L));
+    assertThat("cached column filter is reused", encryptor.getColumnFilter(new Text(new byte[] {2}), new Text(new byte[] {3})), sameInstance(filter));
+    assertThat("column families are planned separately from columns", encryptor.getColumnFamilyFilter(new Text(new byte[] {2})), not(sameInstance(filter)));
+
+    // Without checking the key versions, the cached plan is used.
+    keys.setVersion("searchable_row", 3);
+    List<Range> stale = new ArrayList<>();
+    encryptor.cachedTransformRange(range, stale);
+    assertThat("cached transform is a hit", encryptor.getQueryPlanCacheHitCount(), is(3L));
+    assertThat("cached transform uses the cached plan", stale, equalTo(planned));
+
+    // A new key version invalidates the plan, as the new ciphertexts must also be searched for.
+    List<Range> replanned = new ArrayList<>();
+    encryptor.transformRange(range, replanned);
+    assertThat("transform after a new key version is a miss", encryptor.getQueryPlanCacheMissCount(), is(4L));
+    assertThat("new key version is searched for", replanned, hasSize(12));
+    assertThat("column filter is unaffected by the row key", encryptor.getColumnFilter(new Text(new byte[] {2}), new Text(new byte[] {3})).serverSideFilters,
+        hasSize(filter.serverSideFilters.size()));
+
+    // Checking unchanged key versions keeps the cached plans.
+    encryptor.transformRange(range, new ArrayList<>());
+    assertThat("transform with the same key versions is a hit", encryptor.getQueryPlanCacheMissCount(), is(5L));
+  }
+
+  @Test
+  public void transformRangeSegmentedTest() throws Exception {
+    EntryEncryptor encryptor = getEncryptor("segmented-row.ini");
+    Key inPrefix = encryptor.encrypt(new SimpleImmutableEntry<>(new Key("2024:01:sensor"), new Value())).getKey();
+    Key sameYear = encryptor.encrypt(new SimpleImmutableEntry<>(new Key("2024:02:sensor"), new Value())).getKey();
+    Key otherYear = encryptor.encrypt(new SimpleImmutableEntry<>(new Key("2025:01:sensor"), new Value())).getKey();
+
+    // Prefix scan on whole segments.
+    List<Range> serverSideRanges = new ArrayList<>();
+    boolean result = encryptor.transformRange(Range.prefix("2024:01:"), serverSideRanges);
+    assertThat("one range per key version", serverSideRanges, hasSize(2));
+    assertThat("should be filtered client side", result, is(true));
+    assertThat("ranges are bounded", serverSideRanges, not(hasItem(new Range())));
+    assertThat("matching row is scanned", serverSideRanges.stream().anyMatch(range -> range.contains(inPrefix)), is(true));
+    assertThat("other rows are not scanned", serverSideRanges.stream().anyMatch(range -> range.contains(sameYear) || range.contains(otherYear)), is(false));
+
+    // Range within a prefix ending mid-segment.
+    serverSideRanges.clear();
+    result = encryptor.transformRange(new Range("2024:01", "2024:03"), serverSideRanges);
+    assertThat("should be filtered client side", result, is(true));
+    assertThat("rows sharing the year are scanned", serverSideRanges.stream().anyMatch(range -> range.contains(inPrefix) && range.contains(sameYear)), is(true));
+    assertThat("other years are not scanned", serverSideRanges.stream().anyMatch(range -> range.contains(otherYear)), is(false));
+
+    // Range without a shared segment.
+    serverSideRanges.clear();
+    result = encryptor.transformRange(new Range("2024:01", "2025:01"), serverSideRanges);
+    assertThat("falls back to scanning everything", serverSideRanges, contains(new Range()));
+    assertThat("should be filtered client side", result, is(true));
+
+    // Exact rows are still searched for without client side filtering.
+    serverSideRanges.clear();
+    result = encryptor.transformRange(Range.exact("2024:01:sensor"), serverSideRanges);
+    assertThat("one range per key version", serverSideRanges, hasSize(2));
+    assertThat("should not be filtered client side", result, is(false));
+    assertThat("matching row is scanned", serverSideRanges.stream().anyMatch(range -> range.contains(inPrefix)), is(true));
+  }
+
+  @Test
+  public void transformRangeTokenTest() throws Exception {
+    EntryEncryptor encryptor = getEncryptor("token-row.ini");
+    Entry<Key,Value> entry = new SimpleImmutableEntry<>(new Key("a long row identifier", "cf", "cq"), new Value(new byte[] {1, 2, 3}));
+    Entry<Key,Value> encrypted = encryptor.encrypt(entry);
+    Key other = encryptor.encrypt(new SimpleImmutableEntry<>(new Key("a long row identifieR"), new Value())).getKey();
+
+    assertThat("row is a fixed length token", encrypted.getKey().getRowData().length(), is(1 + HMACTokenValueEncryptor.TOKEN_LENGTH));
+    assertThat("decrypting restores the row from the value", encryptor.decrypt(encrypted), is(equalTo(entry)));
+
+    List<Range> serverSideRanges = new ArrayList<>();
+    boolean result = encryptor.transformRange(Range.exact("a long row identifier"), serverSideRanges);
+    assertThat("one range per key version", serverSideRanges, hasSize(2));
+    assertThat("should not be filtered client side", result, is(false));
+    assertThat("matching row is scanned", serverSideRanges.stream().anyMatch(range -> range.contains(encrypted.getKey())), is(true));
+    assertThat("other rows are not scanned", serverSideRanges.stream().anyMatch(range -> range.contains(other)), is(false));
+  }
+
   @Test
   public void transformRangeTest() throws Exception {
     // only value encrypted
@@ -94,6 +94,70 @@ public class FieldEncryptorConfigTest {
       getValidBuilder().setSources(new TreeSet<>()).build();
       fail("sources must not be empty");
     } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      getValidBuilder().setVisibilityKeyCacheSize(-1).build();
+      fail("visibilityKeyCacheSize must not be negative");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      getValidBuilder().setVisibilityKeyCacheSize(10).setVisibilityKeyCacheLifetime(0).build();
+      fail("visibilityKeyCacheLifetime must be positive when caching is enabled");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      getValidBuilder().setCompression(null).build();
+      fail("compression must not be null");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      getValidBuilder().setCompression(Compression.DEFLATE).setCompressionThreshold(-1).build();
+      fail("compressionThreshold must not be negative");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      getValidBuilder().setCompression(Compression.DEFLATE).setDestination(EntryField.ROW).setSources(ImmutableSortedSet.of(EntryField.ROW)).build();
+      fail("compression is only supported for the value");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      getValidBuilder().setValueEncryptor(ValueEncryptor.AES_GCM_CHUNKED).setDestination(EntryField.ROW).setSources(ImmutableSortedSet.of(EntryField.ROW))
+          .build();
+      fail("chunked encryption is only supported for the value");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      getValidBuilder().setValueEncryptor(ValueEncryptor.AES_SIV_DETERMINISTIC).setEncryptUsingVisibility(false).setMinimumKeyVersion(-1).build();
+      fail("minimumKeyVersion must not be negative");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      getValidBuilder().setValueEncryptor(ValueEncryptor.AES_SIV_DETERMINISTIC).setEncryptUsingVisibility(false).setRetiredKeyVersions(null).build();
+      fail("retiredKeyVersions must not be null");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      getValidBuilder().setValueEncryptor(ValueEncryptor.AES_GCM).setRetiredKeyVersions(ImmutableSortedSet.of(1)).build();
+      fail("key versions can only be retired for deterministic encryption");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      getValidBuilder().setEncryptUsingVisibility(false).setRowSegmentation(RowSegmentation.delimited(':')).setDestination(EntryField.ROW)
+          .setSources(ImmutableSortedSet.of(EntryField.ROW)).build();
+      fail("row segmentation is only supported for deterministic encryption");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      getValidBuilder().setValueEncryptor(ValueEncryptor.AES_SIV_DETERMINISTIC).setEncryptUsingVisibility(false)
+          .setRowSegmentation(RowSegmentation.delimited(':')).setDestination(EntryField.ROW)
+          .setSources(ImmutableSortedSet.of(EntryField.ROW, EntryField.COLUMN_FAMILY)).build();
+      fail("row segmentation is only supported when the row is the only source");
+    } catch (IllegalArgumentException e) { /* expected */}
+
+    try {
+      getValidBuilder().setValueEncryptor(ValueEncryptor.HMAC_SHA256_TOKEN).setEncryptUsingVisibility(false).build();
+      fail("tokens are only supported for key fields");
+    } catch (IllegalArgumentException e) { /* expected */}
   }
 
   @Test
@@ -149,6 +213,38 @@ public class FieldEncryptorConfigTest {
 
     FieldEncryptorConfig config2 = new FieldEncryptorConfigBuilder().readFromIni(ini.values().iterator().next()).build();
     assertThat("writing then reading the config should produce an equivalent configuration", config2, hasSameFieldsAs(config));
+
+    config = getValidBuilder().setKeyId("keyId").setVisibilityKeyCacheSize(100).setVisibilityKeyCacheLifetime(30).build();
+    ini = new Ini();
+    config.write(ini);
+
+    config2 = new FieldEncryptorConfigBuilder().readFromIni(ini.values().iterator().next()).build();
+    assertThat("cache settings should be written and read", config2, hasSameFieldsAs(config));
+
+    config = getValidBuilder().setKeyId("keyId").setCompression(Compression.DEFLATE_FAST).setCompressionThreshold(256).build();
+    ini = new Ini();
+    config.write(ini);
+
+    config2 = new FieldEncryptorConfigBuilder().readFromIni(ini.values().iterator().next()).build();
+    assertThat("compression settings should be written and read", config2, hasSameFieldsAs(config));
+
+    config = getValidBuilder().setKeyId("keyId").setValueEncryptor(ValueEncryptor.AES_SIV_DETERMINISTIC).setEncryptUsingVisibility(false)
+        .setKeyLength(ValueEncryptor.AES_SIV_DETERMINISTIC.getDefaultKeyLength()).setMinimumKeyVersion(3).setRetiredKeyVersions(ImmutableSortedSet.of(5, 7))
+        .build();
+    ini = new Ini();
+    config.write(ini);
+
+    config2 = new FieldEncryptorConfigBuilder().readFromIni(ini.values().iterator().next()).build();
+    assertThat("key version settings should be written and read", config2, hasSameFieldsAs(config));
+
+    config = getValidBuilder().setKeyId("keyId").setValueEncryptor(ValueEncryptor.AES_SIV_DETERMINISTIC).setEncryptUsingVisibility(false)
+        .setKeyLength(ValueEncryptor.AES_SIV_DETERMINISTIC.getDefaultKeyLength()).setDestination(EntryField.ROW)
+        .setSources(ImmutableSortedSet.of(EntryField.ROW)).setRowSegmentation(RowSegmentation.fixedWidth(8, 2)).build();
+    ini = new Ini();
+    config.write(ini);
+
+    config2 = new FieldEncryptorConfigBuilder().readFromIni(ini.values().iterator().next()).build();
+    assertThat("row segmentation should be written and read", config2, hasSameFieldsAs(config));
   }
 
   /**
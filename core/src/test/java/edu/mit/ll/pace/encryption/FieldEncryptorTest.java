@@ -17,20 +17,35 @@ package edu.mit.ll.pace.encryption;
 
 import static edu.mit.ll.pace.internal.Utils.VISIBILITY_CHARSET;
 import static edu.mit.ll.pace.test.TestUtils.getResourceAsStream;
+import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.security.SecureRandom;
 import java.security.Security;
 import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.zip.Deflater;
 
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Value;
-import org.apache.accumulo.core.security.ColumnVisibility;
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.ini4j.Ini;
 import org.junit.BeforeClass;
@@ -40,6 +55,7 @@ import com.google.common.collect.ImmutableSet;
 
 import edu.mit.ll.pace.EntryField;
 import edu.mit.ll.pace.IllegalKeyRequestException;
+import edu.mit.ll.pace.encryption.EncryptionKeyContainer.KeyWithVersion;
 import edu.mit.ll.pace.internal.MutableEntry;
 
 /**
@@ -78,7 +94,7 @@ public class FieldEncryptorTest {
     MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3},
         "secret".getBytes(VISIBILITY_CHARSET), (long) 5, false), new Value(new byte[] {6})));
     MutableEntry empty = new MutableEntry();
-    ColumnVisibility visibility = new ColumnVisibility("secret");
+    VisibilityPlan visibility = VisibilityPlan.of("secret".getBytes(VISIBILITY_CHARSET));
 
     // gcmEncryptor
     MutableEntry encrypted = new MutableEntry();
@@ -139,7 +155,7 @@ public class FieldEncryptorTest {
         "secret".getBytes(VISIBILITY_CHARSET), (long) 5, false), new Value(new byte[] {6, 7, 8})));
     MutableEntry original2 = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {9}, new byte[] {10, 11}, new byte[] {12, 13, 14},
         "abcde".getBytes(VISIBILITY_CHARSET), (long) 15, true), new Value(new byte[] {16, 17})));
-    ColumnVisibility visibility = new ColumnVisibility("secret");
+    VisibilityPlan visibility = VisibilityPlan.of("secret".getBytes(VISIBILITY_CHARSET));
 
     // Encrypt value with version 1 key.
     MutableEntry encrypted = new MutableEntry();
@@ -179,7 +195,7 @@ public class FieldEncryptorTest {
     MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3},
         "secret".getBytes(VISIBILITY_CHARSET), (long) 5, false), new Value(new byte[] {6})));
     MutableEntry empty = new MutableEntry();
-    ColumnVisibility visibility = new ColumnVisibility("secret");
+    VisibilityPlan visibility = VisibilityPlan.of("secret".getBytes(VISIBILITY_CHARSET));
 
     // gcmEncryptor
     MutableEntry encrypted = new MutableEntry();
@@ -242,6 +258,214 @@ public class FieldEncryptorTest {
     assertThat("value was not encrypted and should not be set", decrypted.value, is(empty.value));
   }
 
+  @Test
+  public void cachedVisibilityKeyTest() throws Exception {
+    MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3},
+        "secret".getBytes(VISIBILITY_CHARSET), (long) 5, false), new Value(new byte[] {6})));
+    MutableEntry encrypted1 = new MutableEntry(), encrypted2 = new MutableEntry(), decrypted = new MutableEntry();
+
+    VisibilityPlan visibility = VisibilityPlan.of("secret&(admin|\"top secret\")".getBytes(VISIBILITY_CHARSET));
+    original.colVis = visibility.expression;
+
+    FieldEncryptor encryptor = getEncryptor("gcmCEABAC.ini");
+    encryptor.encrypt(original, encrypted1, visibility);
+    encryptor.encrypt(original, encrypted2, visibility);
+    assertThat("without caching, each entry gets new key shares", Arrays.copyOf(encrypted1.value, 20), is(not(Arrays.copyOf(encrypted2.value, 20))));
+
+    encryptor = getEncryptor("gcmCEABACCached.ini");
+    encryptor.encrypt(original, encrypted1, visibility);
+    encryptor.encrypt(original, encrypted2, visibility);
+    assertThat("with caching, entries share the key shares", Arrays.copyOf(encrypted1.value, 20), is(Arrays.copyOf(encrypted2.value, 20)));
+    assertThat("the data is still encrypted with a random IV", encrypted1.value, is(not(encrypted2.value)));
+
+    for (MutableEntry encrypted : new MutableEntry[] {encrypted1, encrypted2}) {
+      getEncryptor("gcmCEABAC.ini").decrypt(encrypted, decrypted, visibility);
+      assertThat("cached keys are decrypted as usual", decrypted.value, is(original.value));
+    }
+
+    VisibilityPlan otherVisibility = VisibilityPlan.of("secret&admin".getBytes(VISIBILITY_CHARSET));
+    original.colVis = otherVisibility.expression;
+    encryptor.encrypt(original, encrypted2, otherVisibility);
+    assertThat("different visibilities use different keys", Arrays.copyOf(encrypted1.value, 20), is(not(Arrays.copyOf(encrypted2.value, 20))));
+    getEncryptor("gcmCEABAC.ini").decrypt(encrypted2, decrypted, otherVisibility);
+    assertThat("cached keys are decrypted as usual", decrypted.value, is(original.value));
+  }
+
+  @Test
+  public void cachedDecryptedKeyTest() throws Exception {
+    MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3},
+        "secret".getBytes(VISIBILITY_CHARSET), (long) 5, false), new Value(new byte[] {6})));
+    MutableEntry encrypted1 = new MutableEntry(), encrypted2 = new MutableEntry(), decrypted = new MutableEntry();
+
+    VisibilityPlan visibility = VisibilityPlan.of("secret&(admin|\"top secret\")".getBytes(VISIBILITY_CHARSET));
+    original.colVis = visibility.expression;
+
+    FieldEncryptor encryptor = getEncryptor("gcmCEABACCached.ini");
+    encryptor.encrypt(original, encrypted1, visibility);
+    encryptor.encrypt(original, encrypted2, visibility);
+
+    encryptor.decrypt(encrypted1, decrypted, visibility);
+    assertThat("first decryption reconstructs the key", decrypted.value, is(original.value));
+    assertThat("first decryption is a miss", encryptor.getDecryptedKeyCacheStats().missCount(), is(1L));
+
+    decrypted = new MutableEntry();
+    encryptor.decrypt(encrypted2, decrypted, visibility);
+    assertThat("second decryption uses the cached key", decrypted.value, is(original.value));
+    assertThat("second decryption is a hit", encryptor.getDecryptedKeyCacheStats().hitCount(), is(1L));
+
+    // Keys that cannot be reconstructed are not cached.
+    FieldEncryptor restricted = getEncryptor("gcmCEABACCached.ini", new MockEncryptionKeyContainer(Pair.of("admin", 1)));
+    for (int i = 0; i < 2; i++) {
+      try {
+        restricted.decrypt(encrypted1, decrypted, visibility);
+        fail("admin keys should not decrypt data");
+      } catch (IllegalKeyRequestException e) { /* expected */}
+    }
+    assertThat("failures are not cached", restricted.getDecryptedKeyCacheStats().hitCount(), is(0L));
+
+    assertThat("stats are not kept without caching", getEncryptor("gcmCEABAC.ini").getDecryptedKeyCacheStats(), is(nullValue()));
+  }
+
+  @Test
+  public void compressionTest() throws Exception {
+    byte[] compressible = new byte[1000];
+    Arrays.fill(compressible, (byte) 'a');
+    byte[] incompressible = new byte[1000];
+    new SecureRandom().nextBytes(incompressible);
+    byte[] small = "aaaaaaaaaa".getBytes(VISIBILITY_CHARSET);
+
+    FieldEncryptor plain = getEncryptor("gcm.ini");
+    FieldEncryptor compressed = getEncryptor("gcmCompressed.ini");
+    VisibilityPlan visibility = VisibilityPlan.of(new byte[0]);
+
+    for (byte[] value : new byte[][] {compressible, incompressible, small, new byte[0]}) {
+      MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(
+          new Key(new byte[] {1}, new byte[] {2}, new byte[] {3}, new byte[0], (long) 5, false), new Value(value)));
+      MutableEntry plainEncrypted = new MutableEntry(), compressedEncrypted = new MutableEntry(), decrypted = new MutableEntry();
+
+      plain.encrypt(original, plainEncrypted, visibility);
+      compressed.encrypt(original, compressedEncrypted, visibility);
+      compressed.decrypt(compressedEncrypted, decrypted, visibility);
+      assertThat("compressed values can be decrypted", decrypted.value, is(value));
+
+      if (value == compressible) {
+        assertThat("compressible values are smaller", compressedEncrypted.value.length, is(lessThan(plainEncrypted.value.length / 10)));
+      } else {
+        assertThat("other values only grow by the flag", compressedEncrypted.value.length, is(plainEncrypted.value.length + 1));
+      }
+    }
+  }
+
+  @Test
+  public void corruptCompressionTest() throws Exception {
+    byte[] compressible = new byte[100];
+    Arrays.fill(compressible, (byte) 'a');
+    MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3}, new byte[0], (long) 5, false),
+        new Value(compressible)));
+    VisibilityPlan visibility = VisibilityPlan.of(new byte[0]);
+
+    FieldEncryptor encryptor = getEncryptor("gcmCompressed.ini");
+    IdentityEncryptor.replaceValueEncryptorWithIdentityFunction(encryptor);
+    MutableEntry encrypted = new MutableEntry();
+    encryptor.encrypt(original, encrypted, visibility);
+    byte[] header = Arrays.copyOf(encrypted.value, WritableUtils.decodeVIntSize(encrypted.value[0]));
+
+    // The compressed data holds the source length followed by the source.
+    byte[] plaintext = new byte[compressible.length + 1];
+    plaintext[0] = (byte) compressible.length;
+    System.arraycopy(compressible, 0, plaintext, 1, compressible.length);
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflater.setInput(plaintext);
+    deflater.finish();
+    byte[] deflated = new byte[plaintext.length];
+    deflated = Arrays.copyOf(deflated, deflater.deflate(deflated));
+    deflater.end();
+
+    assertThat("well formed data decompresses", decryptCompressed(encryptor, header, plaintext.length, deflated, new byte[0]), is(compressible));
+
+    MutableEntry truncated = new MutableEntry();
+    truncated.value = Arrays.copyOf(header, header.length + 2);
+    truncated.value[header.length] = FieldEncryptor.COMPRESSION_FLAG_COMPRESSED;
+    truncated.value[header.length + 1] = (byte) -116; // First byte of a five byte vint.
+    try {
+      encryptor.decrypt(truncated, new MutableEntry(), visibility);
+      fail("truncated length must be rejected");
+    } catch (EOFException e) { /* expected */}
+
+    try {
+      decryptCompressed(encryptor, header, 1 << 30, deflated, new byte[0]);
+      fail("length that cannot be compressed into the data must be rejected");
+    } catch (EncryptionException e) { /* expected */}
+
+    try {
+      decryptCompressed(encryptor, header, plaintext.length - 1, deflated, new byte[0]);
+      fail("data longer than the recorded length must be rejected");
+    } catch (EncryptionException e) { /* expected */}
+
+    try {
+      decryptCompressed(encryptor, header, plaintext.length, deflated, new byte[] {0});
+      fail("trailing data must be rejected");
+    } catch (EncryptionException e) { /* expected */}
+
+    try {
+      decryptCompressed(encryptor, header, plaintext.length + 1, deflated, new byte[0]);
+      fail("data shorter than the recorded length must be rejected");
+    } catch (EOFException e) { /* expected */}
+  }
+
+  /**
+   * Decrypt a value holding the given compressed data, using an encryptor whose cipher is the identity function.
+   *
+   * @param encryptor
+   *          Encryptor to decrypt with.
+   * @param header
+   *          Header written by the encryptor.
+   * @param length
+   *          Decompressed length to record.
+   * @param deflated
+   *          Compressed data.
+   * @param trailer
+   *          Data to append after the compressed data.
+   * @return The decrypted value.
+   */
+  private static byte[] decryptCompressed(FieldEncryptor encryptor, byte[] header, int length, byte[] deflated, byte[] trailer) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    out.write(header);
+    out.writeByte(FieldEncryptor.COMPRESSION_FLAG_COMPRESSED);
+    WritableUtils.writeVInt(out, length);
+    out.write(deflated);
+    out.write(trailer);
+
+    MutableEntry corrupt = new MutableEntry();
+    corrupt.value = Arrays.copyOf(out.getData(), out.getLength());
+    MutableEntry decrypted = new MutableEntry();
+    encryptor.decrypt(corrupt, decrypted, VisibilityPlan.of(new byte[0]));
+    return decrypted.value;
+  }
+
+  @Test
+  public void chunkedEncryptionTest() throws Exception {
+    byte[] large = new byte[(1 << 20) + 3];
+    new SecureRandom().nextBytes(large);
+    byte[] compressible = new byte[(1 << 18) + 3];
+    Arrays.fill(compressible, (byte) 'a');
+
+    VisibilityPlan visibility = VisibilityPlan.of("secret".getBytes(VISIBILITY_CHARSET));
+    for (String resource : new String[] {"gcmChunked.ini", "gcmChunkedCompressed.ini"}) {
+      FieldEncryptor encryptor = getEncryptor(resource);
+
+      for (byte[] value : new byte[][] {large, compressible, new byte[0]}) {
+        MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3}, visibility.expression,
+            (long) 5, false), new Value(value)));
+        MutableEntry encrypted = new MutableEntry(), decrypted = new MutableEntry();
+
+        encryptor.encrypt(original, encrypted, visibility);
+        encryptor.decrypt(encrypted, decrypted, visibility);
+        assertThat("chunked values can be decrypted", decrypted.value, is(value));
+      }
+    }
+  }
+
   @Test
   public void encryptDecryptCEABACTest() throws Exception {
     MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3},
@@ -256,16 +480,16 @@ public class FieldEncryptorTest {
     MockEncryptionKeyContainer secretAndAdminOnly = new MockEncryptionKeyContainer(Pair.of("secret", 2), Pair.of("admin", 1));
 
     // empty
-    ColumnVisibility visibility = new ColumnVisibility("");
-    original.colVis = visibility.getExpression();
+    VisibilityPlan visibility = VisibilityPlan.of("".getBytes(VISIBILITY_CHARSET));
+    original.colVis = visibility.expression;
     encryptor.encrypt(original, encrypted, visibility);
 
     getEncryptor("gcmCEABAC.ini", empty).decrypt(encrypted, decrypted, visibility);
     assertThat("no keys should be needed to decrypt the value", decrypted.value, is(original.value));
 
     // secret | top secret
-    visibility = new ColumnVisibility("secret|\"top secret\"");
-    original.colVis = visibility.getExpression();
+    visibility = VisibilityPlan.of("secret|\"top secret\"".getBytes(VISIBILITY_CHARSET));
+    original.colVis = visibility.expression;
     encryptor.encrypt(original, encrypted, visibility);
 
     try {
@@ -280,8 +504,8 @@ public class FieldEncryptorTest {
     assertThat("top secret should be sufficient", decrypted.value, is(original.value));
 
     // secret & top secret
-    visibility = new ColumnVisibility("secret&\"top secret\"");
-    original.colVis = visibility.getExpression();
+    visibility = VisibilityPlan.of("secret&\"top secret\"".getBytes(VISIBILITY_CHARSET));
+    original.colVis = visibility.expression;
     encryptor.encrypt(original, encrypted, visibility);
 
     try {
@@ -303,8 +527,8 @@ public class FieldEncryptorTest {
     assertThat("secret and topSecret should be sufficient", decrypted.value, is(original.value));
 
     // top secret | (secret & admin)
-    visibility = new ColumnVisibility("\"top secret\"|(secret&admin)");
-    original.colVis = visibility.getExpression();
+    visibility = VisibilityPlan.of("\"top secret\"|(secret&admin)".getBytes(VISIBILITY_CHARSET));
+    original.colVis = visibility.expression;
     encryptor.encrypt(original, encrypted, visibility);
 
     getEncryptor("gcmCEABAC.ini", topSecretOnly).decrypt(encrypted, decrypted, visibility);
@@ -319,11 +543,132 @@ public class FieldEncryptorTest {
     assertThat("secret and admin should be sufficient", decrypted.value, is(original.value));
   }
 
+  @Test
+  public void branchOrderingTest() throws Exception {
+    MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3},
+        "secret".getBytes(VISIBILITY_CHARSET), (long) 5, false), new Value(new byte[] {6})));
+    VisibilityPlan visibility = VisibilityPlan.of("(secret&admin)|\"top secret\"".getBytes(VISIBILITY_CHARSET));
+    MutableEntry encrypted = new MutableEntry();
+    MutableEntry decrypted = new MutableEntry();
+
+    getEncryptor("gcmCEABAC.ini").encrypt(original, encrypted, visibility);
+
+    // Record the attribute keys that are looked up, and make sure that the exception throwing lookup is never used.
+    MockEncryptionKeyContainer held = new MockEncryptionKeyContainer(Pair.of("secret", 2), Pair.of("top secret", 1));
+    List<String> lookups = new ArrayList<>();
+    EncryptionKeyContainer recording = new EncryptionKeyContainer() {
+      @Override
+      public Collection<KeyWithVersion> getKeys(String id, int length) {
+        return held.getKeys(id, length);
+      }
+
+      @Override
+      public KeyWithVersion getKey(String id, int length) {
+        return held.getKey(id, length);
+      }
+
+      @Override
+      public byte[] getKey(String id, int version, int length) {
+        return held.getKey(id, version, length);
+      }
+
+      @Override
+      public KeyWithVersion getAttributeKey(String attribute, String id, int length) {
+        return held.getAttributeKey(attribute, id, length);
+      }
+
+      @Override
+      public byte[] getAttributeKey(String attribute, String id, int version, int length) {
+        throw new AssertionError("attribute keys should be found without exceptions");
+      }
+
+      @Override
+      public byte[] findAttributeKey(String attribute, String id, int version, int length) {
+        lookups.add(attribute);
+        return held.findAttributeKey(attribute, id, version, length);
+      }
+    };
+
+    getEncryptor("gcmCEABAC.ini", recording).decrypt(encrypted, decrypted, visibility);
+    assertThat("value was decrypted", decrypted.value, is(original.value));
+    assertThat("the held term is tried before the AND branch", lookups, contains("top secret"));
+
+    // Without the term, the AND is only decrypted once all of its keys are known to be held.
+    MockEncryptionKeyContainer partial = new MockEncryptionKeyContainer(Pair.of("secret", 2));
+    try {
+      getEncryptor("gcmCEABAC.ini", partial).decrypt(encrypted, decrypted, visibility);
+      fail("secret keys should not decrypt data");
+    } catch (IllegalKeyRequestException e) { /* expected */}
+  }
+
+  @Test
+  public void minimizedVisibilityTest() throws Exception {
+    MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3},
+        "secret".getBytes(VISIBILITY_CHARSET), (long) 5, false), new Value(new byte[] {6})));
+    VisibilityPlan minimal = VisibilityPlan.of("secret".getBytes(VISIBILITY_CHARSET));
+    VisibilityPlan redundant = VisibilityPlan.of("secret|(secret&admin)|(secret|secret)".getBytes(VISIBILITY_CHARSET));
+    MutableEntry encryptedMinimal = new MutableEntry();
+    MutableEntry encryptedRedundant = new MutableEntry();
+    MutableEntry decrypted = new MutableEntry();
+
+    FieldEncryptor encryptor = getEncryptor("gcmCEABAC.ini");
+    encryptor.encrypt(original, encryptedMinimal, minimal);
+    encryptor.encrypt(original, encryptedRedundant, redundant);
+
+    assertThat("shares follow the minimized expression", encryptedRedundant.value[0], is(FieldEncryptor.MINIMIZED_TREE_FLAG));
+    // The minimized tree is a single term, which is written as a tag byte and a one byte index.
+    assertThat("only the flag and the minimized tree are added to the shares of the minimal expression", encryptedRedundant.value.length,
+        is(encryptedMinimal.value.length + 3));
+    assertThat("minimal expressions are not flagged", encryptedMinimal.value[0], is(not(FieldEncryptor.MINIMIZED_TREE_FLAG)));
+
+    getEncryptor("gcmCEABAC.ini", new MockEncryptionKeyContainer(Pair.of("secret", 2))).decrypt(encryptedRedundant, decrypted, redundant);
+    assertThat("value was decrypted", decrypted.value, is(original.value));
+
+    try {
+      getEncryptor("gcmCEABAC.ini", new MockEncryptionKeyContainer(Pair.of("admin", 1))).decrypt(encryptedRedundant, decrypted, redundant);
+      fail("admin keys should not decrypt data");
+    } catch (IllegalKeyRequestException e) { /* expected */}
+  }
+
+  @Test
+  public void keyWrapTest() throws Exception {
+    MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3},
+        "secret".getBytes(VISIBILITY_CHARSET), (long) 5, false), new Value(new byte[] {6})));
+    VisibilityPlan visibility = VisibilityPlan.of("secret".getBytes(VISIBILITY_CHARSET));
+    MutableEntry encrypted = new MutableEntry();
+    MutableEntry decrypted = new MutableEntry();
+    int keyLength = ValueEncryptor.AES_GCM.getDefaultKeyLength();
+
+    getEncryptor("gcmCEABAC.ini").encrypt(original, encrypted, visibility);
+
+    // The share is written as "version || key wrap flag || wrapped share".
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(encrypted.value, encrypted.value.length);
+    int version = WritableUtils.readVInt(in);
+    assertThat("share is key wrapped", WritableUtils.readVInt(in), is(FieldEncryptor.KEY_WRAP_FLAG));
+    byte[] wrapped = new byte[keyLength + KeyWrap.OVERHEAD];
+    in.readFully(wrapped);
+    byte[] ciphertext = Arrays.copyOfRange(encrypted.value, in.getPosition(), encrypted.value.length);
+
+    // Rewrite the share in the original format, encrypted with the field's encryptor, which must still be readable.
+    byte[] attributeKey = keys.getAttributeKey("secret", "AES_GCM", version, keyLength);
+    byte[] share = ValueEncryptor.AES_GCM.getInstance(null).encrypt(attributeKey, new KeyWrap(null).unwrap(attributeKey, wrapped));
+    DataOutputBuffer out = new DataOutputBuffer();
+    WritableUtils.writeVInt(out, version);
+    WritableUtils.writeVInt(out, share.length);
+    out.write(share);
+    out.write(ciphertext);
+    encrypted.value = Arrays.copyOf(out.getData(), out.getLength());
+
+    getEncryptor("gcmCEABAC.ini").decrypt(encrypted, decrypted, visibility);
+    assertThat("shares in the original format are decrypted", decrypted.value, is(original.value));
+  }
+
   @Test
   public void keyVersioningTest() throws Exception {
     MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3},
         "secret".getBytes(VISIBILITY_CHARSET), (long) 5, false), new Value(new byte[] {6})));
-    ColumnVisibility visibility = new ColumnVisibility("secret");
+    VisibilityPlan visibility = VisibilityPlan.of("secret".getBytes(VISIBILITY_CHARSET));
     MutableEntry encrypted = new MutableEntry();
     MutableEntry decrypted = new MutableEntry();
 
@@ -355,7 +700,7 @@ public class FieldEncryptorTest {
   public void getServerSideFilterValuesTest() throws Exception {
     MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3},
         "secret".getBytes(VISIBILITY_CHARSET), (long) 5, false), new Value(new byte[] {6})));
-    ColumnVisibility visibility = new ColumnVisibility("secret");
+    VisibilityPlan visibility = VisibilityPlan.of("secret".getBytes(VISIBILITY_CHARSET));
 
     MutableEntry encryptedV1 = new MutableEntry();
     getEncryptor("siv.ini", new MockEncryptionKeyContainer(Pair.of("SIV", 1))).encrypt(original, encryptedV1, visibility);
@@ -367,6 +712,97 @@ public class FieldEncryptorTest {
     assertThat("encrypted values for each version available", searchKeys, containsInAnyOrder(encryptedV1.row, encryptedV2.row));
   }
 
+  @Test
+  public void segmentedRowTest() throws Exception {
+    VisibilityPlan visibility = VisibilityPlan.of("secret".getBytes(VISIBILITY_CHARSET));
+    FieldEncryptor widths = getEncryptor("sivSegmented.ini");
+    FieldEncryptor delimited = new FieldEncryptor(new FieldEncryptorConfigBuilder().setValueEncryptor(ValueEncryptor.AES_SIV_DETERMINISTIC)
+        .setKeyLength(ValueEncryptor.AES_SIV_DETERMINISTIC.getDefaultKeyLength()).setKeyId("SIV").setDestination(EntryField.ROW).addSource(EntryField.ROW)
+        .setRowSegmentation(RowSegmentation.delimited(':')).build(), keys);
+
+    for (FieldEncryptor encryptor : Arrays.asList(widths, delimited)) {
+      for (String row : new String[] {"", "20", "2024", "202401", "2024:01:sensor", "202401sensor:", "::"}) {
+        MutableEntry original = new MutableEntry(new Key(row));
+        MutableEntry encrypted = new MutableEntry();
+        MutableEntry decrypted = new MutableEntry();
+
+        encryptor.encrypt(original, encrypted, visibility);
+        encryptor.decrypt(encrypted, decrypted, visibility);
+        assertThat("decrypted row matches " + row, decrypted.row, equalTo(original.row));
+        assertThat("exact search matches " + row, encryptor.getServerSideFilterValues(original), hasItem(encrypted.row));
+
+        for (int prefixLength : encryptor.getSearchablePrefixLengths(original.row)) {
+          List<byte[]> prefixes = encryptor.getServerSidePrefixValues(original.row, prefixLength);
+          assertThat("one prefix per key version", prefixes, hasSize(2));
+          assertThat("current version is a prefix of " + row, prefixes.stream().anyMatch(prefix -> startsWith(encrypted.row, prefix)), is(true));
+        }
+      }
+    }
+
+    // Equal segments are only encrypted identically when they follow the same segments.
+    MutableEntry first = new MutableEntry();
+    MutableEntry second = new MutableEntry();
+    delimited.encrypt(new MutableEntry(new Key("a:x")), first, visibility);
+    delimited.encrypt(new MutableEntry(new Key("b:x")), second, visibility);
+    int firstSegmentLength = delimited.getServerSidePrefixValues("a:x".getBytes(VISIBILITY_CHARSET), 2).get(1).length;
+    assertThat("segments are chained", Arrays.copyOfRange(first.row, firstSegmentLength, first.row.length),
+        not(equalTo(Arrays.copyOfRange(second.row, firstSegmentLength, second.row.length))));
+
+    // Segments cannot be reordered.
+    MutableEntry encrypted = new MutableEntry();
+    delimited.encrypt(new MutableEntry(new Key("a:b")), encrypted, visibility);
+    int firstLength = 1 + encrypted.row[1];
+    int secondLength = encrypted.row.length - 1 - firstLength;
+    byte[] swapped = new byte[encrypted.row.length];
+    swapped[0] = encrypted.row[0];
+    System.arraycopy(encrypted.row, 1 + firstLength, swapped, 1, secondLength);
+    System.arraycopy(encrypted.row, 1, swapped, 1 + secondLength, firstLength);
+    encrypted.row = swapped;
+    try {
+      delimited.decrypt(encrypted, new MutableEntry(), visibility);
+      fail("reordered segments must not decrypt");
+    } catch (EncryptionException e) { /* expected */}
+  }
+
+  /**
+   * Check whether the data starts with the given prefix.
+   *
+   * @param data
+   *          Data to check.
+   * @param prefix
+   *          Prefix to look for.
+   * @return Whether the data starts with the prefix.
+   */
+  private static boolean startsWith(byte[] data, byte[] prefix) {
+    return data.length >= prefix.length && Arrays.equals(Arrays.copyOf(data, prefix.length), prefix);
+  }
+
+  @Test
+  public void liveKeyVersionsTest() throws Exception {
+    MutableEntry original = new MutableEntry(new SimpleImmutableEntry<>(new Key(new byte[] {1}, new byte[] {2}, new byte[] {3},
+        "secret".getBytes(VISIBILITY_CHARSET), (long) 5, false), new Value(new byte[] {6})));
+    VisibilityPlan visibility = VisibilityPlan.of("secret".getBytes(VISIBILITY_CHARSET));
+
+    List<byte[]> encrypted = new ArrayList<>();
+    for (int version = 1; version <= 5; version++) {
+      MutableEntry entry = new MutableEntry();
+      getEncryptor("siv.ini", new MockEncryptionKeyContainer(Pair.of("SIV", version))).encrypt(original, entry, visibility);
+      encrypted.add(entry.row);
+    }
+
+    FieldEncryptor encryptor = getEncryptor("sivRetired.ini", new MockEncryptionKeyContainer(Pair.of("SIV", 5)));
+    assertThat("only live versions are searched for", encryptor.getServerSideFilterValues(original),
+        containsInAnyOrder(encrypted.get(1), encrypted.get(2), encrypted.get(4)));
+    assertThat("only live versions are reported", encryptor.getKeyVersions(), equalTo(new int[] {2, 3, 5}));
+
+    // Retired versions can still be decrypted.
+    MutableEntry decrypted = new MutableEntry();
+    MutableEntry retired = new MutableEntry();
+    retired.row = encrypted.get(0);
+    encryptor.decrypt(retired, decrypted, visibility);
+    assertThat("retired version is decrypted", decrypted.row, equalTo(original.row));
+  }
+
   /**
    * Get an encryptor. The default set of keys will be used.
    *
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import static edu.mit.ll.pace.internal.Utils.VISIBILITY_CHARSET;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Test {@link HMACTokenValueEncryptor}.
+ */
+public class HMACTokenValueEncryptorTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private static final byte[] key = "aabbccddaabbccdd".getBytes(VISIBILITY_CHARSET);
+
+  @Test
+  public void tokenTest() throws Exception {
+    ValueEncryptorBase encryptor = ValueEncryptor.HMAC_SHA256_TOKEN.getInstance(null);
+    byte[] plaintext = "1234".getBytes(VISIBILITY_CHARSET);
+
+    byte[] token = encryptor.encrypt(key, plaintext);
+    assertThat("token has a fixed length", token.length, is(HMACTokenValueEncryptor.TOKEN_LENGTH));
+    assertThat("token is the same when identical values are tokenized", encryptor.encrypt(key, plaintext), is(equalTo(token)));
+    assertThat("token is different when different values are tokenized", encryptor.encrypt(key, "1235".getBytes(VISIBILITY_CHARSET)), is(not(equalTo(token))));
+    assertThat("token is different under a different key", encryptor.encrypt("ddccbbaaddccbbaa".getBytes(VISIBILITY_CHARSET), plaintext),
+        is(not(equalTo(token))));
+
+    byte[] longToken = encryptor.encrypt(key, new byte[1024]);
+    assertThat("token length does not depend on the plaintext", longToken.length, is(HMACTokenValueEncryptor.TOKEN_LENGTH));
+
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(key, "HmacSHA256"));
+    byte[] expected = Arrays.copyOf(mac.doFinal(plaintext), HMACTokenValueEncryptor.TOKEN_LENGTH);
+    assertThat("token is the truncated HMAC", token, is(equalTo(expected)));
+  }
+
+  @Test
+  public void headerTest() throws Exception {
+    ValueEncryptorBase encryptor = ValueEncryptor.HMAC_SHA256_TOKEN.getInstance(null);
+    byte[] data = "xx1234yy".getBytes(VISIBILITY_CHARSET);
+
+    byte[] token = encryptor.encrypt(key, data, 2, 4, 3);
+    assertThat("token leaves room for the header", token.length, is(3 + HMACTokenValueEncryptor.TOKEN_LENGTH));
+    assertThat("token is computed over the slice", Arrays.copyOfRange(token, 3, token.length),
+        is(equalTo(encryptor.encrypt(key, "1234".getBytes(VISIBILITY_CHARSET)))));
+  }
+
+  @Test
+  public void decryptTest() throws Exception {
+    ValueEncryptorBase encryptor = ValueEncryptor.HMAC_SHA256_TOKEN.getInstance(null);
+    byte[] token = encryptor.encrypt(key, "1234".getBytes(VISIBILITY_CHARSET));
+
+    thrown.expect(UnsupportedOperationException.class);
+    encryptor.decrypt(key, token);
+  }
+
+}
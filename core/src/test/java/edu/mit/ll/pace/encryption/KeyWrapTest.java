@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.isA;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchProviderException;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * Test {@link KeyWrap}.
+ */
+public class KeyWrapTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private final KeyWrap keyWrap = new KeyWrap(null);
+
+  @BeforeClass
+  public static void registerBouncyCastle() {
+    if (Security.getProvider("BC") == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  @Test
+  public void supportsTest() {
+    assertThat("AES keys are supported", KeyWrap.supports(16, 16), is(true));
+    assertThat("AES keys are supported", KeyWrap.supports(24, 24), is(true));
+    assertThat("AES keys are supported", KeyWrap.supports(32, 32), is(true));
+    assertThat("double length keys are not supported", KeyWrap.supports(64, 64), is(false));
+    assertThat("short shares are not supported", KeyWrap.supports(16, 8), is(false));
+    assertThat("shares must be a multiple of 8 bytes", KeyWrap.supports(16, 20), is(false));
+  }
+
+  @Test
+  public void rfc3394Test() {
+    // RFC 3394, section 4.1: wrap 128 bits of key data with a 128-bit KEK.
+    byte[] key = Hex.decode("000102030405060708090A0B0C0D0E0F");
+    byte[] share = Hex.decode("00112233445566778899AABBCCDDEEFF");
+    byte[] expected = Hex.decode("1FA68B0A8112B447AEF34BD8FB5A7B829D3E862371D2CFE5");
+
+    assertThat("share is wrapped", keyWrap.wrap(key, share), is(equalTo(expected)));
+    assertThat("share is unwrapped", keyWrap.unwrap(key, expected), is(equalTo(share)));
+
+    KeyWrap bouncyCastle = new KeyWrap("BC");
+    assertThat("share is wrapped by the configured provider", bouncyCastle.wrap(key, share), is(equalTo(expected)));
+    assertThat("share is unwrapped by the configured provider", bouncyCastle.unwrap(key, expected), is(equalTo(share)));
+  }
+
+  @Test
+  public void invalidProviderTest() {
+    thrown.expect(EncryptionException.class);
+    thrown.expectCause(isA(NoSuchProviderException.class));
+    new KeyWrap("no such provider");
+  }
+
+  @Test
+  public void wrapTest() {
+    byte[] key1 = new byte[32];
+    byte[] key2 = new byte[32];
+    key2[0] = 1;
+    byte[] share = new byte[32];
+    share[31] = 7;
+
+    byte[] wrapped1 = keyWrap.wrap(key1, share);
+    byte[] wrapped2 = keyWrap.wrap(key2, share);
+    assertThat("wrapping has fixed overhead", wrapped1.length, is(share.length + KeyWrap.OVERHEAD));
+    assertThat("wrapping is deterministic", keyWrap.wrap(key1, share), is(equalTo(wrapped1)));
+    assertThat("shares wrapped with different keys differ", wrapped1, is(not(equalTo(wrapped2))));
+    assertThat("unwrapping gives the share", keyWrap.unwrap(key1, wrapped1), is(equalTo(share)));
+    assertThat("unwrapping gives the share", keyWrap.unwrap(key2, wrapped2), is(equalTo(share)));
+  }
+
+  @Test
+  public void wrongKeyTest() {
+    byte[] key = new byte[16];
+    byte[] wrapped = keyWrap.wrap(key, new byte[16]);
+    key[0] = 1;
+
+    thrown.expect(EncryptionException.class);
+    thrown.expectCause(isA(InvalidKeyException.class));
+    keyWrap.unwrap(key, wrapped);
+  }
+}
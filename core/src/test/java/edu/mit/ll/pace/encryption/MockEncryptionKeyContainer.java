@@ -66,6 +66,18 @@ public final class MockEncryptionKeyContainer implements EncryptionKeyContainer
     }
   }
 
+  /**
+   * Change the current version of a key, as happens when it is rotated.
+   *
+   * @param id
+   *          Id of the key.
+   * @param version
+   *          New current version.
+   */
+  void setVersion(String id, int version) {
+    keys.put(id, version);
+  }
+
   @Override
   public Collection<KeyWithVersion> getKeys(String id, int length) throws IllegalKeyRequestException {
     if (!keys.containsKey(id)) {
@@ -156,7 +168,7 @@ public final class MockEncryptionKeyContainer implements EncryptionKeyContainer
    *          Length of the key to generate.
    * @return Generated key.
    */
-  private byte[] generateKey(String attribute, String id, int version, int length) {
+  private synchronized byte[] generateKey(String attribute, String id, int version, int length) {
     ByteArrayOutputStream metadata = new ByteArrayOutputStream();
 
     try {
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import static edu.mit.ll.pace.internal.Utils.EMPTY;
+import static edu.mit.ll.pace.internal.Utils.VISIBILITY_CHARSET;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import edu.mit.ll.pace.internal.MutableEntry;
+import edu.mit.ll.pace.test.Matchers;
+
+/**
+ * Test {@link PackedRow}.
+ */
+public class PackedRowTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private static final byte[] VISIBILITY = "secret".getBytes(VISIBILITY_CHARSET);
+
+  @Test
+  public void packTest() {
+    Mutation mutation = new Mutation("row");
+    mutation.put("cf", "cq2", 3L, "value2");
+    mutation.put("cf", "cq1", 5L, "value1");
+    mutation.put("", "", 4L, "");
+
+    MutableEntry packed = PackedRow.pack(mutation.getRow(), VISIBILITY, mutation.getUpdates());
+    assertThat("row is kept", packed.row, is("row".getBytes(VISIBILITY_CHARSET)));
+    assertThat("column family is empty", packed.colF, is(EMPTY));
+    assertThat("column qualifier is a random id", packed.colQ.length, is(PackedRow.ID_LENGTH));
+    assertThat("each packed entry has its own id", PackedRow.pack(mutation.getRow(), VISIBILITY, mutation.getUpdates()).colQ, is(not(packed.colQ)));
+    assertThat("visibility is kept", packed.colVis, is(VISIBILITY));
+    assertThat("timestamp is the latest of the columns", packed.timestamp, is(5L));
+    assertThat("has timestamp when all columns do", PackedRow.hasTimestamp(mutation.getUpdates()), is(true));
+
+    List<Entry<Key,Value>> columns = PackedRow.unpack(packed);
+    assertThat(
+        "columns are unpacked in order",
+        columns,
+        contains(Matchers.equalTo(entry("", "", 4L, "")), Matchers.equalTo(entry("cf", "cq1", 5L, "value1")),
+            Matchers.equalTo(entry("cf", "cq2", 3L, "value2"))));
+  }
+
+  @Test
+  public void timestampTest() {
+    Mutation mutation = new Mutation("row");
+    mutation.put("cf", "cq1", 5L, "value1");
+    mutation.put("cf", "cq2", "value2");
+    assertThat("no timestamp when a column has none", PackedRow.hasTimestamp(mutation.getUpdates()), is(false));
+
+    MutableEntry packed = PackedRow.pack(mutation.getRow(), VISIBILITY, mutation.getUpdates());
+    packed.timestamp = 9L; // Assigned by the tablet server.
+
+    List<Entry<Key,Value>> columns = PackedRow.unpack(packed);
+    assertThat("columns without a timestamp take the packed timestamp", columns,
+        contains(Matchers.equalTo(entry("cf", "cq1", 5L, "value1")), Matchers.equalTo(entry("cf", "cq2", 9L, "value2"))));
+  }
+
+  @Test
+  public void deleteTest() {
+    Mutation mutation = new Mutation("row");
+    mutation.putDelete("cf", "cq1", 5L);
+    mutation.putDelete("cf", "cq2");
+    mutation.put("cf", "cq3", 5L, "value3");
+
+    MutableEntry packed = PackedRow.pack(mutation.getRow(), VISIBILITY, mutation.getUpdates());
+    packed.timestamp = 9L; // Assigned by the tablet server.
+
+    List<Entry<Key,Value>> columns = PackedRow.unpack(packed);
+    assertThat("deletes are unpacked", columns,
+        contains(Matchers.equalTo(delete("cf", "cq1", 5L)), Matchers.equalTo(delete("cf", "cq2", 9L)), Matchers.equalTo(entry("cf", "cq3", 5L, "value3"))));
+  }
+
+  @Test
+  public void latestTest() {
+    List<Entry<Key,Value>> columns = new ArrayList<>();
+    columns.add(entry("cf", "cq1", 3L, "old1"));
+    columns.add(entry("cf", "cq2", 3L, "old2"));
+    columns.add(entry("cf", "cq3", 3L, "old3"));
+    columns.add(entry("cf", "cq1", 5L, "new1"));
+    columns.add(delete("cf", "cq2", 5L));
+    columns.add(delete("cf", "cq3", 2L));
+    columns.add(entry("cf", "cq4", 4L, "value4"));
+    columns.add(delete("cf", "cq4", 4L));
+
+    assertThat("only the newest live version of each column is kept", PackedRow.latest(columns, Entry::getKey),
+        contains(Matchers.equalTo(entry("cf", "cq1", 5L, "new1")), Matchers.equalTo(entry("cf", "cq3", 3L, "old3"))));
+  }
+
+  @Test
+  public void truncatedTest() {
+    Mutation mutation = new Mutation("row");
+    mutation.put("cf", "cq", 5L, "value");
+
+    MutableEntry packed = PackedRow.pack(mutation.getRow(), VISIBILITY, mutation.getUpdates());
+    packed.value = Arrays.copyOf(packed.value, packed.value.length - 1);
+
+    thrown.expect(EncryptionException.class);
+    PackedRow.unpack(packed);
+  }
+
+  /**
+   * Create an unpacked entry.
+   *
+   * @param colF
+   *          Column family.
+   * @param colQ
+   *          Column qualifier.
+   * @param timestamp
+   *          Timestamp.
+   * @param value
+   *          Value.
+   * @return The entry.
+   */
+  private static Entry<Key,Value> entry(String colF, String colQ, long timestamp, String value) {
+    return new SimpleImmutableEntry<>(new Key("row".getBytes(VISIBILITY_CHARSET), colF.getBytes(VISIBILITY_CHARSET), colQ.getBytes(VISIBILITY_CHARSET),
+        VISIBILITY, timestamp), new Value(value.getBytes(VISIBILITY_CHARSET)));
+  }
+
+  /**
+   * Create an unpacked delete.
+   *
+   * @param colF
+   *          Column family.
+   * @param colQ
+   *          Column qualifier.
+   * @param timestamp
+   *          Timestamp.
+   * @return The entry.
+   */
+  private static Entry<Key,Value> delete(String colF, String colQ, long timestamp) {
+    return new SimpleImmutableEntry<>(new Key("row".getBytes(VISIBILITY_CHARSET), colF.getBytes(VISIBILITY_CHARSET), colQ.getBytes(VISIBILITY_CHARSET),
+        VISIBILITY, timestamp, true), new Value(EMPTY));
+  }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test {@link RandomSource}.
+ */
+public class RandomSourceTest {
+
+  @After
+  public void restoreFactory() {
+    RandomSource.setFactory(null);
+  }
+
+  @Test
+  public void nextBytesTest() {
+    byte[] first = RandomSource.nextBytes(32);
+    byte[] second = RandomSource.nextBytes(32);
+    assertThat("requested length is returned", first.length, is(32));
+    assertThat("bytes are random", first, is(not(equalTo(second))));
+  }
+
+  @Test
+  public void defaultGeneratorTest() {
+    Set<String> available = Security.getAlgorithms("SecureRandom");
+    String expected = Arrays.stream(RandomSource.ALGORITHMS).filter(algorithm -> available.contains(algorithm.toUpperCase())).findFirst()
+        .orElse(new SecureRandom().getAlgorithm());
+    assertThat("first available algorithm is used", RandomSource.newDefaultGenerator().getAlgorithm(), is(expected));
+  }
+
+  @Test
+  public void perThreadTest() throws Exception {
+    SecureRandom random = RandomSource.current();
+    assertThat("generator is reused by a thread", RandomSource.current(), is(sameInstance(random)));
+
+    AtomicReference<SecureRandom> other = new AtomicReference<>();
+    Thread thread = new Thread(() -> other.set(RandomSource.current()));
+    thread.start();
+    thread.join();
+    assertThat("each thread has its own generator", other.get(), is(not(sameInstance(random))));
+  }
+
+  @Test
+  public void setFactoryTest() {
+    SecureRandom original = RandomSource.current();
+
+    SecureRandom plugged = new SecureRandom();
+    RandomSource.setFactory(() -> plugged);
+    assertThat("plugged generator is used", RandomSource.current(), is(sameInstance(plugged)));
+
+    RandomSource.setFactory(null);
+    SecureRandom restored = RandomSource.current();
+    assertThat("default generator is restored", restored, is(not(sameInstance(plugged))));
+    assertThat("default generator is newly created", restored, is(not(sameInstance(original))));
+  }
+}
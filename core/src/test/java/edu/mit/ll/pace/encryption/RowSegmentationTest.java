@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test {@link RowSegmentation}.
+ */
+public class RowSegmentationTest {
+
+  @Test
+  public void delimitedTest() {
+    RowSegmentation segmentation = RowSegmentation.delimited(':');
+
+    List<byte[]> segments = segmentation.split(bytes("2024:01::x"));
+    assertThat("split at each delimiter", segments, contains(bytes("2024"), bytes("01"), bytes(""), bytes("x")));
+    assertThat("join is the inverse of split", segmentation.join(segments), equalTo(bytes("2024:01::x")));
+    assertThat("prefixes include the delimiter", segmentation.getPrefixLengths(bytes("2024:01::x")), equalTo(new int[] {5, 8, 9}));
+
+    assertThat("trailing delimiter gives an empty segment", segmentation.split(bytes("2024:")), contains(bytes("2024"), bytes("")));
+    assertThat("empty row is a single segment", segmentation.split(bytes("")), contains(bytes("")));
+    assertThat("empty row is joined", segmentation.join(segmentation.split(bytes(""))), equalTo(bytes("")));
+  }
+
+  @Test
+  public void fixedWidthTest() {
+    RowSegmentation segmentation = RowSegmentation.fixedWidth(4, 2);
+
+    List<byte[]> segments = segmentation.split(bytes("202401xyz"));
+    assertThat("split at each width, with the remainder last", segments, contains(bytes("2024"), bytes("01"), bytes("xyz")));
+    assertThat("join is the inverse of split", segmentation.join(segments), equalTo(bytes("202401xyz")));
+    assertThat("prefixes end at each width", segmentation.getPrefixLengths(bytes("202401xyz")), equalTo(new int[] {4, 6}));
+
+    assertThat("short row is a single segment", segmentation.split(bytes("202")), contains(bytes("202")));
+    assertThat("short row has no complete segments", segmentation.getPrefixLengths(bytes("202")), equalTo(new int[0]));
+    assertThat("exact width has no remainder", segmentation.split(bytes("2024")), contains(bytes("2024")));
+  }
+
+  @Test
+  public void fromStringTest() {
+    assertThat("delimiter round trips", RowSegmentation.fromString(RowSegmentation.delimited(':').toString()), equalTo(RowSegmentation.delimited(':')));
+    assertThat("widths round trip", RowSegmentation.fromString(RowSegmentation.fixedWidth(4, 2).toString()), equalTo(RowSegmentation.fixedWidth(4, 2)));
+    assertThat("widths are parsed", RowSegmentation.fromString("widths: 8, 2"), equalTo(RowSegmentation.fixedWidth(8, 2)));
+    assertThat("segmentations differ", RowSegmentation.delimited('|').equals(RowSegmentation.delimited(':')), is(false));
+
+    for (String value : new String[] {"delimiter:", "delimiter:ab", "widths:", "widths:0", "widths:-1", "other:1"}) {
+      try {
+        RowSegmentation.fromString(value);
+        fail("invalid segmentation " + value);
+      } catch (IllegalArgumentException e) { /* expected */}
+    }
+  }
+
+  /**
+   * Get the bytes of a string.
+   *
+   * @param value
+   *          String.
+   * @return Bytes.
+   */
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
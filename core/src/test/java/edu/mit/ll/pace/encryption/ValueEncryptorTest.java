@@ -47,7 +47,7 @@ public final class ValueEncryptorTest {
 
   @Test
   public void validEnumTest() {
-    assertThat("should have six values", ValueEncryptor.values(), is(arrayWithSize(6)));
+    assertThat("should have eight values", ValueEncryptor.values(), is(arrayWithSize(8)));
   }
 
   @Test
@@ -58,6 +58,8 @@ public final class ValueEncryptorTest {
     assertThat("toString should return correct value", ValueEncryptor.AES_CBC.toString(), is("AES_CBC"));
     assertThat("toString should return correct value", ValueEncryptor.AES_OFB.toString(), is("AES_OFB"));
     assertThat("toString should return correct value", ValueEncryptor.AES_GCM.toString(), is("AES_GCM"));
+    assertThat("toString should return correct value", ValueEncryptor.AES_GCM_CHUNKED.toString(), is("AES_GCM_CHUNKED"));
+    assertThat("toString should return correct value", ValueEncryptor.HMAC_SHA256_TOKEN.toString(), is("HMAC_SHA256_TOKEN"));
   }
 
   @Test
@@ -68,6 +70,8 @@ public final class ValueEncryptorTest {
     assertThat("fromString should return correct enum value", ValueEncryptor.fromString("AES_CBC"), is(ValueEncryptor.AES_CBC));
     assertThat("fromString should return correct enum value", ValueEncryptor.fromString("AES_OFB"), is(ValueEncryptor.AES_OFB));
     assertThat("fromString should return correct enum value", ValueEncryptor.fromString("AES_GCM"), is(ValueEncryptor.AES_GCM));
+    assertThat("fromString should return correct enum value", ValueEncryptor.fromString("AES_GCM_CHUNKED"), is(ValueEncryptor.AES_GCM_CHUNKED));
+    assertThat("fromString should return correct enum value", ValueEncryptor.fromString("HMAC_SHA256_TOKEN"), is(ValueEncryptor.HMAC_SHA256_TOKEN));
   }
 
   @Test(expected = IllegalArgumentException.class)
@@ -83,6 +87,15 @@ public final class ValueEncryptorTest {
     assertThat("isDeterministic is false", ValueEncryptor.AES_CBC.isDeterministic(), is(false));
     assertThat("isDeterministic is false", ValueEncryptor.AES_OFB.isDeterministic(), is(false));
     assertThat("isDeterministic is false", ValueEncryptor.AES_GCM.isDeterministic(), is(false));
+    assertThat("isDeterministic is false", ValueEncryptor.AES_GCM_CHUNKED.isDeterministic(), is(false));
+    assertThat("isDeterministic is true", ValueEncryptor.HMAC_SHA256_TOKEN.isDeterministic(), is(true));
+  }
+
+  @Test
+  public void isRecoverableTest() {
+    for (ValueEncryptor encryptor : ValueEncryptor.values()) {
+      assertThat("only tokens are not recoverable", encryptor.isRecoverable(), is(encryptor != ValueEncryptor.HMAC_SHA256_TOKEN));
+    }
   }
 
   @Test
@@ -93,6 +106,8 @@ public final class ValueEncryptorTest {
     assertThat("correct default key (16)", ValueEncryptor.AES_CBC.getDefaultKeyLength(), is(16));
     assertThat("correct default key (16)", ValueEncryptor.AES_OFB.getDefaultKeyLength(), is(16));
     assertThat("correct default key (16)", ValueEncryptor.AES_GCM.getDefaultKeyLength(), is(16));
+    assertThat("correct default key (16)", ValueEncryptor.AES_GCM_CHUNKED.getDefaultKeyLength(), is(16));
+    assertThat("correct default key (16)", ValueEncryptor.HMAC_SHA256_TOKEN.getDefaultKeyLength(), is(16));
   }
 
   @Test
@@ -122,6 +137,9 @@ public final class ValueEncryptorTest {
     assertThat("should return a valid ValueEncryptorBase instance", ValueEncryptor.AES_CBC.getInstance("BC"), is(instanceOf(ValueEncryptorBase.class)));
     assertThat("should return a valid ValueEncryptorBase instance", ValueEncryptor.AES_OFB.getInstance(null), is(instanceOf(ValueEncryptorBase.class)));
     assertThat("should return a valid ValueEncryptorBase instance", ValueEncryptor.AES_GCM.getInstance(null), is(instanceOf(ValueEncryptorBase.class)));
+    assertThat("should return a valid ValueEncryptorBase instance", ValueEncryptor.AES_GCM_CHUNKED.getInstance("BC"), is(instanceOf(ValueEncryptorBase.class)));
+    assertThat("should return a valid ValueEncryptorBase instance", ValueEncryptor.HMAC_SHA256_TOKEN.getInstance(null),
+        is(instanceOf(ValueEncryptorBase.class)));
   }
 
   @Test
@@ -135,8 +153,10 @@ public final class ValueEncryptorTest {
       byte[] ciphertext1 = encryptor.encrypt(key, plaintext);
       assertThat("ciphertext should not contain the original plaintext", TestUtils.wrap(ciphertext1), is(not(arrayContaining(TestUtils.wrap(plaintext)))));
 
-      byte[] plaintext1 = encryptor.decrypt(key, ciphertext1);
-      assertThat("decrypting the ciphertext should give the plaintext", plaintext1, is(equalTo(plaintext)));
+      if (encryptorEnum.isRecoverable()) {
+        byte[] plaintext1 = encryptor.decrypt(key, ciphertext1);
+        assertThat("decrypting the ciphertext should give the plaintext", plaintext1, is(equalTo(plaintext)));
+      }
 
       byte[] ciphertext2 = encryptor.encrypt(key, "1235".getBytes(VISIBILITY_CHARSET));
       assertThat("ciphertext should be not be the same when different values are encrypted", ciphertext2, is(not(equalTo(ciphertext1))));
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 MIT Lincoln Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.mit.ll.pace.encryption;
+
+import static edu.mit.ll.pace.internal.Utils.VISIBILITY_CHARSET;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.arrayWithSize;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.accumulo.core.security.ColumnVisibility.NodeType;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+import edu.mit.ll.pace.encryption.VisibilityPlan.PlanNode;
+
+/**
+ * Test {@link VisibilityPlan}.
+ */
+public class VisibilityPlanTest {
+
+  @Test
+  public void compileTest() {
+    VisibilityPlan plan = VisibilityPlan.of("\"top secret\"|(secret&admin)".getBytes(VISIBILITY_CHARSET));
+    assertThat("terms are listed depth first", plan.attributes, arrayContaining("top secret", "secret", "admin"));
+    assertThat("plan is not empty", plan.isEmpty(), is(false));
+
+    PlanNode root = plan.root;
+    assertThat("root is an OR", root.type, is(NodeType.OR));
+    assertThat("root has two children", root.children, arrayWithSize(2));
+    assertThat("first child is a term", root.children[0].type, is(NodeType.TERM));
+    assertThat("first child is the first attribute", root.children[0].term, is(0));
+
+    PlanNode and = root.children[1];
+    assertThat("second child is an AND", and.type, is(NodeType.AND));
+    assertThat("AND terms index the attributes", and.children[0].term, is(1));
+    assertThat("AND terms index the attributes", and.children[1].term, is(2));
+    assertThat("one mask for the AND", plan.masks, is(1));
+  }
+
+  @Test
+  public void minimizeTest() {
+    VisibilityPlan plan = VisibilityPlan.of("(a|a)&b".getBytes(VISIBILITY_CHARSET));
+    assertThat("duplicates are removed", plan.minimized.type, is(NodeType.AND));
+    assertThat("duplicates are removed", getAttributes(plan, plan.minimized.children), arrayContaining("a", "b"));
+
+    plan = VisibilityPlan.of("a|(a&b)".getBytes(VISIBILITY_CHARSET));
+    assertThat("OR absorbs its ANDs", plan.minimized.type, is(NodeType.TERM));
+    assertThat("OR absorbs its ANDs", plan.attributes[plan.minimized.term], is("a"));
+
+    plan = VisibilityPlan.of("(a|b)&a".getBytes(VISIBILITY_CHARSET));
+    assertThat("AND absorbs its ORs", plan.minimized.type, is(NodeType.TERM));
+    assertThat("AND absorbs its ORs", plan.attributes[plan.minimized.term], is("a"));
+
+    plan = VisibilityPlan.of("a|(b|(c|d))".getBytes(VISIBILITY_CHARSET));
+    assertThat("nested ORs are flattened", plan.minimized.type, is(NodeType.OR));
+    assertThat("nested ORs are flattened", getAttributes(plan, plan.minimized.children), arrayContaining("a", "b", "c", "d"));
+    assertThat("the expression is unchanged", plan.root.children, arrayWithSize(2));
+
+    plan = VisibilityPlan.of("(a&b)|(b&a)|c".getBytes(VISIBILITY_CHARSET));
+    assertThat("operands are compared in any order", plan.minimized.type, is(NodeType.OR));
+    assertThat("operands are compared in any order", plan.minimized.children, arrayWithSize(2));
+    assertThat("masks are counted for the minimized expression", plan.masks, is(1));
+
+    plan = VisibilityPlan.of("(a&b)|((c|a)&b&d)".getBytes(VISIBILITY_CHARSET));
+    assertThat("absorption only removes redundant operands", plan.minimized, is(sameInstance(plan.root)));
+
+    plan = VisibilityPlan.of("\"top secret\"|(secret&admin)".getBytes(VISIBILITY_CHARSET));
+    assertThat("minimal expressions are not copied", plan.minimized, is(sameInstance(plan.root)));
+  }
+
+  @Test
+  public void serializedTreeTest() throws Exception {
+    // Shares are written for these trees, so their encoding must not change.
+    assertThat("absorbed OR", writeMinimized("a|(a&b)"), is(equalTo(new byte[] {0, 0})));
+    assertThat("duplicate operands", writeMinimized("(a|a)&b"), is(equalTo(new byte[] {1, 2, 0, 0, 0, 2})));
+    assertThat("nested ORs", writeMinimized("a|(b|(c|d))"), is(equalTo(new byte[] {2, 4, 0, 0, 0, 1, 0, 2, 0, 3})));
+    assertThat("reordered operands", writeMinimized("(a&b)|(b&a)|c"), is(equalTo(new byte[] {2, 2, 1, 2, 0, 0, 0, 1, 0, 4})));
+    assertThat("absorbed AND", writeMinimized("x&(y|x)&z"), is(equalTo(new byte[] {1, 2, 0, 0, 0, 3})));
+
+    // Reading a tree gives back the tree that was written, without minimizing the expression again.
+    VisibilityPlan plan = VisibilityPlan.of("a|(b|(c|d))".getBytes(VISIBILITY_CHARSET));
+    PlanNode tree = readTree(plan, new byte[] {1, 2, 0, 3, 2, 2, 0, 0, 0, 1});
+    assertThat("tree is read", tree.type, is(NodeType.AND));
+    assertThat("tree is read", plan.attributes[tree.children[0].term], is("d"));
+    assertThat("tree is read", getAttributes(plan, tree.children[1].children), arrayContaining("a", "b"));
+  }
+
+  @Test
+  public void invalidSerializedTreeTest() throws Exception {
+    VisibilityPlan plan = VisibilityPlan.of("a|b".getBytes(VISIBILITY_CHARSET));
+    for (byte[] tree : new byte[][] { {0, 2}, {2, 1, 0, 0}, {2, 2, 0, 0}, {2, 2, 2, 2, 0, 0, 0, 1, 0, 0}, {3, 0}}) {
+      try {
+        readTree(plan, tree);
+        fail("invalid trees should be rejected: " + Arrays.toString(tree));
+      } catch (IOException e) { /* expected */}
+    }
+  }
+
+  @Test
+  public void masksTest() {
+    assertThat("a term needs no masks", VisibilityPlan.of("secret".getBytes(VISIBILITY_CHARSET)).masks, is(0));
+    assertThat("an OR needs no masks", VisibilityPlan.of("secret|admin".getBytes(VISIBILITY_CHARSET)).masks, is(0));
+    assertThat("an AND needs one mask per extra child", VisibilityPlan.of("a&b&c".getBytes(VISIBILITY_CHARSET)).masks, is(2));
+    assertThat("nested ANDs are counted", VisibilityPlan.of("(a&b)|(c&(d|(e&f)))".getBytes(VISIBILITY_CHARSET)).masks, is(3));
+  }
+
+  @Test
+  public void emptyTest() {
+    VisibilityPlan plan = VisibilityPlan.of(new byte[0]);
+    assertThat("plan is empty", plan.isEmpty(), is(true));
+    assertThat("no attributes", plan.attributes, is(emptyArray()));
+    assertThat("no masks", plan.masks, is(0));
+    assertThat("nothing to minimize", plan.minimized, is(nullValue()));
+  }
+
+  @Test
+  public void cacheTest() {
+    byte[] expression = "secret&admin".getBytes(VISIBILITY_CHARSET);
+    VisibilityPlan plan = VisibilityPlan.of(expression);
+    assertThat("plans are cached", VisibilityPlan.of("secret&admin".getBytes(VISIBILITY_CHARSET)), is(sameInstance(plan)));
+
+    expression[0] = 'x';
+    assertThat("cached plan does not share the caller's expression", plan.expression, is(equalTo("secret&admin".getBytes(VISIBILITY_CHARSET))));
+    assertThat("parsed visibility is available", plan.visibility.getExpression(), is(equalTo(plan.expression)));
+  }
+
+  @Test
+  public void invalidExpressionTest() {
+    try {
+      VisibilityPlan.of("secret&".getBytes(VISIBILITY_CHARSET));
+      fail("invalid expressions cannot be compiled");
+    } catch (IllegalArgumentException e) { /* expected */}
+  }
+
+  /**
+   * Serialize the minimized tree of an expression.
+   *
+   * @param expression
+   *          Visibility expression.
+   * @return The serialized tree.
+   */
+  private static byte[] writeMinimized(String expression) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    VisibilityPlan.writeTree(VisibilityPlan.of(expression.getBytes(VISIBILITY_CHARSET)).minimized, out);
+    return Arrays.copyOf(out.getData(), out.getLength());
+  }
+
+  /**
+   * Read a serialized tree for an expression.
+   *
+   * @param plan
+   *          Plan for the expression.
+   * @param tree
+   *          The serialized tree.
+   * @return The tree.
+   */
+  private static PlanNode readTree(VisibilityPlan plan, byte[] tree) throws IOException {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(tree, tree.length);
+    return plan.readTree(in);
+  }
+
+  /**
+   * Get the attributes of the given term nodes.
+   *
+   * @param plan
+   *          Plan the nodes are from.
+   * @param nodes
+   *          Term nodes.
+   * @return The attributes.
+   */
+  private static String[] getAttributes(VisibilityPlan plan, PlanNode[] nodes) {
+    return Arrays.stream(nodes).map(node -> plan.attributes[node.term]).toArray(String[]::new);
+  }
+}
@@ -19,11 +19,15 @@ import static edu.mit.ll.pace.internal.Utils.EMPTY;
 import static edu.mit.ll.pace.internal.Utils.VISIBILITY_CHARSET;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Map.Entry;
 
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.ColumnUpdate;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Value;
@@ -116,6 +120,42 @@ public final class MutableEntryTest {
     assertThat("returned entry should be the same as the original entry", mutableEntry.toEntry(), is(equalTo(entry)));
   }
 
+  @Test
+  public void toKeyReusesSourceTest() {
+    MutableEntry mutableEntry = new MutableEntry(entry);
+    assertThat("unchanged key is reused", mutableEntry.toKey(), is(sameInstance(key)));
+    assertThat("unchanged value is reused", mutableEntry.toEntry().getValue(), is(sameInstance(entry.getValue())));
+
+    mutableEntry.value = new byte[] {(byte) 5};
+    assertThat("key is still reused when the value changes", mutableEntry.toEntry().getKey(), is(sameInstance(key)));
+    assertThat("changed value is not reused", mutableEntry.toEntry().getValue().get(), is(equalTo(new byte[] {(byte) 5})));
+
+    MutableEntry clone = new MutableEntry(entry).cloneEntry();
+    clone.setBytes(EntryField.COLUMN_QUALIFIER, colQ.clone());
+    assertThat("key with a replaced field is not reused", clone.toKey(), is(not(sameInstance(key))));
+    assertThat("key with a replaced field has the same content", clone.toKey(), is(equalTo(key)));
+
+    clone = new MutableEntry(entry).cloneEntry();
+    clone.timestamp = timestamp + 1;
+    assertThat("key with a changed timestamp is not reused", clone.toKey().getTimestamp(), is(timestamp + 1));
+  }
+
+  @Test
+  public void sliceTest() {
+    // A key whose row is a slice of a larger buffer.
+    final byte[] buffer = new byte[] {(byte) 9, (byte) 1, (byte) 9};
+    Key slicedKey = new Key(row, colF, colQ, colVis, timestamp, delete) {
+      @Override
+      public ByteSequence getRowData() {
+        return new ArrayByteSequence(buffer, 1, 1);
+      }
+    };
+
+    MutableEntry mutableKey = new MutableEntry(slicedKey);
+    assertThat("only the slice is read", mutableKey.row, is(equalTo(row)));
+    assertThat("exact arrays are not copied", mutableKey.colF, is(sameInstance(slicedKey.getColumnFamilyData().getBackingArray())));
+  }
+
   @Test
   public void cloneTest() {
     MutableEntry mutableEntry = new MutableEntry(entry);
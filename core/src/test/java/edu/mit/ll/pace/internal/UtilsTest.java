@@ -21,8 +21,11 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import org.apache.accumulo.core.data.Key;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
 import org.junit.Test;
 
 /**
@@ -71,4 +74,20 @@ public final class UtilsTest {
     } catch (IllegalArgumentException e) { /* expected */}
   }
 
+  @Test
+  public void writeVIntTest() throws Exception {
+    int[] values = new int[] {0, 1, -1, 127, 128, -112, -113, 255, 256, 65535, 65536, Integer.MAX_VALUE, Integer.MIN_VALUE};
+    DataOutputBuffer expected = new DataOutputBuffer();
+
+    for (int value : values) {
+      expected.reset();
+      WritableUtils.writeVInt(expected, value);
+
+      byte[] buffer = new byte[WritableUtils.getVIntSize(value) + 2];
+      int end = Utils.writeVInt(buffer, 1, value);
+      assertThat("returns the offset after the value", end, is(1 + WritableUtils.getVIntSize(value)));
+      assertThat("matches the hadoop encoding", Arrays.copyOfRange(buffer, 1, end), is(equalTo(Arrays.copyOf(expected.getData(), expected.getLength()))));
+    }
+  }
+
 }
@@ -248,6 +248,22 @@ public final class LocalEncryptionKeyContainer implements EncryptionKeyContainer
     return key.key;
   }
 
+  @Override
+  public byte[] findAttributeKey(String attribute, String id, int version, int length) {
+    checkArgument(attribute != null, "attribute is null");
+    checkArgument(id != null, "id is null");
+    checkArgument(version >= 0, "version is negative");
+    checkArgument(length > 0, "length is non-positive");
+
+    Map<Integer,KeyWithVersion> versionedKeys = encryptionKeys.get(new KeyLookup(attribute, id, length));
+    if (versionedKeys == null) {
+      return null;
+    }
+
+    KeyWithVersion key = versionedKeys.get(version);
+    return key == null ? null : key.key;
+  }
+
   /**
    * Get the illegal key request message.
    *
@@ -16,6 +16,8 @@
 package edu.mit.ll.pace.keymanagement;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 import java.io.File;
@@ -55,4 +57,15 @@ public class LocalEncryptionKeyContainerTest {
     assertThat("has matching keys", container2.getKey("d", 4, 16), equalTo(container.getKey("d", 4, 16)));
   }
 
+  @Test
+  public void findAttributeKeyTest() throws Exception {
+    LocalEncryptionKeyContainer container = new LocalEncryptionKeyContainer();
+    container.addKey("a", "b", 1, new byte[] {1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1});
+
+    assertThat("held keys are found", container.findAttributeKey("a", "b", 1, 16), equalTo(container.getAttributeKey("a", "b", 1, 16)));
+    assertThat("missing versions are not found", container.findAttributeKey("a", "b", 2, 16), is(nullValue()));
+    assertThat("missing attributes are not found", container.findAttributeKey("c", "b", 1, 16), is(nullValue()));
+    assertThat("missing lengths are not found", container.findAttributeKey("a", "b", 1, 32), is(nullValue()));
+  }
+
 }
@@ -77,6 +77,8 @@ public abstract class BenchmarkBase {
 
   private static final String USER_NAME = "AccumuloUser";
   private static final ColumnVisibility VISIBILITY = new ColumnVisibility("\"doctor\"|(nurse&admin)");
+  private static final String[] WORDS = {"patient", "record", "status", "normal", "elevated", "admitted", "discharged", "ward", "note", "dose", "mg", "daily",
+      "follow-up", "scheduled", "{\"id\":", "\"type\":", "null,", "true,", "false,", "2016-10-01", "12:00", "reviewed", "by", "the"};
 
   @Param({"100", "10"})
   public int keyFieldSize;
@@ -219,13 +221,27 @@ public abstract class BenchmarkBase {
    *          Writer to write entries to.
    */
   void writeRandomEntries(BatchWriter writer) throws MutationsRejectedException {
+    writeRandomEntries(writer, false);
+  }
+
+  /**
+   * Write random entries.
+   * <p>
+   * Closes the writer after entries are written.
+   *
+   * @param writer
+   *          Writer to write entries to.
+   * @param compressibleValues
+   *          Whether the values should be compressible text, instead of uniformly random bytes.
+   */
+  void writeRandomEntries(BatchWriter writer, boolean compressibleValues) throws MutationsRejectedException {
     for (int i = 0; i < rowCount; i++) {
       byte[] row = getRandomBytes(keyFieldSize, true);
 
       for (int j = 0; j < columnCount; j++) {
         byte[] colF = getRandomBytes(keyFieldSize, true);
         byte[] colQ = getRandomBytes(keyFieldSize, true);
-        byte[] value = getRandomBytes(valueFieldSize, false);
+        byte[] value = compressibleValues ? getRandomWords(valueFieldSize) : getRandomBytes(valueFieldSize, false);
 
         Mutation mutation = new Mutation(row);
         mutation.put(colF, colQ, VISIBILITY, value);
@@ -260,6 +276,21 @@ public abstract class BenchmarkBase {
     return mutations;
   }
 
+  /**
+   * Get random text drawn from a small vocabulary, which compresses similarly to typical record data.
+   *
+   * @param count
+   *          Number of bytes.
+   * @return The random text.
+   */
+  private byte[] getRandomWords(int count) {
+    StringBuilder text = new StringBuilder(count + 16);
+    while (text.length() < count) {
+      text.append(WORDS[rand.nextInt(WORDS.length)]).append(' ');
+    }
+    return text.substring(0, count).getBytes(StandardCharsets.US_ASCII);
+  }
+
   /**
    * Get random bytes.
    *
@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.mit.ll.pace.performance;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.cryptomator.siv.SivMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.ll.pace.encryption.ValueEncryptor;
+
+/**
+ * Benchmark for deterministic SIV encryption of a short value, comparing the AES_SIV_DETERMINISTIC value encryptor against {@link SivMode}.
+ * <p>
+ * Both benchmarks reuse a single key, as deterministic encryption is only used with versioned field keys, so the encryptor encrypts with cached key material.
+ * <p>
+ * Value encryptors are not part of the public API, so they are created and called through reflection, which adds the same small overhead to each of the
+ * encryptor benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 2)
+@State(Scope.Thread)
+public class DeterministicSIVBenchmark {
+
+  @Param({"32", "64"})
+  public int keyLength;
+
+  @Param({"10", "100"})
+  public int valueLength;
+
+  // Random number generator with set seed. Ensures that each test uses the same "random" data.
+  private final Random rand = new Random(699838332);
+
+  private final SivMode siv = new SivMode();
+  private Method encrypt;
+  private Object encryptor;
+
+  private byte[] key;
+  private byte[] plaintext;
+
+  /**
+   * Create the encryptor, key, and value to encrypt.
+   */
+  @Setup(Level.Trial)
+  public void setupTrial() throws Exception {
+    Method getInstance = ValueEncryptor.class.getDeclaredMethod("getInstance", String.class);
+    getInstance.setAccessible(true);
+    encryptor = getInstance.invoke(ValueEncryptor.AES_SIV_DETERMINISTIC, (Object) null);
+
+    encrypt = getInstance.getReturnType().getDeclaredMethod("encrypt", byte[].class, byte[].class);
+    encrypt.setAccessible(true);
+
+    key = new byte[keyLength];
+    rand.nextBytes(key);
+
+    plaintext = new byte[valueLength];
+    rand.nextBytes(plaintext);
+  }
+
+  /**
+   * Benchmark encrypting with a versioned key.
+   */
+  @Benchmark
+  public byte[] versionedKey() throws Exception {
+    return (byte[]) encrypt.invoke(encryptor, key, plaintext);
+  }
+
+  /**
+   * Benchmark encrypting with a versioned key using {@link SivMode}.
+   */
+  @Benchmark
+  public byte[] versionedKeySivMode() {
+    return siv.encrypt(Arrays.copyOfRange(key, 0, keyLength / 2), Arrays.copyOfRange(key, keyLength / 2, keyLength), plaintext);
+  }
+
+}
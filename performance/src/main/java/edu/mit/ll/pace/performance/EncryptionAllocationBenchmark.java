@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.mit.ll.pace.performance;
+
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.ll.pace.encryption.EncryptionConfig;
+import edu.mit.ll.pace.encryption.EncryptionConfigBuilder;
+import edu.mit.ll.pace.encryption.EntryEncryptor;
+import edu.mit.ll.pace.harness.AccumuloInstance;
+
+/**
+ * Benchmark for the client side cost of encrypting and decrypting a single entry.
+ * <p>
+ * Unlike the other benchmarks, this does not use Accumulo, and is intended to be run with JMH's GC profiler ({@code -prof gc}) to measure the bytes allocated
+ * per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 2)
+@State(Scope.Thread)
+public class EncryptionAllocationBenchmark {
+
+  private static final String USER_NAME = "AccumuloUser";
+  private static final byte[] VISIBILITY = "\"doctor\"|(nurse&admin)".getBytes(StandardCharsets.US_ASCII);
+
+  @Param({"encryption/encrypt-baseline.ini", "encryption/encrypt-value.ini", "encryption/encrypt-entry.ini", "encryption/searchable.ini"})
+  public String configFile;
+
+  @Param({"100", "10"})
+  public int keyFieldSize;
+
+  @Param({"1000", "10"})
+  public int valueFieldSize;
+
+  // Random number generator with set seed. Ensures that each test uses the same "random" data.
+  private final Random rand = new Random(699838332);
+
+  private EntryEncryptor encryptor;
+  private Entry<Key,Value> plaintext;
+  private Entry<Key,Value> ciphertext;
+
+  /**
+   * Create the encryptor and the entries to encrypt and decrypt.
+   */
+  @Setup(Level.Trial)
+  public void setupTrial() throws Exception {
+    EncryptionConfig config = new EncryptionConfigBuilder().readFromFile(
+        new InputStreamReader(EncryptionAllocationBenchmark.class.getResourceAsStream(configFile), StandardCharsets.UTF_8)).build();
+    encryptor = new EntryEncryptor(config, AccumuloInstance.getUser(USER_NAME).encryptionKeys);
+
+    byte[] value = new byte[valueFieldSize];
+    rand.nextBytes(value);
+    plaintext = new SimpleImmutableEntry<>(new Key(getRandomText(), getRandomText(), getRandomText(), VISIBILITY, 0L), new Value(value));
+    ciphertext = encryptor.encrypt(plaintext);
+  }
+
+  /**
+   * Benchmark encrypting an entry.
+   */
+  @Benchmark
+  public Entry<Key,Value> encrypt() {
+    return encryptor.encrypt(plaintext);
+  }
+
+  /**
+   * Benchmark decrypting an entry.
+   */
+  @Benchmark
+  public Entry<Key,Value> decrypt() {
+    return encryptor.decrypt(ciphertext);
+  }
+
+  /**
+   * Get random textual bytes for a key field.
+   *
+   * @return The random bytes.
+   */
+  private byte[] getRandomText() {
+    return RandomStringUtils.random(keyFieldSize, 0, 0, true, true, null, rand).getBytes(StandardCharsets.US_ASCII);
+  }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.mit.ll.pace.performance;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.admin.DiskUsage;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.mit.ll.pace.harness.AccumuloInstance;
+
+/**
+ * Benchmark for reading encrypted entries with compressible values, with and without compression before encryption.
+ * <p>
+ * Ciphertext does not compress, so the RFile block compression is ineffective on encrypted values. In addition to the scan time, the number of bytes the table
+ * uses on disk after a flush is reported by {@link #diskUsage(DiskUsageCounter)} as the secondary result {@code diskUsage:bytesOnDisk}.
+ */
+public class EncryptionCompressionBenchmark extends BenchmarkBase {
+
+  private static final String TEST_TABLE = "SYSTEM_PERFORMANCE_EncryptionCompressionBenchmark";
+
+  /**
+   * Reports the number of bytes the table uses on disk as a secondary result.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class DiskUsageCounter {
+    public long bytesOnDisk;
+  }
+
+  @Param({"", "encryption/encrypt-value.ini", "encryption/encrypt-value-compressed.ini"})
+  public String configFile;
+
+  private long bytesOnDisk;
+
+  public EncryptionCompressionBenchmark() {
+    super(TEST_TABLE);
+  }
+
+  @Override
+  public void setupTrial() throws Exception {
+    super.setupTrial();
+    writeRandomEntries(getEncryptedBatchWriter(configFile, TEST_TABLE), true);
+
+    // Flush the entries to RFiles, so that the disk usage reflects their compressed size.
+    Connector connector = AccumuloInstance.getConnector();
+    connector.tableOperations().flush(TEST_TABLE, null, null, true);
+    bytesOnDisk = 0;
+    for (DiskUsage usage : connector.tableOperations().getDiskUsage(Collections.singleton(TEST_TABLE))) {
+      bytesOnDisk += usage.getUsage();
+    }
+  }
+
+  /**
+   * Report the number of bytes the table uses on disk after a flush. Only the secondary result is meaningful, not the time taken.
+   * <p>
+   * JMH sums event counters over the measurement iterations and does not report them for single shot benchmarks, so this runs a single timed iteration in a
+   * single fork.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @Warmup(iterations = 0)
+  @Measurement(iterations = 1)
+  @Fork(value = 1)
+  public void diskUsage(DiskUsageCounter counter) {
+    counter.bytesOnDisk = bytesOnDisk;
+  }
+
+  /**
+   * Benchmark creating the scanner, reading the entries, and closing the scanner.
+   */
+  @Benchmark
+  public void benchmark() throws Exception {
+    BatchScanner scanner = getEncryptedBatchScanner(configFile, TEST_TABLE);
+    Iterator<Entry<Key,Value>> iterator = scanner.iterator();
+    while (iterator.hasNext()) {
+      iterator.next();
+    }
+    scanner.close();
+  }
+}